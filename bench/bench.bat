@@ -0,0 +1,47 @@
+@echo off
+REM JMH benchmarks for the codec, routing and fan-out hot paths.
+REM   bench\bench.bat                    everything, with the GC (allocation) profiler
+REM   bench\bench.bat RouterBenchmark    any JMH args
+REM   bench\bench.bat --alloc-guard      fail if the relay forward path starts allocating
+REM   bench\bench.bat --checks           fail if a link between two nodes, or a seed, misbehaves end to end
+REM JMH jars are fetched once into %USERPROFILE%\.m2 via Maven; results land in bench\results.json.
+cd /d "%~dp0\.."
+
+set JMH_VERSION=1.37
+set M2=%USERPROFILE%\.m2\repository
+set CP=%M2%\org\openjdk\jmh\jmh-core\%JMH_VERSION%\jmh-core-%JMH_VERSION%.jar
+set CP=%CP%;%M2%\org\openjdk\jmh\jmh-generator-annprocess\%JMH_VERSION%\jmh-generator-annprocess-%JMH_VERSION%.jar
+set CP=%CP%;%M2%\net\sf\jopt-simple\jopt-simple\5.0.4\jopt-simple-5.0.4.jar
+set CP=%CP%;%M2%\org\apache\commons\commons-math3\3.6.1\commons-math3-3.6.1.jar
+
+if not exist "%M2%\org\openjdk\jmh\jmh-generator-annprocess\%JMH_VERSION%" (
+    echo Fetching JMH %JMH_VERSION%...
+    call mvn -q dependency:get -Dartifact=org.openjdk.jmh:jmh-generator-annprocess:%JMH_VERSION%
+    if errorlevel 1 (
+        echo ERROR: could not download JMH - needs Maven and network once.
+        exit /b 1
+    )
+)
+
+echo Compiling benchmarks...
+if exist bench\out rmdir /s /q bench\out
+mkdir bench\out
+dir /s /b meshchat\*.java bench\src\*.java > bench\out\sources.txt
+javac -cp "%CP%" -d bench\out @bench\out\sources.txt
+if errorlevel 1 (
+    echo BUILD FAILED
+    exit /b 1
+)
+
+if "%~1"=="--alloc-guard" (
+    java -cp "bench\out;%CP%" meshchat.network.ForwardAllocationGuard
+    exit /b %errorlevel%
+)
+if "%~1"=="--checks" (
+    java -cp "bench\out;%CP%" meshchat.network.LinkChecks
+    if errorlevel 1 exit /b 1
+    java -cp "bench\out;%CP%" meshchat.network.RendezvousChecks
+    exit /b %errorlevel%
+)
+
+java -cp "bench\out;%CP%" org.openjdk.jmh.Main -prof gc -rf json -rff bench\results.json %*
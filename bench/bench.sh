@@ -0,0 +1,48 @@
+#!/bin/bash
+# JMH benchmarks for the codec, routing and fan-out hot paths.
+#
+#   ./bench/bench.sh                      # everything, with the GC (allocation) profiler
+#   ./bench/bench.sh RouterBenchmark      # any JMH args: regex, -p textLength=256, -f 1 ...
+#   ./bench/bench.sh --alloc-guard        # fail if the relay forward path starts allocating
+#   ./bench/bench.sh --checks             # fail if a link between two nodes, or a seed, misbehaves end to end
+#
+# JMH jars are fetched once into ~/.m2 via Maven; results land in bench/results.json.
+cd "$(dirname "$0")/.."
+
+JMH_VERSION=1.37
+M2="${M2_REPO:-$HOME/.m2/repository}"
+JARS=(
+    "org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar"
+    "org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar"
+    "net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar"
+    "org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar"
+)
+
+if [ ! -f "$M2/${JARS[1]}" ]; then
+    echo "Fetching JMH $JMH_VERSION..."
+    mvn -q dependency:get -Dartifact=org.openjdk.jmh:jmh-generator-annprocess:$JMH_VERSION || {
+        echo "ERROR: could not download JMH (needs Maven and network once)."
+        exit 1
+    }
+fi
+
+CP=""
+for jar in "${JARS[@]}"; do CP="$CP:$M2/$jar"; done
+CP="${CP:1}"
+
+echo "Compiling benchmarks..."
+rm -rf bench/out && mkdir -p bench/out
+{ find meshchat -name "*.java"; find bench/src -name "*.java"; } > bench/out/sources.txt
+javac -cp "$CP" -d bench/out @bench/out/sources.txt || { echo "BUILD FAILED"; exit 1; }
+
+if [ "$1" = "--alloc-guard" ]; then
+    exec java -cp "bench/out:$CP" meshchat.network.ForwardAllocationGuard
+fi
+if [ "$1" = "--checks" ]; then
+    java -cp "bench/out:$CP" meshchat.network.LinkChecks || exit 1
+    exec java -cp "bench/out:$CP" meshchat.network.RendezvousChecks
+fi
+
+java -version 2>&1 | head -1
+java -cp "bench/out:$CP" org.openjdk.jmh.Main \
+    -prof gc -rf json -rff bench/results.json "$@"
@@ -0,0 +1,73 @@
+package meshchat.bench;
+
+import meshchat.model.Message;
+import meshchat.util.SimpleJson;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message encode/decode cost across payload sizes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int textLength;
+
+    private Message message;
+    private String json;
+
+    @Setup
+    public void setup() {
+        message = Fixtures.message(new Random(42), textLength);
+        json = message.toJson();
+    }
+
+    @Benchmark
+    public String encode() {
+        return message.toJson();
+    }
+
+    @Benchmark
+    public Message decode() {
+        return Message.fromJson(json);
+    }
+
+    @Benchmark
+    public SimpleJson.JsonObject parseOnly() {
+        return SimpleJson.parse(json);
+    }
+
+    @Benchmark
+    public Message roundTrip() {
+        return Message.fromJson(message.withDecrementedTtl().toJson());
+    }
+
+    static final class Fixtures {
+        private Fixtures() {}
+
+        static Message message(Random rnd, int textLength) {
+            return new Message(uuid(rnd), uuid(rnd), uuid(rnd), Message.DEFAULT_TTL, text(rnd, textLength), 1_700_000_000_000L);
+        }
+
+        static String uuid(Random rnd) {
+            return new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+        }
+
+        /** Chat-like text with some characters that need escaping. */
+        static String text(Random rnd, int length) {
+            String alphabet = "abcdefghijklmnopqrstuvwxyz      .,!?\"\n";
+            StringBuilder sb = new StringBuilder(length);
+            for (int i = 0; i < length; i++) sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+            return sb.toString();
+        }
+    }
+}
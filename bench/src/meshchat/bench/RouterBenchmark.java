@@ -0,0 +1,67 @@
+package meshchat.bench;
+
+import meshchat.metrics.NodeMetrics;
+import meshchat.model.Message;
+import meshchat.routing.MessageRouter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent {@link MessageRouter#route} throughput.
+ *
+ * {@code churn} cycles through far more ids than the dedup cache holds, so every
+ * call inserts and evicts; {@code duplicates} replays a small id pool so most calls
+ * hit the dedup check. Both run with 8 threads against one shared router,
+ * whose seen-ID state is split into {@code shards} independently locked parts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@Threads(8)
+@State(Scope.Benchmark)
+public class RouterBenchmark {
+    private static final String ME = "00000000-0000-0000-0000-000000000000";
+    private static final int CHURN_POOL = 1 << 16;
+    private static final int DUPLICATE_POOL = 256;
+
+    @Param({"1", "8"})
+    public int shards;
+
+    private MessageRouter router;
+    private Message[] churnMessages;
+    private Message[] duplicateMessages;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        Random rnd = new Random(7);
+        router = new MessageRouter(new NodeMetrics(), shards);
+        churnMessages = new Message[CHURN_POOL];
+        for (int i = 0; i < CHURN_POOL; i++) churnMessages[i] = CodecBenchmark.Fixtures.message(rnd, 32);
+        duplicateMessages = new Message[DUPLICATE_POOL];
+        for (int i = 0; i < DUPLICATE_POOL; i++) duplicateMessages[i] = CodecBenchmark.Fixtures.message(rnd, 32);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        @Setup
+        public void setup() {
+            next = (int) Thread.currentThread().threadId() * 7919;
+        }
+    }
+
+    @Benchmark
+    public MessageRouter.Action churn(Cursor c) {
+        return router.route(churnMessages[c.next++ & (CHURN_POOL - 1)], ME);
+    }
+
+    @Benchmark
+    public MessageRouter.Action duplicates(Cursor c) {
+        return router.route(duplicateMessages[c.next++ & (DUPLICATE_POOL - 1)], ME);
+    }
+}
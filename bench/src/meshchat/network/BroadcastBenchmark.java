@@ -0,0 +1,49 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+import meshchat.util.DeviceIdentity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link MeshNode#broadcast} fan-out to N in-memory connections that discard
+ * their output, i.e. the per-neighbor encode + write cost without a network.
+ * Lives in meshchat.network to reach the package-private broadcast.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"1", "8", "32"})
+    public int neighbors;
+
+    private MeshNode node;
+    private Message message;
+
+    @Setup
+    public void setup() {
+        Random rnd = new Random(11);
+        node = new MeshNode(new DeviceIdentity(new UUID(rnd.nextLong(), rnd.nextLong()).toString()));
+        for (int i = 0; i < neighbors; i++) {
+            PeerConnection conn = new PeerConnection(InputStream.nullInputStream(), OutputStream.nullOutputStream(),
+                "bench-" + i, () -> {});
+            node.registerConnection(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), conn);
+        }
+        message = new Message(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), "a", "b",
+            Message.DEFAULT_TTL, "hello from the benchmark, this is a typical short chat line", 1_700_000_000_000L);
+    }
+
+    @Benchmark
+    public int broadcast() {
+        return node.broadcast(message, null);
+    }
+}
@@ -0,0 +1,104 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CPU cost of link compression per frame: {@link LinkCompression#write} against
+ * a plain write, and reading the frames back through an inflating
+ * {@link FrameReader}. Setup prints the bytes per frame either way.
+ * Lives in meshchat.network to reach the package-private classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final int FRAMES = 256;
+
+    @Param({"16", "256"})
+    public int textLength;
+
+    private byte[][] frames;
+    private byte[] dictionary;
+    private byte[] compressed;
+    private LinkCompression deflate;
+    private int next;
+    private final FramePool pool = new FramePool(16);
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() throws IOException {
+        Random rnd = new Random(5);
+        String a = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+        String b = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+        dictionary = LinkCompression.dictionary(a, b);
+        frames = new byte[FRAMES][];
+        long plain = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < textLength) text.append(WORDS[rnd.nextInt(WORDS.length)]).append(' ');
+            Message m = new Message(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), i % 2 == 0 ? a : b,
+                i % 2 == 0 ? b : a, Message.DEFAULT_TTL, text.substring(0, textLength), 1_700_000_000_000L + i * 997L);
+            frames[i] = m.toJson().getBytes(StandardCharsets.UTF_8);
+            plain += frames[i].length + 1;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LinkCompression c = new LinkCompression(dictionary);
+        for (byte[] f : frames) c.write(out, f, f.length);
+        c.end();
+        compressed = out.toByteArray();
+        System.out.printf("%n%d-char text: %.0f bytes/frame plain, %.0f deflated%n",
+            textLength, (double) plain / FRAMES, (double) compressed.length / FRAMES);
+        deflate = new LinkCompression(dictionary);
+    }
+
+    @TearDown
+    public void tearDown() {
+        deflate.end();
+    }
+
+    @Benchmark
+    public void plainWrite() throws IOException {
+        byte[] f = frames[next++ & (FRAMES - 1)];
+        sink.write(f, 0, f.length);
+        sink.write('\n');
+    }
+
+    @Benchmark
+    public int deflateWrite() throws IOException {
+        byte[] f = frames[next++ & (FRAMES - 1)];
+        return deflate.write(sink, f, f.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int inflateRead() throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(compressed), 1 << 20, pool);
+        reader.inflate(dictionary);
+        int total = 0;
+        Frame f;
+        while ((f = reader.next()) != null) {
+            total += f.len;
+            f.release();
+        }
+        reader.end();
+        return total;
+    }
+
+    private static final String[] WORDS = {
+        "lunch", "at", "noon", "see", "you", "in", "the", "meeting", "room", "ok", "thanks", "running", "late",
+        "can", "someone", "check", "printer", "on", "floor", "two", "yes", "no", "maybe", "tomorrow"
+    };
+}
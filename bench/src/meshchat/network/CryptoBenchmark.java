@@ -0,0 +1,133 @@
+package meshchat.network;
+
+import meshchat.metrics.NodeMetrics;
+import meshchat.model.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of link encryption: sealing a frame with {@link LinkCipher}
+ * against a plain write, and reading sealed frames back through a decrypting
+ * {@link FrameReader}. Also what setting up a link's keys costs, with a full
+ * X25519 agreement and resumed from a session ticket.
+ * Lives in meshchat.network to reach the package-private classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class CryptoBenchmark {
+    private static final int FRAMES = 256;
+
+    @Param({"16", "256"})
+    public int textLength;
+
+    private byte[][] frames;
+    private byte[] sealed;
+    private LinkCipher sender;
+    private String dialerId, listenerId;
+    private LinkSecurity dialer, listener;
+    private String offer, answer, resumeOffer, resumeAnswer;
+    private int next;
+    private final FramePool pool = new FramePool(16);
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() throws IOException, GeneralSecurityException {
+        Random rnd = new Random(5);
+        dialerId = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+        listenerId = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+        frames = new byte[FRAMES][];
+        for (int i = 0; i < FRAMES; i++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < textLength) text.append("lunch at noon ");
+            Message m = new Message(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), dialerId, listenerId,
+                Message.DEFAULT_TTL, text.substring(0, textLength), 1_700_000_000_000L + i * 997L);
+            frames[i] = m.toJson().getBytes(StandardCharsets.UTF_8);
+        }
+
+        // A first link agrees keys and leaves both sides a ticket; the second resumes from it
+        dialer = new LinkSecurity(dialerId, new NodeMetrics());
+        listener = new LinkSecurity(listenerId, new NodeMetrics());
+        offer = dialer.offer(listenerId);
+        answer = listener.answer(dialerId, offer);
+        sender = dialer.establish(listenerId, offer, answer);
+        listener.establish(dialerId, answer, offer);
+        resumeOffer = dialer.offer(listenerId);
+        resumeAnswer = listener.answer(dialerId, resumeOffer);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long plain = 0;
+        for (byte[] f : frames) {
+            sender.plaintext().write(f);
+            sender.plaintext().write('\n');
+            sender.seal(out);
+            plain += f.length + 1;
+        }
+        sealed = out.toByteArray();
+        System.out.printf("%n%d-char text: %.0f bytes/frame plain, %.0f sealed%n",
+            textLength, (double) plain / FRAMES, (double) sealed.length / FRAMES);
+    }
+
+    @Benchmark
+    public void plainWrite() throws IOException {
+        byte[] f = frames[next++ & (FRAMES - 1)];
+        sink.write(f, 0, f.length);
+        sink.write('\n');
+    }
+
+    @Benchmark
+    public int sealWrite() throws IOException {
+        byte[] f = frames[next++ & (FRAMES - 1)];
+        OutputStream plaintext = sender.plaintext();
+        plaintext.write(f, 0, f.length);
+        plaintext.write('\n');
+        return sender.seal(sink);
+    }
+
+    /** The receiving side, keyed afresh per invocation so its record counter starts where the sender's did. */
+    @State(Scope.Thread)
+    public static class Receiver {
+        LinkCipher cipher;
+
+        @Setup(Level.Invocation)
+        public void setup(CryptoBenchmark b) throws GeneralSecurityException {
+            cipher = b.listener.establish(b.dialerId, b.answer, b.offer);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int openRead(Receiver receiver) throws IOException {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(sealed), 1 << 20, pool);
+        reader.decrypt(receiver.cipher);
+        int total = 0;
+        Frame f;
+        while ((f = reader.next()) != null) {
+            total += f.len;
+            f.release();
+        }
+        return total;
+    }
+
+    @Benchmark
+    public LinkCipher agreeKeys() throws GeneralSecurityException {
+        return listener.establish(dialerId, answer, offer);
+    }
+
+    @Benchmark
+    public LinkCipher resumeKeys() throws GeneralSecurityException {
+        return listener.establish(dialerId, resumeAnswer, resumeOffer);
+    }
+}
@@ -0,0 +1,90 @@
+package meshchat.network;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Fails (exit 1) if relaying an untraced message allocates more than
+ * {@link #BUDGET_BYTES} per message on average, so regressions on the
+ * forward path show up without reading JMH output. Run with
+ * {@code ./bench/bench.sh --alloc-guard}.
+ *
+ * That is on plain links. On links set up the way nodes agree by default
+ * ({@code link=default} in {@link ForwardPathBenchmark}) the relay still
+ * allocates nothing itself, but every sealed batch costs the JDK's AES-GCM
+ * setup, on whichever thread seals it; that run counts every thread and is
+ * held to {@link #DEFAULT_LINK_BUDGET_BYTES}, and its time per message is
+ * printed alongside. That path is longer and reaches more of the JDK, so on a
+ * busy or single-core machine the JIT may still be compiling it after the
+ * warmup; it gets up to {@link #ROUNDS} measured rounds and the best counts.
+ */
+public class ForwardAllocationGuard {
+    private static final double BUDGET_BYTES = 16;
+    private static final double DEFAULT_LINK_BUDGET_BYTES = 192;
+    private static final int WARMUP = 200_000;
+    private static final int MEASURED = 1_000_000;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) {
+        ForwardPathBenchmark.Fixture fixture = new ForwardPathBenchmark.Fixture(8, false);
+        // Warm both paths up before measuring either, so the JIT is done with them
+        for (int i = 0; i < WARMUP; i++) {
+            fixture.forwardNext();
+            fixture.duplicate();
+        }
+
+        boolean ok = check("forward", forward(fixture), BUDGET_BYTES);
+        ok &= check("duplicate", duplicate(fixture), BUDGET_BYTES);
+        fixture.close();
+
+        ForwardPathBenchmark.Fixture defaults = new ForwardPathBenchmark.Fixture(8, true);
+        for (int i = 0; i < WARMUP; i++) defaults.forwardNext();
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS && best > DEFAULT_LINK_BUDGET_BYTES; round++) {
+            best = Math.min(best, forwardEverywhere(defaults));
+        }
+        ok &= check("forward, default link", best, DEFAULT_LINK_BUDGET_BYTES);
+        defaults.close();
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static double forward(ForwardPathBenchmark.Fixture fixture) {
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED; i++) fixture.forwardNext();
+        return (double) (allocatedBytes() - before) / MEASURED;
+    }
+
+    private static double duplicate(ForwardPathBenchmark.Fixture fixture) {
+        long before = allocatedBytes();
+        for (int i = 0; i < MEASURED; i++) fixture.duplicate();
+        return (double) (allocatedBytes() - before) / MEASURED;
+    }
+
+    /** Like {@link #forward}, counting what the links' writers allocate too; prints the time per message. */
+    private static double forwardEverywhere(ForwardPathBenchmark.Fixture fixture) {
+        long before = allThreadsAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED; i++) fixture.forwardNext();
+        long nanos = System.nanoTime() - start;
+        double perMessage = (double) (allThreadsAllocatedBytes() - before) / MEASURED;
+        System.out.printf("%-22s %8.0f ns/msg%n", "forward, default link", (double) nanos / MEASURED);
+        return perMessage;
+    }
+
+    private static boolean check(String path, double perMessage, double budget) {
+        boolean pass = perMessage <= budget;
+        System.out.printf("%-22s %8.2f B/msg  (budget %.0f)  %s%n", path, perMessage, budget, pass ? "OK" : "FAIL");
+        return pass;
+    }
+
+    private static long allocatedBytes() {
+        return threads().getCurrentThreadAllocatedBytes();
+    }
+
+    private static long allThreadsAllocatedBytes() {
+        return threads().getTotalThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean threads() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+}
@@ -0,0 +1,143 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+import meshchat.util.DeviceIdentity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A relay's receive path for untraced messages, from a received frame to the
+ * bytes written to each neighbor: {@code forward} sees a new message every
+ * time, {@code duplicate} one it has already seen. Run with {@code -prof gc};
+ * gc.alloc.rate.norm should stay near zero for both. {@link ForwardAllocationGuard}
+ * checks the same thing without JMH.
+ *
+ * {@code link=plain} writes straight to the neighbors' streams;
+ * {@code link=default} runs every neighbor the way two current nodes agree
+ * on by default: AES-GCM, writes batched for the linger, and each data frame
+ * copied into the session's replay buffer. Batches are sealed and flushed
+ * on each link's writer thread, which {@code -prof gc} counts too.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ForwardPathBenchmark {
+
+    @Param({"1", "8"})
+    public int neighbors;
+
+    @Param({"plain", "default"})
+    public String link;
+
+    private Fixture fixture;
+
+    @Setup
+    public void setup() {
+        fixture = new Fixture(neighbors, link.equals("default"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void forward() {
+        fixture.forwardNext();
+    }
+
+    @Benchmark
+    public void duplicate() {
+        fixture.duplicate();
+    }
+
+    /**
+     * A node with discarding neighbors and a pool of encoded messages to feed
+     * it; with {@code defaults}, each neighbor link runs as {@code link=default}.
+     */
+    static final class Fixture {
+        private static final int POOL = 4096; // well past the router's seen-ID capacity
+
+        final MeshNode node;
+        private final PeerConnection from;
+        private final byte[][] encoded = new byte[POOL][];
+        private final PeerConnection[] links;
+        private int next;
+
+        Fixture(int neighbors, boolean defaults) {
+            // Every message in the pool has the same origin; keep the origin limiter out of the way
+            System.setProperty("meshchat.ingress.origin.msgs", "0");
+            System.setProperty("meshchat.ingress.origin.bytes", "0");
+            Random rnd = new Random(5);
+            node = new MeshNode(new DeviceIdentity(new UUID(rnd.nextLong(), rnd.nextLong()).toString()));
+            from = discard("bench-in");
+            node.registerConnection(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), from);
+            links = new PeerConnection[neighbors];
+            for (int i = 0; i < neighbors; i++) {
+                links[i] = discard("bench-" + i);
+                if (defaults) runWithDefaults(links[i], rnd);
+                node.registerConnection(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), links[i]);
+            }
+            String origin = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+            String dest = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+            for (int i = 0; i < POOL; i++) {
+                Message m = new Message(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), origin, dest,
+                    Message.DEFAULT_TTL, "hello from the benchmark, this is a typical short chat line", 1_700_000_000_000L);
+                encoded[i] = m.toJson().getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        void forwardNext() {
+            receive(encoded[next++ & (POOL - 1)]);
+        }
+
+        void duplicate() {
+            receive(encoded[0]);
+        }
+
+        void close() {
+            for (PeerConnection l : links) l.close();
+            node.stop();
+        }
+
+        private void receive(byte[] bytes) {
+            Frame frame = FramePool.SHARED.acquire();
+            frame.ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, frame.buf, 0, bytes.length);
+            frame.len = bytes.length;
+            node.handleIncomingFrame(frame, from);
+        }
+
+        /** What {@code conn} would be set up with between two nodes on default settings, compression aside. */
+        private static void runWithDefaults(PeerConnection conn, Random rnd) {
+            int maxFrame = IngressPolicy.fromSystemProperties().maxFrameBytes();
+            Handshake ours = Handshake.local(Handshake.VERSION, false, true, false, maxFrame);
+            conn.setLinkParameters(ours.agree(ours));
+            byte[] key = new byte[LinkCipher.KEY_BYTES], iv = new byte[LinkCipher.IV_BYTES];
+            rnd.nextBytes(key);
+            rnd.nextBytes(iv);
+            try {
+                conn.startEncryption(new LinkCipher(key, iv, key, iv));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            LinkSession session = new LinkSession("bench");
+            session.bind(conn);
+            conn.setSession(session);
+        }
+
+        private static PeerConnection discard(String name) {
+            return new PeerConnection(InputStream.nullInputStream(), OutputStream.nullOutputStream(), name, () -> {});
+        }
+    }
+}
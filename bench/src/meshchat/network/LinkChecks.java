@@ -0,0 +1,100 @@
+package meshchat.network;
+
+import meshchat.model.HopTrace;
+import meshchat.model.Message;
+import meshchat.model.Peer;
+import meshchat.ui.MessageListener;
+import meshchat.util.DeviceIdentity;
+import meshchat.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end checks of a link between two nodes over loopback TCP, with the
+ * default link configuration (encrypted, batching): fails (exit 1) if one
+ * does not hold. Run with {@code ./bench/bench.sh --checks}.
+ */
+public class LinkChecks {
+    private static final int SMALL_MESSAGES = 50;
+
+    public static void main(String[] args) throws Exception {
+        // Long enough that the small messages are surely still batched when the big one is written
+        System.setProperty("meshchat.link.linger", "20000");
+        if (System.getProperty("meshchat.log.level") == null) Log.setLevel(Log.Level.WARN);
+
+        boolean ok = check("near-max frame behind a pending batch", nearMaxFrameWhileBatching());
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * A burst of small messages, then one whose frame is just under the
+     * receiver's cap while they are still batched: all of them arrive and
+     * the link stays up.
+     */
+    private static boolean nearMaxFrameWhileBatching() throws Exception {
+        Random rnd = new Random(7);
+        MeshNode a = new MeshNode(new DeviceIdentity(new UUID(rnd.nextLong(), rnd.nextLong()).toString()));
+        MeshNode b = new MeshNode(new DeviceIdentity(new UUID(rnd.nextLong(), rnd.nextLong()).toString()));
+        CountDownLatch received = new CountDownLatch(SMALL_MESSAGES + 1);
+        b.setMessageListener(new Counting(received));
+        a.startDetached();
+        b.startDetached();
+        try {
+            PeerConnection link = connect(a, b);
+            char[] big = new char[IngressPolicy.fromSystemProperties().maxFrameBytes() - 1024];
+            for (int i = 0; i < big.length; i++) big[i] = (char) ('a' + rnd.nextInt(26));
+            for (int i = 0; i < SMALL_MESSAGES; i++) a.sendMessage(b.getDeviceId(), "small message " + i);
+            a.sendMessage(b.getDeviceId(), new String(big));
+
+            boolean all = received.await(10, TimeUnit.SECONDS);
+            if (!all) System.out.println("  " + received.getCount() + " message(s) missing");
+            if (!link.isConnected()) System.out.println("  link closed");
+            return all && link.isConnected();
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    /** Links {@code a} to {@code b} over loopback; returns a's end once both have registered it. */
+    private static PeerConnection connect(MeshNode a, MeshNode b) throws IOException, InterruptedException {
+        Socket dialed, accepted;
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            dialed = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            accepted = server.accept();
+        }
+        b.accept(new PeerConnection(accepted));
+        a.attach(new PeerConnection(dialed), b.getDeviceId());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (a.getConnections().isEmpty() || b.getConnections().isEmpty()) {
+            if (System.nanoTime() > deadline) throw new IOException("link did not come up");
+            Thread.sleep(10);
+        }
+        Thread.sleep(200); // let the key exchange finish
+        return a.getConnections().iterator().next();
+    }
+
+    private static boolean check(String name, boolean pass) {
+        System.out.printf("%-40s %s%n", name, pass ? "OK" : "FAIL");
+        return pass;
+    }
+
+    /** Counts messages delivered to its node. */
+    private record Counting(CountDownLatch latch) implements MessageListener {
+        @Override public void onMessageReceived(Message msg) { latch.countDown(); }
+        @Override public void onMessageSent(Message msg) {}
+        @Override public void onMessageRelayed(Message msg) {}
+        @Override public void onTraceReceived(Message msg, HopTrace trace) {}
+        @Override public void onPeerConnected(Peer peer) {}
+        @Override public void onPeerDisconnected(String deviceId) {}
+        @Override public void onStatusUpdate(String status) {}
+        @Override public boolean wantsRelayEvents() { return false; }
+    }
+}
@@ -0,0 +1,99 @@
+package meshchat.network;
+
+import meshchat.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * End-to-end checks of a {@link RendezvousServer} on an ephemeral loopback
+ * port, asked through {@link RendezvousServer#query} as nodes ask their
+ * seeds: fails (exit 1) if one does not hold. Run with
+ * {@code ./bench/bench.sh --checks}.
+ */
+public class RendezvousChecks {
+    private static final int DEVICES = 40;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("meshchat.log.level") == null) Log.setLevel(Log.Level.WARN);
+
+        boolean ok = check("seed addresses, IPv6 included", seedAddresses());
+        RendezvousServer server = new RendezvousServer(0, 60_000);
+        server.start();
+        try {
+            InetSocketAddress seed = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.port());
+            ok &= check("query hands out other registered devices", handsOutOthers(seed));
+            ok &= check("malformed device IDs are not registered", rejectsBadIds(seed));
+        } finally {
+            server.stop();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean seedAddresses() {
+        InetSocketAddress v4 = RendezvousServer.parseSeed("10.0.0.7");
+        InetSocketAddress v6 = RendezvousServer.parseSeed("[fe80::1]:4000");
+        InetSocketAddress bare = RendezvousServer.parseSeed("fe80::1");
+        return v4.getHostString().equals("10.0.0.7") && v4.getPort() == RendezvousServer.PORT
+            && v6.getHostString().equals("fe80::1") && v6.getPort() == 4000
+            && bare.getHostString().equals("fe80::1") && bare.getPort() == RendezvousServer.PORT;
+    }
+
+    /**
+     * Registers {@link #DEVICES} devices; the next one gets a full batch back,
+     * each at its registered port and none of them itself or twice.
+     */
+    private static boolean handsOutOthers(InetSocketAddress seed) throws IOException {
+        Random rnd = new Random(11);
+        Set<String> registered = new HashSet<>();
+        for (int i = 0; i < DEVICES; i++) {
+            String id = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+            RendezvousServer.query(seed, id, 50_000 + i);
+            registered.add(id);
+        }
+        String asker = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+        List<String> batch = RendezvousServer.query(seed, asker, 0);
+        Set<String> seen = new HashSet<>();
+        for (String line : batch) {
+            String[] f = line.split(" ");
+            if (f.length != 3 || !registered.contains(f[0]) || !seen.add(f[0])) {
+                System.out.println("  unexpected entry: " + line);
+                return false;
+            }
+            int port = Integer.parseInt(f[2]);
+            if (port < 50_000 || port >= 50_000 + DEVICES) {
+                System.out.println("  wrong port: " + line);
+                return false;
+            }
+        }
+        if (batch.size() != RendezvousServer.BATCH) System.out.println("  " + batch.size() + " handed out");
+        return batch.size() == RendezvousServer.BATCH;
+    }
+
+    /** Registrations with IDs no node would have are ignored and never handed out. */
+    private static boolean rejectsBadIds(InetSocketAddress seed) throws IOException {
+        String tooLong = "a".repeat(RendezvousServer.MAX_ID_CHARS + 1);
+        RendezvousServer.query(seed, tooLong, 50_999);
+        RendezvousServer.query(seed, "bad/id", 50_999);
+        for (int i = 0; i < 10; i++) {
+            for (String line : RendezvousServer.query(seed, UUID.randomUUID().toString(), 0)) {
+                if (line.endsWith(" 50999")) {
+                    System.out.println("  handed out: " + line);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean check(String name, boolean pass) {
+        System.out.printf("%-44s %s%n", name, pass ? "OK" : "FAIL");
+        return pass;
+    }
+}
@@ -22,18 +22,8 @@ if errorlevel 1 (
 echo Compiling MeshChat...
 if not exist out mkdir out
 
-javac -d out --source-path . ^
-  meshchat\Main.java ^
-  meshchat\model\Message.java ^
-  meshchat\model\Peer.java ^
-  meshchat\network\MeshNode.java ^
-  meshchat\network\PeerConnection.java ^
-  meshchat\network\DiscoveryService.java ^
-  meshchat\routing\MessageRouter.java ^
-  meshchat\ui\ChatWindow.java ^
-  meshchat\ui\MessageListener.java ^
-  meshchat\util\DeviceIdentity.java ^
-  meshchat\util\SimpleJson.java
+dir /s /b meshchat\*.java > out\sources.txt
+javac -d out --source-path . @out\sources.txt
 
 if errorlevel 1 (
     echo.
@@ -1,21 +1,27 @@
 package meshchat;
 
+import meshchat.history.ChatHistory;
 import meshchat.network.MeshNode;
+import meshchat.search.SearchIndex;
 import meshchat.ui.ChatWindow;
 import meshchat.util.DeviceIdentity;
+import meshchat.util.Log;
 
 import javax.swing.*;
 
 public class Main {
+    private static final Log LOG = Log.get("MESHCHAT");
+
     public static void main(String[] args) {
-        System.out.println("[MESHCHAT] Starting MeshChat...");
+        LOG.info("Starting MeshChat...");
         DeviceIdentity identity = DeviceIdentity.load();
-        System.out.println("[MESHCHAT] Device ID: " + identity.deviceId());
+        LOG.info("Device ID: " + identity.deviceId());
 
         MeshNode node = new MeshNode(identity);
+        ChatHistory history = ChatHistory.open(new SearchIndex());
 
         SwingUtilities.invokeLater(() -> {
-            ChatWindow window = new ChatWindow(identity, node);
+            ChatWindow window = new ChatWindow(identity, node, history);
             window.setVisible(true);
             node.setMessageListener(window);
             node.start();
@@ -0,0 +1,111 @@
+package meshchat.history;
+
+import meshchat.model.Message;
+import meshchat.search.SearchIndex;
+import meshchat.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only chat log persisted to ~/.meshchat_history (one JSON message per line).
+ * Every stored message is also fed to the {@link SearchIndex}.
+ * All file I/O happens on a single background writer thread.
+ */
+public class ChatHistory implements Closeable {
+    private static final Log LOG = Log.get("HISTORY");
+
+    private static final Path HISTORY_FILE = Path.of(System.getProperty("user.home"), ".meshchat_history");
+    private static final long CLOSE_MILLIS = 5000;
+
+    private final Path file;
+    private final SearchIndex index;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "meshchat-history");
+        t.setDaemon(true);
+        return t;
+    });
+    private BufferedWriter out;
+
+    public ChatHistory(Path file, SearchIndex index) {
+        this.file = file;
+        this.index = index;
+    }
+
+    public static ChatHistory open(SearchIndex index) {
+        ChatHistory history = new ChatHistory(HISTORY_FILE, index);
+        history.writer.execute(history::load);
+        return history;
+    }
+
+    public SearchIndex index() {
+        return index;
+    }
+
+    public void append(Message msg) {
+        writer.execute(() -> {
+            index.add(msg);
+            try {
+                if (out == null) {
+                    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                out.write(msg.toJson());
+                out.newLine();
+                out.flush();
+            } catch (IOException e) {
+                LOG.warn("Failed to write history: " + e.getMessage());
+            }
+        });
+    }
+
+    private void load() {
+        if (!Files.exists(file)) return;
+        int count = 0;
+        try (var lines = Files.lines(file, StandardCharsets.UTF_8)) {
+            for (String line : (Iterable<String>) lines::iterator) {
+                if (line.isBlank()) continue;
+                try {
+                    index.add(Message.fromJson(line));
+                    count++;
+                } catch (RuntimeException e) {
+                    LOG.warn("Skipping corrupt record: " + e.getMessage());
+                }
+            }
+            LOG.info("Loaded " + count + " message(s) from " + file);
+        } catch (IOException e) {
+            LOG.warn("Failed to read history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes out what was appended, then closes the index; appends still
+     * queued after {@link #CLOSE_MILLIS} are lost.
+     */
+    @Override
+    public void close() {
+        writer.execute(() -> {
+            try {
+                if (out != null) out.close();
+            } catch (IOException ignored) {}
+        });
+        writer.shutdown();
+        try {
+            // Queued appends feed the index, so it must outlive them
+            if (!writer.awaitTermination(CLOSE_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.warn("History writer still busy after " + CLOSE_MILLIS + "ms, closing anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        index.close();
+    }
+}
@@ -0,0 +1,13 @@
+package meshchat.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("meshchat.ForwardFanoutEvent")
+@Label("Forward Fan-out")
+@Description("Writing a forwarded message to every other neighbor")
+public class ForwardFanoutEvent extends MessageEvent {
+    @Label("Fan-out")
+    public int fanout;
+}
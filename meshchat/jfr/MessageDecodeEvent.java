@@ -0,0 +1,11 @@
+package meshchat.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("meshchat.MessageDecodeEvent")
+@Label("Message Decode")
+@Description("JSON frame parsed into a Message")
+public class MessageDecodeEvent extends MessageEvent {
+}
@@ -0,0 +1,36 @@
+package meshchat.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Common fields for every message-lifecycle JFR event.
+ *
+ * All events are disabled by default, so an unrecorded event costs one
+ * {@link #isEnabled()} check. Turn them on with the bundled settings file:
+ * {@code java -XX:StartFlightRecording:settings=meshchat/jfr/meshchat.jfc,filename=mesh.jfr ...}
+ */
+@Category({"MeshChat", "Message"})
+@Enabled(false)
+@StackTrace(false)
+public abstract class MessageEvent extends Event {
+    @Label("Message Id")
+    public String messageId;
+
+    @Label("TTL")
+    public int ttl;
+
+    @Label("Size")
+    @DataAmount
+    public int bytes;
+
+    public void set(String messageId, int ttl, int bytes) {
+        this.messageId = messageId;
+        this.ttl = ttl;
+        this.bytes = bytes;
+    }
+}
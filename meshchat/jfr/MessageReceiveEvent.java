@@ -0,0 +1,13 @@
+package meshchat.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("meshchat.MessageReceiveEvent")
+@Label("Message Receive")
+@Description("Whole handling of one inbound frame on a node")
+public class MessageReceiveEvent extends MessageEvent {
+    @Label("Remote Host")
+    public String remoteHost;
+}
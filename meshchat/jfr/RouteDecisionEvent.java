@@ -0,0 +1,13 @@
+package meshchat.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("meshchat.RouteDecisionEvent")
+@Label("Route Decision")
+@Description("MessageRouter duplicate/TTL/destination check")
+public class RouteDecisionEvent extends MessageEvent {
+    @Label("Action")
+    public String action;
+}
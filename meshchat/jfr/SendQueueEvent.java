@@ -0,0 +1,13 @@
+package meshchat.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("meshchat.SendQueueEvent")
+@Label("Send Queue Wait")
+@Description("Time a sender waited for the connection writer")
+public class SendQueueEvent extends MessageEvent {
+    @Label("Remote Host")
+    public String remoteHost;
+}
@@ -0,0 +1,11 @@
+package meshchat.jfr;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("meshchat.UiDeliveryEvent")
+@Label("UI Delivery")
+@Description("From listener callback until the message is on screen (EDT)")
+public class UiDeliveryEvent extends MessageEvent {
+}
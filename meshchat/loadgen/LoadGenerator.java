@@ -0,0 +1,197 @@
+package meshchat.loadgen;
+
+import meshchat.metrics.LatencyHistogram;
+import meshchat.model.HopTrace;
+import meshchat.model.Message;
+import meshchat.model.Peer;
+import meshchat.network.MeshNode;
+import meshchat.ui.MessageListener;
+import meshchat.util.Args;
+import meshchat.util.DeviceIdentity;
+import meshchat.util.Log;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless soak-test client. Joins the mesh with a throwaway identity and either
+ * generates load or echoes it back.
+ *
+ * <pre>
+ * # on the far side of the mesh
+ * java -cp out meshchat.loadgen.LoadGenerator --mode echo --port 45690
+ * # generator: 200 msg/s for 2 hours, sizes ~exp(300), split 3:1 over two echo nodes
+ * java -cp out meshchat.loadgen.LoadGenerator --port 45691 --rate 200 --duration 7200 \
+ *      --size exp:300 --targets &lt;echoId1&gt;:3,&lt;echoId2&gt;:1 --report 10
+ * </pre>
+ *
+ * Latency is measured generator-side from the send time embedded in the text to
+ * the echo's arrival, so it is a full round trip and clock skew doesn't matter.
+ */
+public class LoadGenerator implements MessageListener {
+    private static final Log LOG = Log.get("LOADGEN");
+    private static final String PREFIX = "LOADGEN ";
+    private static final String ECHO_PREFIX = "ECHO ";
+
+    private final MeshNode node;
+    private final boolean echoMode;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder echoed = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LatencyHistogram overall = new LatencyHistogram("us");
+    private final AtomicReference<LatencyHistogram> interval = new AtomicReference<>(new LatencyHistogram("us"));
+
+    private LoadGenerator(MeshNode node, boolean echoMode) {
+        this.node = node;
+        this.echoMode = echoMode;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opt = Args.parse(args);
+        if (System.getProperty("meshchat.log.level") == null) Log.setLevel(Log.Level.WARN);
+
+        DeviceIdentity identity = DeviceIdentity.ephemeral();
+        int port = Integer.parseInt(opt.getOrDefault("port", String.valueOf(MeshNode.TCP_PORT + 10)));
+        MeshNode node = new MeshNode(identity, port);
+        LoadGenerator gen = new LoadGenerator(node, "echo".equals(opt.get("mode")));
+        node.setMessageListener(gen);
+        node.start();
+        for (String host : opt.getOrDefault("connect", "").split(",")) {
+            if (!host.isBlank()) node.connectManually(host.trim());
+        }
+        System.out.println("Load generator " + identity.deviceId() + " on port " + port
+            + (gen.echoMode ? " (echo mode)" : ""));
+
+        int reportSeconds = Integer.parseInt(opt.getOrDefault("report", "10"));
+        long durationSeconds = Long.parseLong(opt.getOrDefault("duration", "60"));
+        if (gen.echoMode) {
+            gen.reportLoop(reportSeconds, Long.MAX_VALUE);
+            return;
+        }
+
+        List<String> targets = new ArrayList<>();
+        for (String t : opt.getOrDefault("targets", "").split(",")) {
+            if (t.isBlank()) continue;
+            String[] f = t.trim().split(":");
+            int weight = f.length > 1 ? Integer.parseInt(f[1]) : 1;
+            for (int i = 0; i < weight; i++) targets.add(f[0]);
+        }
+        if (targets.isEmpty()) {
+            System.err.println("ERROR: --targets <deviceId[:weight],...> is required (echo nodes)");
+            System.exit(1);
+        }
+
+        Thread.sleep(Long.parseLong(opt.getOrDefault("warmup", "5")) * 1000);
+        double rate = Double.parseDouble(opt.getOrDefault("rate", "50"));
+        SizeDistribution sizes = SizeDistribution.parse(opt.getOrDefault("size", "fixed:100"));
+        long seed = Long.parseLong(opt.getOrDefault("seed", "1"));
+
+        Thread.ofPlatform().daemon().name("loadgen-sender").start(
+            () -> gen.sendLoop(targets, rate, sizes, new Random(seed), durationSeconds));
+        gen.reportLoop(reportSeconds, durationSeconds);
+        node.stop();
+        System.exit(0);
+    }
+
+    private void sendLoop(List<String> targets, double rate, SizeDistribution sizes, Random random, long durationSeconds) {
+        long intervalNanos = (long) (1_000_000_000L / rate);
+        long start = System.nanoTime();
+        long end = start + durationSeconds * 1_000_000_000L;
+        long next = start;
+        long seq = 0;
+        StringBuilder padding = new StringBuilder();
+        while (System.nanoTime() < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            // If we fell behind (GC, slow node) don't burst more than a second's worth
+            next = Math.max(next + intervalNanos, System.nanoTime() - 1_000_000_000L);
+
+            int size = sizes.next(random);
+            padding.setLength(0);
+            while (padding.length() < size) padding.append('x');
+            String text = PREFIX + (seq++) + " " + System.nanoTime() + " " + padding;
+            node.sendMessage(targets.get(random.nextInt(targets.size())), text);
+            sent.increment();
+            bytesSent.add(text.length());
+        }
+    }
+
+    private void reportLoop(int reportSeconds, long durationSeconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long lastSent = 0, lastEchoed = 0, lastGcCount = gcCount(), lastGcMillis = gcMillis();
+        while ((System.nanoTime() - start) / 1_000_000_000L < durationSeconds) {
+            Thread.sleep(reportSeconds * 1000L);
+            LatencyHistogram window = interval.getAndSet(new LatencyHistogram("us"));
+            long s = sent.sum(), e = echoed.sum(), gcCount = gcCount(), gcMillis = gcMillis();
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+
+            System.out.printf("[%5ds] sent %.1f/s echoed %.1f/s (total %d/%d, lost %d) | rtt p50=%dus p99=%dus p999=%dus"
+                    + " | heap %dMB/%dMB gc %d (%dms) | links %d connecting %d%n",
+                (System.nanoTime() - start) / 1_000_000_000L,
+                (s - lastSent) / (double) reportSeconds, (e - lastEchoed) / (double) reportSeconds,
+                s, e, Math.max(0, s - e),
+                window.percentile(50), window.percentile(99), window.percentile(99.9),
+                heap.getUsed() >> 20, heap.getCommitted() >> 20,
+                gcCount - lastGcCount, gcMillis - lastGcMillis,
+                node.getConnections().size(), node.getConnectingCount());
+            lastSent = s;
+            lastEchoed = e;
+            lastGcCount = gcCount;
+            lastGcMillis = gcMillis;
+        }
+        if (!echoMode) System.out.println("Overall rtt: " + overall.summary());
+    }
+
+    private static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionCount());
+        return n;
+    }
+
+    private static long gcMillis() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) n += Math.max(0, gc.getCollectionTime());
+        return n;
+    }
+
+    // ── MessageListener ───────────────────────────────────────────────────────
+
+    @Override
+    public void onMessageReceived(Message msg) {
+        if (echoMode && msg.text().startsWith(PREFIX)) {
+            node.sendMessage(msg.from(), ECHO_PREFIX + msg.text());
+            echoed.increment();
+        } else if (!echoMode && msg.text().startsWith(ECHO_PREFIX + PREFIX)) {
+            String[] f = msg.text().split(" ", 5); // ECHO LOADGEN <seq> <nanos> <padding>
+            try {
+                long rttMicros = (System.nanoTime() - Long.parseLong(f[3])) / 1000;
+                overall.record(rttMicros);
+                interval.get().record(rttMicros);
+                echoed.increment();
+            } catch (RuntimeException e) {
+                LOG.warn("Malformed echo: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override public void onMessageSent(Message msg) {}
+    @Override public void onMessageRelayed(Message msg) {}
+    @Override public boolean wantsRelayEvents() { return false; }
+    @Override public void onTraceReceived(Message msg, HopTrace trace) {}
+    @Override public void onPeerConnected(Peer peer) { LOG.info("Peer connected: " + peer); }
+    @Override public void onPeerDisconnected(String deviceId) { LOG.info("Peer disconnected: " + deviceId); }
+    @Override public void onStatusUpdate(String status) { LOG.info(status); }
+}
@@ -0,0 +1,34 @@
+package meshchat.loadgen;
+
+import java.util.Random;
+
+/**
+ * Message text length distribution, parsed from {@code fixed:N}, {@code uniform:MIN-MAX}
+ * or {@code exp:MEAN} (exponential, capped at 16 KiB).
+ */
+interface SizeDistribution {
+    int MAX_SIZE = 16 * 1024;
+
+    int next(Random random);
+
+    static SizeDistribution parse(String spec) {
+        String[] f = spec.split(":", 2);
+        if (f.length != 2) throw new IllegalArgumentException("Bad size spec: " + spec);
+        switch (f[0]) {
+            case "fixed" -> {
+                int n = Integer.parseInt(f[1]);
+                return r -> n;
+            }
+            case "uniform" -> {
+                String[] range = f[1].split("-");
+                int min = Integer.parseInt(range[0]), max = Integer.parseInt(range[1]);
+                return r -> min + r.nextInt(max - min + 1);
+            }
+            case "exp" -> {
+                double mean = Double.parseDouble(f[1]);
+                return r -> (int) Math.min(MAX_SIZE, -mean * Math.log(1 - r.nextDouble()));
+            }
+            default -> throw new IllegalArgumentException("Unknown size distribution: " + f[0]);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package meshchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram in the spirit of HdrHistogram.
+ *
+ * Values are bucketed by power of two, and each power of two is split into
+ * {@value #SUB_BUCKETS} linear sub-buckets, so any recorded value is reported
+ * within ~3% of its true magnitude. Recording is a couple of shifts plus one
+ * atomic increment; no allocation, no locks.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram(String unit) {
+        this.unit = unit;
+    }
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /** Upper bound of the bucket containing the given percentile (0-100). */
+    public long percentile(double p) {
+        long n = total.sum();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long seen = 0, top = max();
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), top);
+        }
+        return top;
+    }
+
+    public String unit() {
+        return unit;
+    }
+
+    public String summary() {
+        return String.format("n=%d mean=%.1f p50=%d p99=%d p999=%d max=%d %s",
+            count(), mean(), percentile(50), percentile(99), percentile(99.9), max(), unit);
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // >= 1
+        int top = (int) (value >>> exp);                              // [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return 2 * SUB_BUCKETS + (exp - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    /** Saturates at {@code Long.MAX_VALUE} for the top buckets, whose bound does not fit. */
+    static long upperBound(int index) {
+        if (index < 2 * SUB_BUCKETS) return index;
+        int exp = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        if (Long.numberOfLeadingZeros(top + 1) <= exp) return Long.MAX_VALUE;
+        return ((top + 1) << exp) - 1;
+    }
+}
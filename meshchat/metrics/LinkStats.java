@@ -0,0 +1,87 @@
+package meshchat.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters for a single {@code PeerConnection}.
+ */
+public final class LinkStats implements LinkStatsMBean {
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder wireBytesOut = new LongAdder();
+    private final LongAdder datagramsOut = new LongAdder();
+    private final LongAdder datagramsResent = new LongAdder();
+    private volatile String peer = "?";
+    private volatile String parameters = "";
+    private volatile double rttMillis = -1;
+    private volatile double pingLoss;
+
+    public void recordIn(long bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    public void recordOut(long bytes) {
+        recordOut(bytes, bytes);
+    }
+
+    /** @param wireBytes what actually went out, e.g. after compression */
+    public void recordOut(long bytes, long wireBytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+        wireBytesOut.add(wireBytes);
+    }
+
+    /** Wire bytes that went out after their messages were counted, e.g. a batch sealed as one record. */
+    public void recordWireOut(long wireBytes) {
+        wireBytesOut.add(wireBytes);
+    }
+
+    /** A message that went out as a datagram instead of on the stream. */
+    public void recordDatagram(long bytes, long wireBytes) {
+        recordOut(bytes, wireBytes);
+        datagramsOut.increment();
+    }
+
+    /** A datagram the peer did not get, sent again on the stream. */
+    public void recordDatagramResent() {
+        datagramsResent.increment();
+    }
+
+    /** The link's PING estimates as they stand. */
+    public void setPing(double rttMillis, double loss) {
+        this.rttMillis = rttMillis;
+        this.pingLoss = loss;
+    }
+
+    public void setPeer(String peer) {
+        this.peer = peer;
+    }
+
+    public void setParameters(String parameters) {
+        this.parameters = parameters;
+    }
+
+    @Override public String getPeer() { return peer; }
+    @Override public String getParameters() { return parameters; }
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public long getMessagesIn() { return messagesIn.sum(); }
+    @Override public long getMessagesOut() { return messagesOut.sum(); }
+    @Override public long getWireBytesOut() { return wireBytesOut.sum(); }
+    @Override public long getDatagramsOut() { return datagramsOut.sum(); }
+    @Override public long getDatagramsResent() { return datagramsResent.sum(); }
+    @Override public double getRttMillis() { return rttMillis; }
+    @Override public double getPingLoss() { return pingLoss; }
+
+    @Override
+    public String toString() {
+        return peer + (parameters.isEmpty() ? "" : " [" + parameters + "]")
+            + " in=" + getMessagesIn() + "/" + getBytesIn() + "B out=" + getMessagesOut() + "/" + getBytesOut() + "B"
+            + (getWireBytesOut() != getBytesOut() ? " (wire " + getWireBytesOut() + "B)" : "")
+            + (getDatagramsOut() > 0 ? " udp=" + getDatagramsOut() + "/resent " + getDatagramsResent() : "")
+            + (rttMillis >= 0 ? String.format(" rtt=%.1fms loss=%.0f%%", rttMillis, 100 * pingLoss) : "");
+    }
+}
@@ -0,0 +1,22 @@
+package meshchat.metrics;
+
+/**
+ * JMX view of one peer connection; see {@link LinkStats}.
+ */
+public interface LinkStatsMBean {
+    String getPeer();
+    /** What the link's HANDSHAKEs agreed on, e.g. {@code "v2 deflate aes-gcm hb=5000ms"}. */
+    String getParameters();
+    long getBytesIn();
+    long getBytesOut();
+    long getMessagesIn();
+    long getMessagesOut();
+    /** Bytes sent after compression; equals {@link #getBytesOut()} on plain links. */
+    long getWireBytesOut();
+    /** Messages sent as datagrams, and how many of those had to go again on the stream. */
+    long getDatagramsOut();
+    long getDatagramsResent();
+    /** Smoothed round trip of the link's timestamped PINGs in ms, -1 before the first; and the share not answered in time. */
+    double getRttMillis();
+    double getPingLoss();
+}
@@ -0,0 +1,155 @@
+package meshchat.metrics;
+
+import meshchat.util.Log;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-node metrics registry.
+ *
+ * Writers only touch {@link LongAdder}s and {@link LatencyHistogram}s, so the
+ * hot path never contends and nothing is computed until somebody reads -
+ * through JMX ({@code meshchat:type=Node,name=<id>}) or {@link #snapshot()}.
+ */
+public final class NodeMetrics implements NodeMetricsMBean {
+    private static final Log LOG = Log.get("METRICS");
+
+    public final LongAdder delivered = new LongAdder();
+    public final LongAdder forwarded = new LongAdder();
+    public final LongAdder droppedDuplicate = new LongAdder();
+    public final LongAdder droppedTtl = new LongAdder();
+    public final LongAdder connectionsOpened = new LongAdder();
+    public final LongAdder connectionsClosed = new LongAdder();
+    public final LongAdder beaconsSent = new LongAdder();
+    public final LongAdder beaconsReceived = new LongAdder();
+    public final LongAdder ingressDropped = new LongAdder();
+    public final LongAdder ingressDelayed = new LongAdder();
+    public final LongAdder ingressDisconnected = new LongAdder();
+    public final LongAdder ingressOversized = new LongAdder();
+    public final LongAdder broadcastIhaves = new LongAdder();
+    public final LongAdder broadcastGrafts = new LongAdder();
+    public final LongAdder broadcastPrunes = new LongAdder();
+    public final LongAdder linksKeyAgreed = new LongAdder();
+    public final LongAdder linksResumed = new LongAdder();
+    public final LongAdder presenceEntriesSent = new LongAdder();
+    public final LongAdder sessionsResumed = new LongAdder();
+    public final LongAdder framesReplayed = new LongAdder();
+    public final LongAdder copiesSent = new LongAdder();
+    public final LongAdder multipathFallbacks = new LongAdder();
+    public final LatencyHistogram routeDecisionNanos = new LatencyHistogram("ns");
+    public final LatencyHistogram deliveryLatencyMillis = new LatencyHistogram("ms");
+
+    private final Map<LinkStats, ObjectName> links = new ConcurrentHashMap<>();
+    private final Map<ObjectName, LinkStats> registered = new ConcurrentHashMap<>(); // what each name is now
+    private String nodeName = "local";
+
+    /** Registers this node's MBean; failures are logged, never fatal. */
+    public void register(String nodeName) {
+        this.nodeName = nodeName;
+        try {
+            ObjectName name = new ObjectName("meshchat:type=Node,name=" + ObjectName.quote(nodeName));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (Exception e) {
+            LOG.warn("Could not register node MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers a link's MBean under its peer's name, replacing the one of an
+     * earlier link to the same peer, which may not have been unregistered yet.
+     */
+    public synchronized void registerLink(LinkStats link, String peerName) {
+        link.setPeer(peerName);
+        try {
+            ObjectName name = new ObjectName("meshchat:type=Link,node=" + ObjectName.quote(nodeName)
+                + ",peer=" + ObjectName.quote(peerName));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(link, name);
+            links.put(link, name);
+            LinkStats previous = registered.put(name, link);
+            if (previous != null && previous != link) links.remove(previous);
+        } catch (Exception e) {
+            LOG.warn("Could not register link MBean: " + e.getMessage());
+        }
+    }
+
+    /** Unregisters a link's MBean, unless a newer link to the same peer has taken its name. */
+    public synchronized void unregisterLink(LinkStats link) {
+        ObjectName name = links.remove(link);
+        if (name == null || !registered.remove(name, link)) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception ignored) {}
+    }
+
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("routed=").append(getMessagesRouted())
+          .append(" deliver=").append(delivered.sum())
+          .append(" forward=").append(forwarded.sum())
+          .append(" dropDup=").append(droppedDuplicate.sum())
+          .append(" dropTtl=").append(droppedTtl.sum())
+          .append(String.format(" dedupHit=%.1f%%", getDedupHitRate() * 100))
+          .append(" conn+=").append(connectionsOpened.sum())
+          .append(" conn-=").append(connectionsClosed.sum())
+          .append(" beacons tx/rx=").append(beaconsSent.sum()).append('/').append(beaconsReceived.sum())
+          .append(" ingress drop/delay/disc/oversize=").append(ingressDropped.sum()).append('/')
+          .append(ingressDelayed.sum()).append('/').append(ingressDisconnected.sum()).append('/')
+          .append(ingressOversized.sum())
+          .append(" bcast ihave/graft/prune=").append(broadcastIhaves.sum()).append('/')
+          .append(broadcastGrafts.sum()).append('/').append(broadcastPrunes.sum())
+          .append(" keys agreed/resumed=").append(linksKeyAgreed.sum()).append('/').append(linksResumed.sum())
+          .append(" presence tx=").append(presenceEntriesSent.sum())
+          .append(" sessions resumed/replayed=").append(sessionsResumed.sum()).append('/').append(framesReplayed.sum())
+          .append(" copies=").append(copiesSent.sum())
+          .append(" multipath fallbacks=").append(multipathFallbacks.sum())
+          .append("\n  route decision: ").append(routeDecisionNanos.summary())
+          .append("\n  delivery latency: ").append(deliveryLatencyMillis.summary());
+        for (LinkStats link : links.keySet()) {
+            sb.append("\n  link ").append(link);
+        }
+        return sb.toString();
+    }
+
+    @Override public long getMessagesRouted() {
+        return delivered.sum() + forwarded.sum() + droppedDuplicate.sum() + droppedTtl.sum();
+    }
+    @Override public long getDelivered() { return delivered.sum(); }
+    @Override public long getForwarded() { return forwarded.sum(); }
+    @Override public long getDroppedDuplicate() { return droppedDuplicate.sum(); }
+    @Override public long getDroppedTtl() { return droppedTtl.sum(); }
+    @Override public double getDedupHitRate() {
+        long routed = getMessagesRouted();
+        return routed == 0 ? 0 : (double) droppedDuplicate.sum() / routed;
+    }
+    @Override public long getConnectionsOpened() { return connectionsOpened.sum(); }
+    @Override public long getConnectionsClosed() { return connectionsClosed.sum(); }
+    @Override public long getBeaconsSent() { return beaconsSent.sum(); }
+    @Override public long getBeaconsReceived() { return beaconsReceived.sum(); }
+    @Override public long getIngressDropped() { return ingressDropped.sum(); }
+    @Override public long getIngressDelayed() { return ingressDelayed.sum(); }
+    @Override public long getIngressDisconnected() { return ingressDisconnected.sum(); }
+    @Override public long getIngressOversized() { return ingressOversized.sum(); }
+    @Override public long getBroadcastIhaves() { return broadcastIhaves.sum(); }
+    @Override public long getBroadcastGrafts() { return broadcastGrafts.sum(); }
+    @Override public long getBroadcastPrunes() { return broadcastPrunes.sum(); }
+    @Override public long getLinksKeyAgreed() { return linksKeyAgreed.sum(); }
+    @Override public long getLinksResumed() { return linksResumed.sum(); }
+    @Override public long getPresenceEntriesSent() { return presenceEntriesSent.sum(); }
+    @Override public long getSessionsResumed() { return sessionsResumed.sum(); }
+    @Override public long getFramesReplayed() { return framesReplayed.sum(); }
+    @Override public long getCopiesSent() { return copiesSent.sum(); }
+    @Override public long getMultipathFallbacks() { return multipathFallbacks.sum(); }
+    @Override public long getRouteDecisionP50Nanos() { return routeDecisionNanos.percentile(50); }
+    @Override public long getRouteDecisionP99Nanos() { return routeDecisionNanos.percentile(99); }
+    @Override public long getDeliveryLatencyP50Millis() { return deliveryLatencyMillis.percentile(50); }
+    @Override public long getDeliveryLatencyP99Millis() { return deliveryLatencyMillis.percentile(99); }
+    @Override public String getSnapshot() { return snapshot(); }
+}
@@ -0,0 +1,41 @@
+package meshchat.metrics;
+
+/**
+ * JMX view of a node's counters; see {@link NodeMetrics}.
+ */
+public interface NodeMetricsMBean {
+    long getMessagesRouted();
+    long getDelivered();
+    long getForwarded();
+    long getDroppedDuplicate();
+    long getDroppedTtl();
+    double getDedupHitRate();
+
+    long getConnectionsOpened();
+    long getConnectionsClosed();
+    long getBeaconsSent();
+    long getBeaconsReceived();
+
+    long getIngressDropped();
+    long getIngressDelayed();
+    long getIngressDisconnected();
+    long getIngressOversized();
+
+    long getBroadcastIhaves();
+    long getBroadcastGrafts();
+    long getBroadcastPrunes();
+    long getLinksKeyAgreed();
+    long getLinksResumed();
+    long getPresenceEntriesSent();
+    long getSessionsResumed();
+    long getFramesReplayed();
+    long getCopiesSent();
+    long getMultipathFallbacks();
+
+    long getRouteDecisionP50Nanos();
+    long getRouteDecisionP99Nanos();
+    long getDeliveryLatencyP50Millis();
+    long getDeliveryLatencyP99Millis();
+
+    String getSnapshot();
+}
@@ -0,0 +1,61 @@
+package meshchat.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoded hop trace of a delivered message.
+ *
+ * Each hop offset is "ms since the origin's timestamp" as seen by that relay's
+ * clock, so per-hop numbers include any clock skew between neighbors.
+ */
+public record HopTrace(String messageId, String origin, List<Hop> hops, long totalMillis) {
+
+    /** One relay: its short handle and how long after the origin it received the message. */
+    public record Hop(String handle, long offsetMillis) {}
+
+    public static HopTrace of(Message msg, long deliveredAtMillis) {
+        List<Hop> hops = new ArrayList<>();
+        if (msg.trace() != null && !msg.trace().isEmpty()) {
+            for (String part : msg.trace().split(",")) {
+                int colon = part.lastIndexOf(':');
+                if (colon <= 0) continue;
+                try {
+                    hops.add(new Hop(part.substring(0, colon), Long.parseLong(part.substring(colon + 1))));
+                } catch (NumberFormatException ignored) {
+                    // malformed hop from a misbehaving relay
+                }
+            }
+        }
+        return new HopTrace(msg.id(), msg.from(), List.copyOf(hops), deliveredAtMillis - msg.timestamp());
+    }
+
+    /** Links crossed from origin to here (relays + 1). */
+    public int pathLength() {
+        return hops.size() + 1;
+    }
+
+    /** Latency of each link, origin first, destination last. */
+    public long[] perHopMillis() {
+        long[] out = new long[pathLength()];
+        long prev = 0;
+        for (int i = 0; i < hops.size(); i++) {
+            out[i] = hops.get(i).offsetMillis() - prev;
+            prev = hops.get(i).offsetMillis();
+        }
+        out[hops.size()] = totalMillis - prev;
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(origin.length() > 8 ? origin.substring(0, 8) : origin);
+        long[] perHop = perHopMillis();
+        for (int i = 0; i < hops.size(); i++) {
+            sb.append(" -(").append(perHop[i]).append("ms)-> ").append(hops.get(i).handle());
+        }
+        sb.append(" -(").append(perHop[hops.size()]).append("ms)-> me");
+        sb.append("  [").append(pathLength()).append(" hop(s), ").append(totalMillis).append("ms]");
+        return sb.toString();
+    }
+}
@@ -3,16 +3,51 @@ package meshchat.model;
 import meshchat.util.SimpleJson;
 
 
+/**
+ * A chat message as it travels the mesh.
+ *
+ * {@code trace} is null unless the sender asked for a hop-by-hop trace; then
+ * each relay appends {@code <handle>:<ms since timestamp>} (comma separated).
+ * Untraced messages serialize exactly as before.
+ *
+ * {@code initialTtl} is the TTL the sender started with, sent as {@code ttl0}
+ * only when it is not the default for the destination; 0 means the default.
+ * It lets any receiver tell how many links a message crossed ({@link #hops()}).
+ *
+ * {@code paths} is how many next hops each node sends a unicast message on,
+ * best first, instead of flooding it; sent only when set, 0 floods.
+ */
 public record Message(
     String id,
     String from,
     String to,
     int ttl,
     String text,
-    long timestamp
+    long timestamp,
+    String trace,
+    int initialTtl,
+    int paths
 ) {
     public static final int DEFAULT_TTL = 10;
 
+    /** Destination of a message for every node in the mesh. */
+    public static final String BROADCAST = "*";
+    /** Broadcasts travel a spanning tree rather than a flood, so they can afford more hops. */
+    public static final int BROADCAST_TTL = 32;
+    /** {@code to} of a message for a named group channel, e.g. {@code "#general"}. */
+    public static final String CHANNEL_PREFIX = "#";
+
+    /** Most next hops a message may ask for; more is a flood in all but name. */
+    public static final int MAX_PATHS = 4;
+
+    public Message(String id, String from, String to, int ttl, String text, long timestamp) {
+        this(id, from, to, ttl, text, timestamp, null, 0, 0);
+    }
+
+    public Message(String id, String from, String to, int ttl, String text, long timestamp, String trace) {
+        this(id, from, to, ttl, text, timestamp, trace, 0, 0);
+    }
+
     public static Message fromJson(String json) {
         SimpleJson.JsonObject obj = SimpleJson.parse(json);
         return new Message(
@@ -21,22 +56,76 @@ public record Message(
             obj.getString("to"),
             obj.getInt("ttl"),
             obj.getString("text"),
-            obj.getLong("timestamp")
+            obj.getLong("timestamp"),
+            obj.getString("trace"),
+            obj.getString("ttl0") != null ? obj.getInt("ttl0") : 0,
+            obj.getString("paths") != null ? Math.min(Math.max(obj.getInt("paths"), 0), MAX_PATHS) : 0
         );
     }
 
     public String toJson() {
-        return new SimpleJson.JsonObject()
+        SimpleJson.JsonObject obj = new SimpleJson.JsonObject()
             .put("id", id)
             .put("from", from)
             .put("to", to)
             .put("ttl", ttl)
             .put("text", text)
-            .put("timestamp", timestamp)
-            .toString();
+            .put("timestamp", timestamp);
+        if (trace != null) obj.put("trace", trace);
+        if (initialTtl != 0) obj.put("ttl0", initialTtl);
+        if (paths != 0) obj.put("paths", paths);
+        return obj.toString();
     }
 
     public Message withDecrementedTtl() {
-        return new Message(id, from, to, ttl - 1, text, timestamp);
+        return new Message(id, from, to, ttl - 1, text, timestamp, trace, initialTtl, paths);
+    }
+
+    /** TTL a message to {@code to} starts with unless the sender picks another. */
+    public static int defaultTtl(String to) {
+        return BROADCAST.equals(to) || to.startsWith(CHANNEL_PREFIX) ? BROADCAST_TTL : DEFAULT_TTL;
+    }
+
+    /** Same message sent with {@code ttl} instead of the default; receivers still count hops. */
+    public Message withInitialTtl(int ttl) {
+        return new Message(id, from, to, ttl, text, timestamp, trace, ttl == defaultTtl(to) ? 0 : ttl, paths);
+    }
+
+    /** Links crossed when received, counting the one it arrived on. */
+    public int hops() {
+        return (initialTtl != 0 ? initialTtl : defaultTtl(to)) - ttl + 1;
+    }
+
+    /** Same message sent on the best {@code paths} next hops at every node rather than flooded. */
+    public Message withPaths(int paths) {
+        return new Message(id, from, to, ttl, text, timestamp, trace, initialTtl, Math.min(Math.max(paths, 0), MAX_PATHS));
+    }
+
+    public boolean isBroadcast() {
+        return BROADCAST.equals(to);
+    }
+
+    public boolean isChannel() {
+        return to.startsWith(CHANNEL_PREFIX);
+    }
+
+    /** Channel name without the prefix; only meaningful when {@link #isChannel()}. */
+    public String channel() {
+        return to.substring(CHANNEL_PREFIX.length());
+    }
+
+    public boolean isTraced() {
+        return trace != null;
+    }
+
+    /** Starts a hop trace on an outgoing message. */
+    public Message withTrace() {
+        return new Message(id, from, to, ttl, text, timestamp, trace == null ? "" : trace, initialTtl, paths);
+    }
+
+    /** Appends this relay's hop record; only meaningful when {@link #isTraced()}. */
+    public Message withHop(String handle, long receivedAtMillis) {
+        String hop = handle + ":" + (receivedAtMillis - timestamp);
+        return new Message(id, from, to, ttl, text, timestamp, trace.isEmpty() ? hop : trace + "," + hop, initialTtl, paths);
     }
 }
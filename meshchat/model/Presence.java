@@ -0,0 +1,19 @@
+package meshchat.model;
+
+/**
+ * A device in the presence directory: one this node can reach, directly
+ * ({@code hops} 1) or through others.
+ *
+ * @param name     display name the device announced; may be empty
+ * @param lastSeen local time of the device's latest announcement that got here
+ */
+public record Presence(String deviceId, String name, int hops, long lastSeen) {
+    public String shortId() {
+        return deviceId.length() > 8 ? deviceId.substring(0, 8) + "..." : deviceId;
+    }
+
+    @Override
+    public String toString() {
+        return (name.isEmpty() ? shortId() : name + " (" + shortId() + ")") + " " + hops + (hops == 1 ? " hop" : " hops");
+    }
+}
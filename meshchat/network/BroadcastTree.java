@@ -0,0 +1,334 @@
+package meshchat.network;
+
+import meshchat.metrics.NodeMetrics;
+import meshchat.model.Message;
+import meshchat.util.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Epidemic broadcast tree (Plumtree) for messages sent to {@link Message#BROADCAST},
+ * also used by channel messages (pruned to the branches with subscribers).
+ *
+ * Every link is eager or lazy. A broadcast is pushed in full on eager links;
+ * lazy links only get its ID in a batched IHAVE. A node that receives a copy
+ * it already has PRUNEs the link it came on, so the eager links settle into a
+ * spanning tree and a broadcast costs about one transmission per node rather
+ * than one per link. When an announced ID does not arrive on the tree within
+ * {@link #GRAFT_MILLIS}, the node GRAFTs the announcing link: that link turns
+ * eager again and answers with the message, which repairs the tree after a
+ * loss or a link failure.
+ *
+ * IHAVE/GRAFT/PRUNE are link-local: ttl 0, sender in {@code from}, message IDs
+ * comma-separated in {@code text}. An announced channel message carries its
+ * group tag ({@code id/tag}) so a node with no subscriber behind it lets the
+ * message go instead of grafting. Nodes that predate them drop them as expired
+ * and keep flooding, which the tree tolerates.
+ */
+final class BroadcastTree {
+    private static final Log LOG = Log.get("PLUMTREE");
+
+    static final String IHAVE = "IHAVE";
+    static final String GRAFT = "GRAFT";
+    static final String PRUNE = "PRUNE";
+
+    private static final long IHAVE_MILLIS = Long.getLong("meshchat.plumtree.ihaveMillis", 50);
+    private static final long GRAFT_MILLIS = Long.getLong("meshchat.plumtree.graftMillis", 200);
+    private static final int IHAVE_BATCH = 32;
+    private static final int CACHE_SIZE = 1000;
+    private static final int MAX_MISSING = 1000;
+
+    private final String deviceId;
+    private final ScheduledExecutorService scheduler;
+    private final NodeMetrics metrics;
+    private final Map<PeerConnection, Link> links = new ConcurrentHashMap<>();
+    private volatile Runnable treeListener;
+    private volatile BiPredicate<String, PeerConnection> interest = (group, from) -> true;
+
+    // Recently received broadcasts as we sent them on, to answer GRAFTs
+    private final Map<String, byte[]> cache = new LinkedHashMap<>(CACHE_SIZE * 4 / 3 + 1) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Announced but not yet received: ID -> links that announced it, oldest first.
+    // Oldest IDs go first when full; their graft timers then find nothing to do.
+    // Locked before cache when both are needed
+    private final Map<String, ArrayDeque<PeerConnection>> missing = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArrayDeque<PeerConnection>> eldest) {
+            return size() > MAX_MISSING;
+        }
+    };
+
+    private static final class Link {
+        volatile boolean eager = true;
+        final List<String> pendingIhave = new ArrayList<>(); // guarded by itself
+    }
+
+    BroadcastTree(String deviceId, ScheduledExecutorService scheduler, NodeMetrics metrics) {
+        this.deviceId = deviceId;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+
+    static boolean isControl(String to) {
+        return IHAVE.equals(to) || GRAFT.equals(to) || PRUNE.equals(to);
+    }
+
+    /** New links start eager; duplicates prune them down to the tree. */
+    void addLink(PeerConnection conn) {
+        links.put(conn, new Link());
+    }
+
+    void removeLink(PeerConnection conn) {
+        links.remove(conn);
+    }
+
+    /**
+     * First copy of a broadcast. {@code encoded} is the message as relayed
+     * (TTL already decremented); {@code from} is null for our own broadcasts.
+     */
+    void received(String id, byte[] encoded, PeerConnection from) {
+        synchronized (missing) {
+            synchronized (cache) {
+                cache.put(id, encoded);
+            }
+            missing.remove(id);
+        }
+        Link link = from != null ? links.get(from) : null;
+        if (link != null && !link.eager) {
+            // Sent before our PRUNE reached it, which will leave its side lazy; re-graft so both agree
+            setEager(link, true);
+            sendControl(from, GRAFT, "");
+        }
+    }
+
+    /**
+     * A copy we already had: the link is redundant, so prune it. The PRUNE goes
+     * out even if our side is already lazy: a first copy that crossed our
+     * earlier PRUNE can leave the other side eager.
+     */
+    void duplicate(PeerConnection from) {
+        Link link = links.get(from);
+        if (link == null) return;
+        setEager(link, false);
+        metrics.broadcastPrunes.increment();
+        sendControl(from, PRUNE, "");
+    }
+
+    /**
+     * Fan-out: the full message on eager links, an IHAVE on lazy ones.
+     * @return links the message itself was sent on
+     */
+    int push(String id, PeerConnection exclude, Consumer<PeerConnection> send) {
+        return push(id, null, exclude, conn -> true, send);
+    }
+
+    /**
+     * Same for a message of {@code group} (announced with it), restricted to
+     * links {@code wants} accepts, e.g. those leading to a channel's subscribers.
+     */
+    int push(String id, String group, PeerConnection exclude, Predicate<PeerConnection> wants, Consumer<PeerConnection> send) {
+        String announced = group != null ? id + "/" + group : id;
+        int sent = 0;
+        for (Map.Entry<PeerConnection, Link> e : links.entrySet()) {
+            PeerConnection conn = e.getKey();
+            if (conn == exclude || !conn.isConnected() || !wants.test(conn)) continue;
+            if (e.getValue().eager) {
+                send.accept(conn);
+                sent++;
+            } else {
+                announce(conn, e.getValue(), announced);
+            }
+        }
+        return sent;
+    }
+
+    void onControl(Message msg, PeerConnection conn) {
+        Link link = links.get(conn);
+        if (link == null) return;
+        switch (msg.to()) {
+            case IHAVE -> {
+                // We send at most a batch per IHAVE; anything past that is not worth tracking
+                String[] entries = ids(msg.text());
+                for (int i = 0; i < Math.min(entries.length, IHAVE_BATCH); i++) {
+                    String entry = entries[i];
+                    int slash = entry.indexOf('/');
+                    if (slash < 0) {
+                        onIhave(entry, conn);
+                    } else if (interest.test(entry.substring(slash + 1), conn)) {
+                        onIhave(entry.substring(0, slash), conn);
+                    }
+                }
+            }
+            case GRAFT -> {
+                boolean wasLazy = !link.eager;
+                setEager(link, true);
+                for (String id : ids(msg.text())) {
+                    byte[] encoded;
+                    synchronized (cache) {
+                        encoded = cache.get(id);
+                    }
+                    if (encoded != null) conn.send(encoded, id);
+                }
+                // The link just rejoined the tree: fetch what it announced to us over it now,
+                // before our own timers graft some other link and close a cycle
+                List<String> wanted = wasLazy ? missingFrom(conn) : List.of();
+                if (!wanted.isEmpty()) sendControl(conn, GRAFT, String.join(",", wanted));
+            }
+            case PRUNE -> {
+                setEager(link, false);
+                if (!hasEagerLink()) {
+                    // Every neighbor pruned us at once (concurrent broadcasts racing
+                    // round a cycle); rejoin at once rather than wait for a GRAFT timer
+                    setEager(link, true);
+                    sendControl(conn, GRAFT, "");
+                }
+            }
+            default -> {}
+        }
+    }
+
+    /** Whether {@code conn} is a tree link on our side. */
+    boolean isEager(PeerConnection conn) {
+        Link link = links.get(conn);
+        return link != null && link.eager;
+    }
+
+    /** Called (on whichever thread made the change) whenever a link turns eager or lazy. */
+    void setTreeListener(Runnable listener) {
+        this.treeListener = listener;
+    }
+
+    /** Decides whether a message of a group, announced on a link, is needed here; by default all are. */
+    void setInterest(BiPredicate<String, PeerConnection> interest) {
+        this.interest = interest;
+    }
+
+    private void setEager(Link link, boolean eager) {
+        if (link.eager == eager) return;
+        link.eager = eager;
+        Runnable listener = treeListener;
+        if (listener != null) listener.run();
+    }
+
+    private boolean hasEagerLink() {
+        for (Link link : links.values()) {
+            if (link.eager) return true;
+        }
+        return false;
+    }
+
+    private void announce(PeerConnection conn, Link link, String id) {
+        boolean schedule;
+        List<String> batch = null;
+        synchronized (link.pendingIhave) {
+            schedule = link.pendingIhave.isEmpty();
+            link.pendingIhave.add(id);
+            if (link.pendingIhave.size() >= IHAVE_BATCH) {
+                batch = new ArrayList<>(link.pendingIhave);
+                link.pendingIhave.clear();
+            }
+        }
+        if (batch != null) {
+            sendIhave(conn, batch);
+        } else if (schedule) {
+            later(() -> flush(conn, link), IHAVE_MILLIS);
+        }
+    }
+
+    private void flush(PeerConnection conn, Link link) {
+        List<String> batch;
+        synchronized (link.pendingIhave) {
+            if (link.pendingIhave.isEmpty()) return;
+            batch = new ArrayList<>(link.pendingIhave);
+            link.pendingIhave.clear();
+        }
+        sendIhave(conn, batch);
+    }
+
+    private void sendIhave(PeerConnection conn, List<String> ids) {
+        if (!conn.isConnected()) return;
+        metrics.broadcastIhaves.add(ids.size());
+        sendControl(conn, IHAVE, String.join(",", ids));
+    }
+
+    private void onIhave(String id, PeerConnection from) {
+        boolean first;
+        synchronized (missing) {
+            synchronized (cache) {
+                if (cache.containsKey(id)) return;
+            }
+            ArrayDeque<PeerConnection> announcers = missing.get(id);
+            first = announcers == null;
+            if (first) missing.put(id, announcers = new ArrayDeque<>(2));
+            announcers.add(from);
+        }
+        // Jittered so the nodes at either end of a cut do not both graft and close the cycle again
+        if (first) later(() -> graft(id), GRAFT_MILLIS + ThreadLocalRandom.current().nextLong(GRAFT_MILLIS));
+    }
+
+    /** Still missing: ask the oldest live announcer for it and make that link eager. */
+    private void graft(String id) {
+        PeerConnection conn;
+        boolean more;
+        synchronized (missing) {
+            ArrayDeque<PeerConnection> announcers = missing.get(id);
+            if (announcers == null) return;
+            do {
+                conn = announcers.poll();
+            } while (conn != null && !links.containsKey(conn));
+            more = !announcers.isEmpty();
+            if (!more) missing.remove(id);
+        }
+        if (more) later(() -> graft(id), GRAFT_MILLIS / 2);
+        if (conn == null) return;
+        Link link = links.get(conn);
+        if (link != null) setEager(link, true);
+        metrics.broadcastGrafts.increment();
+        String host = conn.getRemoteHost();
+        LOG.debug(() -> "GRAFT " + id.substring(0, Math.min(8, id.length())) + " via " + host);
+        // Everything else it announced comes along; those timers stay armed in case this is lost
+        List<String> wanted = missingFrom(conn);
+        if (!wanted.contains(id)) wanted.add(id);
+        sendControl(conn, GRAFT, String.join(",", wanted));
+    }
+
+    private List<String> missingFrom(PeerConnection conn) {
+        List<String> ids = new ArrayList<>();
+        synchronized (missing) {
+            for (Map.Entry<String, ArrayDeque<PeerConnection>> e : missing.entrySet()) {
+                if (e.getValue().contains(conn)) ids.add(e.getKey());
+            }
+        }
+        return ids;
+    }
+
+    private void later(Runnable task, long millis) {
+        try {
+            scheduler.schedule(task, millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+            // Node is stopping
+        }
+    }
+
+    /** On the link's writer: IHAVEs and GRAFTs go out from timers. */
+    private void sendControl(PeerConnection conn, String type, String text) {
+        conn.sendSoon(new Message(UUID.randomUUID().toString(), deviceId, type, 0, text, System.currentTimeMillis()));
+    }
+
+    private static String[] ids(String text) {
+        return text.isEmpty() ? new String[0] : text.split(",");
+    }
+}
@@ -0,0 +1,220 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+import meshchat.routing.TopicDigest;
+import meshchat.util.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Channel subscriptions for this node and, per link, the {@link TopicDigest}
+ * the neighbor advertised. A channel message is only forwarded on links whose
+ * digest may lead to a subscriber within the message's remaining TTL, so
+ * group traffic scales with the subscribers rather than the mesh.
+ *
+ * Digests are aggregated over tree links only (the {@link BroadcastTree}'s
+ * eager links, when there is one): over a mesh with cycles every link would
+ * soon lead to every subscriber, while over a tree each link's digest is just
+ * the branch behind it.
+ *
+ * Digests ride on the HANDSHAKE text ({@code " subs=<digest>"}) and
+ * on a link-local SUBS message that doubles as a heartbeat: it goes out every
+ * {@link #HEARTBEAT_SECONDS} and shortly after anything that changes what we
+ * advertise. A link that never sent a digest is a node without channel
+ * support; it gets every channel message, as it would have before.
+ */
+final class ChannelSubscriptions {
+    private static final Log LOG = Log.get("CHANNELS");
+
+    static final String SUBS = "SUBS";
+    static final String HANDSHAKE_TAG = " subs=";
+
+    private static final int HEARTBEAT_SECONDS = Integer.getInteger("meshchat.channels.heartbeat", 5);
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    private final String deviceId;
+    private final ScheduledExecutorService scheduler;
+    private final Predicate<PeerConnection> treeLink;
+    private final Set<String> topics = ConcurrentHashMap.newKeySet();
+    private final Map<PeerConnection, Link> links = new ConcurrentHashMap<>();
+    private final AtomicBoolean advertisePending = new AtomicBoolean();
+
+    private static final class Link {
+        volatile TopicDigest heard; // null until the neighbor advertises
+        volatile TopicDigest sent;
+    }
+
+    /** @param treeLink links to aggregate digests over; null for all of them */
+    ChannelSubscriptions(String deviceId, ScheduledExecutorService scheduler, Predicate<PeerConnection> treeLink) {
+        this.deviceId = deviceId;
+        this.scheduler = scheduler;
+        this.treeLink = treeLink != null ? treeLink : conn -> true;
+    }
+
+    void start() {
+        scheduler.scheduleAtFixedRate(() -> advertise(true), HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /** Channel name as used in {@code Message.to} after the prefix: trimmed, lower case. */
+    static String normalize(String channel) {
+        String name = channel.startsWith(Message.CHANNEL_PREFIX) ? channel.substring(1) : channel;
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+
+    boolean join(String channel) {
+        boolean added = topics.add(normalize(channel));
+        if (added) scheduleAdvertise();
+        return added;
+    }
+
+    boolean leave(String channel) {
+        boolean removed = topics.remove(normalize(channel));
+        if (removed) scheduleAdvertise();
+        return removed;
+    }
+
+    boolean isSubscribed(String channel) {
+        return topics.contains(channel);
+    }
+
+    Set<String> subscriptions() {
+        return Collections.unmodifiableSet(topics);
+    }
+
+    /** HANDSHAKE field for a new link: everything we can reach so far. */
+    String handshakeField() {
+        return HANDSHAKE_TAG + digestExcluding(null).encode();
+    }
+
+    /** Registers a link once its HANDSHAKE (whose text may carry a digest) arrived. */
+    void addLink(PeerConnection conn, String handshakeText) {
+        Link link = new Link();
+        String digest = Handshake.field(handshakeText, HANDSHAKE_TAG);
+        if (digest != null) link.heard = TopicDigest.decode(digest);
+        links.put(conn, link);
+        scheduleAdvertise();
+    }
+
+    void removeLink(PeerConnection conn) {
+        if (links.remove(conn) != null) scheduleAdvertise();
+    }
+
+    void onDigest(Message msg, PeerConnection conn) {
+        Link link = links.get(conn);
+        if (link == null) return;
+        TopicDigest heard = TopicDigest.decode(msg.text());
+        if (!heard.equals(link.heard)) {
+            link.heard = heard;
+            LOG.debug(() -> "Digest from " + conn.getRemoteHost() + ": " + heard);
+            scheduleAdvertise();
+        }
+    }
+
+    /**
+     * Whether a channel message with {@code ttl} hops left should go out on
+     * {@code conn}: it may lead to a subscriber in range, or it never advertised.
+     */
+    boolean wants(PeerConnection conn, String channel, int ttl) {
+        Link link = links.get(conn);
+        if (link == null) return false;
+        TopicDigest heard = link.heard;
+        if (heard == null) return true;
+        int distance = heard.distance(channel);
+        return distance >= 0 && distance <= ttl;
+    }
+
+    /** Short form of a channel for IHAVEs: its hash in hex, enough for the digests. */
+    static String tag(String channel) {
+        return Integer.toHexString(channel.hashCode());
+    }
+
+    /**
+     * Whether a channel message announced (by {@link #tag}) on {@code from} is
+     * needed here: we are subscribed, or at least two other tree links lead to
+     * subscribers. With only one, that is most likely the side the message
+     * comes from on the tree, and grafting for it would only churn the tree;
+     * a subscriber further on that misses it grafts for itself.
+     */
+    boolean interested(String tag, PeerConnection from) {
+        int hash;
+        try {
+            hash = Integer.parseUnsignedInt(tag, 16);
+        } catch (NumberFormatException e) {
+            return true;
+        }
+        for (String topic : topics) {
+            if (topic.hashCode() == hash) return true;
+        }
+        int branches = 0;
+        for (Map.Entry<PeerConnection, Link> e : links.entrySet()) {
+            if (e.getKey() == from || !treeLink.test(e.getKey())) continue;
+            TopicDigest heard = e.getValue().heard;
+            if ((heard == null || heard.distance(hash) >= 0) && ++branches == 2) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Fan-out for a channel message when there is no broadcast tree.
+     * @return links sent on
+     */
+    int forward(String channel, int ttl, PeerConnection exclude, Consumer<PeerConnection> send) {
+        int sent = 0;
+        for (PeerConnection conn : links.keySet()) {
+            if (conn != exclude && conn.isConnected() && wants(conn, channel, ttl)) {
+                send.accept(conn);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /** The set of tree links changed, so the branch behind each link may have too. */
+    void onTreeChanged() {
+        scheduleAdvertise();
+    }
+
+    private TopicDigest digestExcluding(PeerConnection exclude) {
+        List<TopicDigest> heard = new ArrayList<>(links.size());
+        for (Map.Entry<PeerConnection, Link> e : links.entrySet()) {
+            TopicDigest d = e.getValue().heard;
+            if (e.getKey() != exclude && d != null && treeLink.test(e.getKey())) heard.add(d);
+        }
+        return TopicDigest.combine(topics, heard);
+    }
+
+    private void scheduleAdvertise() {
+        if (!advertisePending.compareAndSet(false, true)) return;
+        try {
+            scheduler.schedule(() -> {
+                advertisePending.set(false);
+                advertise(false);
+            }, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            advertisePending.set(false); // node is stopping
+        }
+    }
+
+    /**
+     * Sends each link its digest; unless this is the heartbeat, only where it
+     * changed. Runs on the scheduler, so the sends are queued on the links' writers.
+     */
+    private void advertise(boolean heartbeat) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<PeerConnection, Link> e : links.entrySet()) {
+            PeerConnection conn = e.getKey();
+            Link link = e.getValue();
+            TopicDigest digest = digestExcluding(conn);
+            if (!heartbeat && digest.equals(link.sent)) continue;
+            link.sent = digest;
+            conn.sendSoon(new Message(UUID.randomUUID().toString(), deviceId, SUBS, 0, digest.encode(), now));
+        }
+    }
+}
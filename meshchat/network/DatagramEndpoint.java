@@ -0,0 +1,90 @@
+package meshchat.network;
+
+import meshchat.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This node's unicast UDP socket for {@link DatagramPath}s, on the same port
+ * number as the TCP server (discovery's socket is a shared broadcast listener,
+ * so it cannot tell local nodes apart). Every link that offers datagrams gets
+ * an ID here, which the peer puts in front of each datagram, so one socket
+ * serves all links; a datagram also has to come from the link's host.
+ */
+final class DatagramEndpoint {
+    private static final Log LOG = Log.get("UDP");
+    private static final int ID_BYTES = 4;
+
+    private final DatagramSocket socket;
+    private final Map<Integer, PeerConnection> links = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    DatagramEndpoint(int port) throws SocketException {
+        this.socket = new DatagramSocket(port);
+    }
+
+    int port() {
+        return socket.getLocalPort();
+    }
+
+    /** Gives {@code conn} an ID for the peer to address its datagrams with. */
+    int register(PeerConnection conn) {
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt() & Integer.MAX_VALUE;
+        } while (id == 0 || links.putIfAbsent(id, conn) != null);
+        conn.setDatagramId(id);
+        return id;
+    }
+
+    void unregister(PeerConnection conn) {
+        int id = conn.getDatagramId();
+        if (id != 0) links.remove(id, conn);
+    }
+
+    /** Datagrams to the peer's socket, for the link it registered as {@code peerLinkId}. */
+    DatagramLink link(InetAddress host, int port, int peerLinkId) {
+        return (buf, off, len) -> {
+            byte[] data = new byte[ID_BYTES + len];
+            data[0] = (byte) (peerLinkId >>> 24);
+            data[1] = (byte) (peerLinkId >>> 16);
+            data[2] = (byte) (peerLinkId >>> 8);
+            data[3] = (byte) peerLinkId;
+            System.arraycopy(buf, off, data, ID_BYTES, len);
+            socket.send(new DatagramPacket(data, data.length, host, port));
+        };
+    }
+
+    void start() {
+        Thread.ofVirtual().start(() -> {
+            byte[] buf = new byte[ID_BYTES + DatagramLink.MAX_BYTES];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (running) {
+                try {
+                    packet.setLength(buf.length);
+                    socket.receive(packet);
+                    if (packet.getLength() <= ID_BYTES) continue;
+                    int id = (buf[0] & 0xff) << 24 | (buf[1] & 0xff) << 16 | (buf[2] & 0xff) << 8 | buf[3] & 0xff;
+                    PeerConnection conn = links.get(id);
+                    if (conn != null && packet.getAddress().equals(conn.getRemoteAddress())) {
+                        conn.onDatagram(buf, ID_BYTES, packet.getLength() - ID_BYTES);
+                    }
+                } catch (IOException e) {
+                    if (running) LOG.warn("Receive failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    void stop() {
+        running = false;
+        socket.close();
+    }
+}
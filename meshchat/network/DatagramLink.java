@@ -0,0 +1,17 @@
+package meshchat.network;
+
+import java.io.IOException;
+
+/**
+ * Unreliable, unordered delivery of single datagrams to the peer at the other
+ * end of a {@link PeerConnection}: a UDP socket, or an in-memory link in the
+ * simulator. Whatever arrives goes to the peer's
+ * {@link PeerConnection#onDatagram}.
+ */
+public interface DatagramLink {
+    /** Largest datagram worth sending; more than this goes on the stream. */
+    int MAX_BYTES = 1200;
+
+    /** Sends one datagram; it may be lost, duplicated or overtaken. */
+    void send(byte[] buf, int off, int len) throws IOException;
+}
@@ -0,0 +1,238 @@
+package meshchat.network;
+
+import meshchat.metrics.LinkStats;
+import meshchat.util.Log;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The datagram side of one link. Small unicast messages go to the peer one per
+ * datagram, each with its own sequence number, so a lost one holds up nothing
+ * behind it the way a lost TCP segment holds up the stream. The peer reports
+ * what arrived in a link-local {@link #FEEDBACK} message on the stream: the
+ * highest sequence number seen and a 64-bit mask of the ones below it, within
+ * {@link #TICK_MILLIS} of a gap showing up and otherwise every
+ * {@link #ACK_MILLIS} while datagrams arrive. Whatever it missed, or has not
+ * acknowledged within {@link #TAIL_MILLIS}, is sent again on the stream. A message that arrives
+ * both ways is dropped by the router's duplicate check like any other copy.
+ *
+ * If more than {@link #MAX_LOSS} of a sample of datagrams had to go again, or
+ * sending fails, the link sticks to the stream for {@link #BACKOFF_MILLIS}; a
+ * peer that never answers (UDP blocked) ends up there too. On an encrypted
+ * link datagrams are sealed with its keys ({@link LinkCipher#sealDatagram}),
+ * and the receive window also rejects replays.
+ */
+final class DatagramPath {
+    private static final Log LOG = Log.get("UDP");
+
+    static final String FEEDBACK = "DGRAM";
+    static final String HANDSHAKE_TAG = " udp=";
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("meshchat.udp", "true"));
+    static final long TICK_MILLIS = 50;
+
+    private static final int WINDOW = 256; // sent datagrams kept for resending; a power of two
+    private static final int SEQ_BYTES = 8;
+    private static final long ACK_MILLIS = 200;
+    private static final long TAIL_MILLIS = 300;
+    private static final int LOSS_SAMPLE = 64;
+    private static final double MAX_LOSS = 0.3;
+    private static final long BACKOFF_MILLIS = 10_000;
+
+    /** Where a message the peer did not get goes instead. */
+    interface Stream {
+        void resend(byte[] bytes, int len);
+    }
+
+    private final DatagramLink link;
+    private final LinkCipher cipher; // null on a plain link
+    private final Stream stream;
+    private final LinkStats stats;
+    private final String peer;
+
+    // Sending side, guarded by this. A slot's sequence number is 0 once settled.
+    private long nextSeq = 1;
+    private final long[] sentSeq = new long[WINDOW];
+    private final long[] sentAt = new long[WINDOW];
+    private final byte[][] sentBytes = new byte[WINDOW][];
+    private final int[] sentLen = new int[WINDOW];
+    private final byte[] packet = new byte[DatagramLink.MAX_BYTES];
+    private int sampleSent, sampleResent;
+    private long suspendedUntil;
+
+    // Receiving side, guarded by receiveLock
+    private final Object receiveLock = new Object();
+    private final byte[] opened = new byte[DatagramLink.MAX_BYTES];
+    private long highest;
+    private long seen; // bit i: datagram highest - i arrived
+    private boolean feedbackDue;
+    private long lastFeedback;
+    private long reported; // highest as of the last feedback
+
+    DatagramPath(DatagramLink link, LinkCipher cipher, Stream stream, LinkStats stats, String peer) {
+        this.link = link;
+        this.cipher = cipher;
+        this.stream = stream;
+        this.stats = stats;
+        this.peer = peer;
+    }
+
+    /**
+     * Sends one message as a datagram if it fits and the path is in use.
+     * @return false if it has to go on the stream instead
+     */
+    synchronized boolean send(byte[] bytes, int len, long now) {
+        int overhead = SEQ_BYTES + (cipher != null ? LinkCipher.DATAGRAM_OVERHEAD : 0);
+        if (len + overhead > DatagramLink.MAX_BYTES || now < suspendedUntil) return false;
+        long seq = nextSeq++;
+        int slot = (int) seq & (WINDOW - 1);
+        if (sentSeq[slot] != 0) resend(slot); // a whole window behind and still not acknowledged
+        byte[] copy = sentBytes[slot];
+        if (copy == null || copy.length < len) sentBytes[slot] = copy = new byte[Math.max(len, 256)];
+        System.arraycopy(bytes, 0, copy, 0, len);
+        sentSeq[slot] = seq;
+        sentAt[slot] = now;
+        sentLen[slot] = len;
+        for (int i = 0; i < SEQ_BYTES; i++) packet[i] = (byte) (seq >>> (56 - 8 * i));
+        try {
+            int n;
+            if (cipher != null) {
+                n = cipher.sealDatagram(seq, bytes, len, packet, SEQ_BYTES);
+            } else {
+                System.arraycopy(bytes, 0, packet, SEQ_BYTES, len);
+                n = len;
+            }
+            link.send(packet, 0, SEQ_BYTES + n);
+            stats.recordDatagram(len + 1, SEQ_BYTES + n);
+        } catch (IOException | GeneralSecurityException e) {
+            sentSeq[slot] = 0;
+            suspend(now, "send failed: " + e.getMessage());
+            return false;
+        }
+        sampleSent++;
+        return true;
+    }
+
+    /** The peer's report of what arrived: "highest mask", the mask in hex. */
+    synchronized void onFeedback(String text, long now) {
+        long top, mask;
+        try {
+            int space = text.indexOf(' ');
+            top = Long.parseLong(text.substring(0, space));
+            mask = Long.parseUnsignedLong(text.substring(space + 1), 16);
+        } catch (RuntimeException e) {
+            return;
+        }
+        for (int i = 0; i < WINDOW; i++) {
+            long seq = sentSeq[i];
+            if (seq == 0 || seq > top) continue;
+            long behind = top - seq;
+            if (behind < 64 && (mask & (1L << behind)) != 0) {
+                sentSeq[i] = 0;
+            } else if (behind >= 64 || now - sentAt[i] >= TICK_MILLIS) {
+                resend(i); // not just overtaken by a later one
+            }
+        }
+    }
+
+    /**
+     * Opens a datagram from the peer into {@code frame}.
+     * @return false for a replay, one too old to tell, or one that is not authentic
+     */
+    boolean receive(byte[] buf, int off, int len, Frame frame) {
+        if (len <= SEQ_BYTES) return false;
+        long seq = 0;
+        for (int i = 0; i < SEQ_BYTES; i++) seq = seq << 8 | buf[off + i] & 0xff;
+        if (seq <= 0) return false;
+        synchronized (receiveLock) {
+            if (seq + 64 <= highest) return false;
+            if (seq <= highest && (seen & (1L << (highest - seq))) != 0) return false;
+            byte[] src = buf;
+            int srcOff = off + SEQ_BYTES;
+            int n = len - SEQ_BYTES;
+            if (cipher != null) {
+                try {
+                    n = cipher.openDatagram(seq, buf, srcOff, n, opened);
+                } catch (GeneralSecurityException e) {
+                    return false;
+                }
+                src = opened;
+                srcOff = 0;
+            }
+            frame.ensureCapacity(n);
+            System.arraycopy(src, srcOff, frame.buf, 0, n);
+            frame.len = n;
+            if (seq > highest) {
+                long shift = seq - highest;
+                seen = shift >= 64 ? 1 : seen << shift | 1;
+                highest = seq;
+            } else {
+                seen |= 1L << (highest - seq);
+            }
+            feedbackDue = true;
+            return true;
+        }
+    }
+
+    /**
+     * Resends what the peer should have acknowledged by now and checks the
+     * loss sample.
+     * @return feedback for the peer, or null if none is due
+     */
+    String tick(long now) {
+        synchronized (this) {
+            for (int i = 0; i < WINDOW; i++) {
+                if (sentSeq[i] != 0 && now - sentAt[i] > TAIL_MILLIS) resend(i);
+            }
+            if (sampleSent >= LOSS_SAMPLE) {
+                if (sampleResent > MAX_LOSS * sampleSent) {
+                    suspend(now, sampleResent + " of " + sampleSent + " datagrams resent");
+                }
+                sampleSent = sampleResent = 0;
+            }
+        }
+        synchronized (receiveLock) {
+            if (!feedbackDue) return null;
+            // A new gap: one of the datagrams after the last reported highest is missing
+            long fresh = Math.min(64, highest - reported);
+            long freshMask = fresh == 64 ? -1L : (1L << fresh) - 1;
+            boolean gap = (seen & freshMask) != freshMask;
+            if (!gap && now - lastFeedback < ACK_MILLIS) return null;
+            feedbackDue = false;
+            lastFeedback = now;
+            reported = highest;
+            return highest + " " + Long.toHexString(seen);
+        }
+    }
+
+    /**
+     * Everything sent that the peer has not acknowledged, oldest first, and
+     * settled from now on; for when the link goes away under it.
+     */
+    synchronized List<byte[]> takeUnsettled() {
+        List<byte[]> unsettled = new ArrayList<>();
+        for (long seq = Math.max(1, nextSeq - WINDOW); seq < nextSeq; seq++) {
+            int slot = (int) seq & (WINDOW - 1);
+            if (sentSeq[slot] != seq) continue;
+            sentSeq[slot] = 0;
+            unsettled.add(Arrays.copyOf(sentBytes[slot], sentLen[slot]));
+        }
+        return unsettled;
+    }
+
+    private void resend(int slot) {
+        sentSeq[slot] = 0;
+        sampleResent++;
+        stats.recordDatagramResent();
+        stream.resend(sentBytes[slot], sentLen[slot]);
+    }
+
+    private void suspend(long now, String why) {
+        if (now < suspendedUntil) return;
+        suspendedUntil = now + BACKOFF_MILLIS;
+        LOG.info("Datagrams to " + peer + " off for " + BACKOFF_MILLIS / 1000 + "s: " + why);
+    }
+}
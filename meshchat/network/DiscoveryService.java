@@ -1,8 +1,10 @@
 package meshchat.network;
 
+import meshchat.metrics.NodeMetrics;
+import meshchat.util.Log;
+
 import java.net.*;
 import java.util.*;
-import java.util.function.BiConsumer;
 
 /**
  * Peer discovery using UDP broadcast.
@@ -15,17 +17,29 @@ import java.util.function.BiConsumer;
  *  - Logs all IPs so users can manually connect if UDP is blocked
  */
 public class DiscoveryService {
+    private static final Log LOG = Log.get("DISCOVERY");
+    private static final Log NETWORK_LOG = Log.get("NETWORK");
+
     public static final int DISCOVERY_PORT = 45679;
     public static final int TCP_PORT = 45678;
     private static final int BROADCAST_INTERVAL_MS = 2000;
 
+    /** Called for every beacon from another device. */
+    public interface PeerListener {
+        void onPeerDiscovered(String deviceId, String host, int tcpPort);
+    }
+
     private final String deviceId;
-    private final BiConsumer<String, String> onPeerDiscovered; // (deviceId, host)
+    private final int tcpPort;
+    private final PeerListener onPeerDiscovered;
+    private final NodeMetrics metrics;
     private volatile boolean running = false;
 
-    public DiscoveryService(String deviceId, BiConsumer<String, String> onPeerDiscovered) {
+    public DiscoveryService(String deviceId, int tcpPort, PeerListener onPeerDiscovered, NodeMetrics metrics) {
         this.deviceId = deviceId;
+        this.tcpPort = tcpPort;
         this.onPeerDiscovered = onPeerDiscovered;
+        this.metrics = metrics;
     }
 
     public void start() {
@@ -43,7 +57,7 @@ public class DiscoveryService {
      * Print all local IPs to console — critical for manual connection fallback.
      */
     public static void printLocalAddresses() {
-        System.out.println("[NETWORK] Local IP addresses on this machine:");
+        NETWORK_LOG.info("Local IP addresses on this machine:");
         try {
             Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces();
             while (ifaces.hasMoreElements()) {
@@ -53,12 +67,12 @@ public class DiscoveryService {
                 while (addrs.hasMoreElements()) {
                     InetAddress addr = addrs.nextElement();
                     if (addr instanceof Inet4Address) {
-                        System.out.println("[NETWORK]   " + iface.getDisplayName() + " -> " + addr.getHostAddress());
+                        NETWORK_LOG.info("  " + iface.getDisplayName() + " -> " + addr.getHostAddress());
                     }
                 }
             }
         } catch (SocketException e) {
-            System.err.println("[NETWORK] Could not enumerate interfaces: " + e.getMessage());
+            NETWORK_LOG.warn("Could not enumerate interfaces: " + e.getMessage());
         }
     }
 
@@ -84,7 +98,7 @@ public class DiscoveryService {
                 }
             }
         } catch (SocketException e) {
-            System.err.println("[DISCOVERY] Interface enum error: " + e.getMessage());
+            LOG.warn("Interface enum error: " + e.getMessage());
         }
         return result;
     }
@@ -109,7 +123,7 @@ public class DiscoveryService {
 
     private void startBroadcasting() {
         Thread.ofVirtual().start(() -> {
-            String payload = "MESHCHAT:" + deviceId + ":" + TCP_PORT;
+            String payload = "MESHCHAT:" + deviceId + ":" + tcpPort;
             byte[] buf = payload.getBytes();
 
             while (running) {
@@ -136,19 +150,19 @@ public class DiscoveryService {
                             // Send subnet-directed broadcast
                             InetAddress broadcastAddr = subnetBroadcast(localAddr, prefixLen);
                             sendBroadcast(socket, buf, broadcastAddr);
-                            System.out.println("[DISCOVERY] Broadcast from " + localAddr.getHostAddress()
+                            LOG.debug(() -> "Broadcast from " + localAddr.getHostAddress()
                                 + " -> " + broadcastAddr.getHostAddress() + ":" + DISCOVERY_PORT);
 
                             // Also send to 255.255.255.255 as fallback
                             sendBroadcast(socket, buf, InetAddress.getByName("255.255.255.255"));
 
                         } catch (Exception e) {
-                            System.err.println("[DISCOVERY] Broadcast error on " + localAddr.getHostAddress() + ": " + e.getMessage());
+                            LOG.warn("Broadcast error on " + localAddr.getHostAddress() + ": " + e.getMessage());
                         }
                     }
 
                     if (lanAddresses.isEmpty()) {
-                        System.err.println("[DISCOVERY] WARNING: No LAN interfaces found! Check network connection.");
+                        LOG.warn("WARNING: No LAN interfaces found! Check network connection.");
                     }
 
                     Thread.sleep(BROADCAST_INTERVAL_MS);
@@ -156,7 +170,7 @@ public class DiscoveryService {
                 } catch (InterruptedException e) {
                     break;
                 } catch (Exception e) {
-                    System.err.println("[DISCOVERY] Broadcast loop error: " + e.getMessage());
+                    LOG.warn("Broadcast loop error: " + e.getMessage());
                     try { Thread.sleep(2000); } catch (InterruptedException ie) { break; }
                 }
             }
@@ -167,6 +181,7 @@ public class DiscoveryService {
         try {
             DatagramPacket packet = new DatagramPacket(buf, buf.length, target, DISCOVERY_PORT);
             socket.send(packet);
+            metrics.beaconsSent.increment();
         } catch (Exception e) {
             // Suppress - some targets may be unreachable
         }
@@ -183,7 +198,7 @@ public class DiscoveryService {
                 socket.setSoTimeout(1000);
                 socket.bind(new InetSocketAddress(DISCOVERY_PORT));
 
-                System.out.println("[DISCOVERY] Listening for UDP broadcasts on port " + DISCOVERY_PORT);
+                LOG.info("Listening for UDP broadcasts on port " + DISCOVERY_PORT);
 
                 byte[] buf = new byte[512];
                 while (running) {
@@ -198,10 +213,12 @@ public class DiscoveryService {
                             String[] parts = msg.split(":");
                             if (parts.length >= 3) {
                                 String peerId = parts[1];
+                                int peerPort = parsePort(parts[2]);
                                 if (!peerId.equals(deviceId)) {
-                                    System.out.println("[DISCOVERY] Found peer: "
+                                    metrics.beaconsReceived.increment();
+                                    LOG.debug(() -> "Found peer: "
                                         + peerId.substring(0, 8) + "... @ " + senderHost);
-                                    onPeerDiscovered.accept(peerId, senderHost);
+                                    onPeerDiscovered.onPeerDiscovered(peerId, senderHost, peerPort);
                                 }
                             }
                         }
@@ -209,16 +226,24 @@ public class DiscoveryService {
                         // Normal timeout, loop again
                     } catch (Exception e) {
                         if (running) {
-                            System.err.println("[DISCOVERY] Receive error: " + e.getMessage());
+                            LOG.warn("Receive error: " + e.getMessage());
                         }
                     }
                 }
             } catch (Exception e) {
-                System.err.println("[DISCOVERY] FATAL: Cannot bind to UDP port " + DISCOVERY_PORT + ": " + e.getMessage());
-                System.err.println("[DISCOVERY] Another app may be using port " + DISCOVERY_PORT + ". Try restarting.");
+                LOG.error("FATAL: Cannot bind to UDP port " + DISCOVERY_PORT + ": " + e.getMessage());
+                LOG.error("Another app may be using port " + DISCOVERY_PORT + ". Try restarting.");
             } finally {
                 if (socket != null && !socket.isClosed()) socket.close();
             }
         });
     }
+
+    private static int parsePort(String s) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException e) {
+            return TCP_PORT;
+        }
+    }
 }
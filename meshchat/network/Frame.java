@@ -0,0 +1,226 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One received line (a JSON message) in a pooled, reusable buffer.
+ *
+ * {@link #scan()} locates the fields routing needs (id, from, to, ttl, ttl0, trace, paths)
+ * in place, so a relay can dedup, forward and drop without building a
+ * {@code Message}; {@link #decrementTtl()} patches the TTL digits so the same
+ * bytes go back out. Only messages delivered locally are fully decoded.
+ *
+ * Whoever holds a frame must {@link #release()} it exactly once.
+ */
+final class Frame {
+    private static final byte[] KEY_ID = bytes("id");
+    private static final byte[] KEY_FROM = bytes("from");
+    private static final byte[] KEY_TO = bytes("to");
+    private static final byte[] KEY_TTL = bytes("ttl");
+    private static final byte[] KEY_TRACE = bytes("trace");
+    private static final byte[] KEY_TTL0 = bytes("ttl0");
+    private static final byte[] KEY_PATHS = bytes("paths");
+
+    private final FramePool pool;
+    byte[] buf;
+    int len;
+
+    // Set while the frame moves through the ingest stages
+    PeerConnection source;
+    Message decoded; // non-null when the frame took the full-decode path
+    int shard;
+    boolean broadcast; // fan out along the broadcast tree rather than to every neighbor
+
+    private int idOff, idLen, fromOff, fromLen, toOff, toLen, ttlOff, ttlLen;
+    private int ttl;
+    private int initialTtl;
+    private int paths;
+    private boolean traced;
+
+    Frame(FramePool pool, int capacity) {
+        this.pool = pool;
+        this.buf = new byte[capacity];
+    }
+
+    void ensureCapacity(int capacity) {
+        if (capacity > buf.length) buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+    }
+
+    void release() {
+        pool.release(this);
+    }
+
+    /**
+     * Finds the routing fields. Returns false when the frame is not a flat
+     * JSON object with plain (unescaped) id/from/to strings and an integer
+     * ttl; callers then fall back to a full decode.
+     */
+    boolean scan() {
+        idLen = fromLen = toLen = ttlLen = -1;
+        initialTtl = paths = 0;
+        traced = false;
+        int i = skipWs(0);
+        if (i >= len || buf[i] != '{') return false;
+        i = skipWs(i + 1);
+        if (i < len && buf[i] == '}') return false;
+        while (i < len) {
+            if (buf[i] != '"') return false;
+            int keyOff = i + 1;
+            int keyEnd = endOfString(keyOff);
+            if (keyEnd < 0) return false;
+            i = skipWs(keyEnd + 1);
+            if (i >= len || buf[i] != ':') return false;
+            i = skipWs(i + 1);
+            if (i >= len) return false;
+
+            int valOff, valEnd;
+            boolean plain = true;
+            if (buf[i] == '"') {
+                valOff = i + 1;
+                valEnd = endOfString(valOff);
+                if (valEnd < 0) return false;
+                for (int j = valOff; j < valEnd; j++) {
+                    if (buf[j] == '\\') { plain = false; break; }
+                }
+                i = valEnd + 1;
+            } else if (buf[i] == '{' || buf[i] == '[') {
+                return false;
+            } else {
+                valOff = i;
+                while (i < len && buf[i] != ',' && buf[i] != '}' && !isWs(buf[i])) i++;
+                valEnd = i;
+            }
+
+            int keyLen = keyEnd - keyOff;
+            if (keyIs(keyOff, keyLen, KEY_ID)) {
+                if (!plain) return false;
+                idOff = valOff; idLen = valEnd - valOff;
+            } else if (keyIs(keyOff, keyLen, KEY_FROM)) {
+                if (!plain) return false;
+                fromOff = valOff; fromLen = valEnd - valOff;
+            } else if (keyIs(keyOff, keyLen, KEY_TO)) {
+                if (!plain) return false;
+                toOff = valOff; toLen = valEnd - valOff;
+            } else if (keyIs(keyOff, keyLen, KEY_TTL)) {
+                if (!parseTtl(valOff, valEnd)) return false;
+            } else if (keyIs(keyOff, keyLen, KEY_TTL0)) {
+                if ((initialTtl = digits(valOff, valEnd)) < 0) return false;
+            } else if (keyIs(keyOff, keyLen, KEY_PATHS)) {
+                if ((paths = digits(valOff, valEnd)) < 0) return false;
+                paths = Math.min(paths, Message.MAX_PATHS);
+            } else if (keyIs(keyOff, keyLen, KEY_TRACE)) {
+                traced = !(valEnd - valOff == 4 && buf[valOff] == 'n'); // "trace":null is untraced
+            }
+
+            i = skipWs(i);
+            if (i >= len) return false;
+            if (buf[i] == '}') break;
+            if (buf[i] != ',') return false;
+            i = skipWs(i + 1);
+        }
+        return idLen >= 0 && fromLen >= 0 && toLen >= 0 && ttlLen > 0;
+    }
+
+    int ttl() {
+        return ttl;
+    }
+
+    /** Links crossed when received, as {@code Message.hops()}; {@code defaultTtl} applies without a ttl0. */
+    int hops(int defaultTtl) {
+        return (initialTtl != 0 ? initialTtl : defaultTtl) - ttl + 1;
+    }
+
+    boolean isTraced() {
+        return traced;
+    }
+
+    /** Next hops to send on, as {@code Message.paths()}; 0 floods. */
+    int paths() {
+        return paths;
+    }
+
+    int idOffset() { return idOff; }
+    int idLength() { return idLen; }
+    int fromOffset() { return fromOff; }
+    int fromLength() { return fromLen; }
+    int toOffset() { return toOff; }
+    int toLength() { return toLen; }
+
+    boolean toEquals(byte[] value) {
+        return Arrays.equals(buf, toOff, toOff + toLen, value, 0, value.length);
+    }
+
+    String id() {
+        return new String(buf, idOff, idLen, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Rewrites the ttl digits in place as ttl - 1, left-padded with spaces
+     * (JSON whitespace) so the frame length does not change.
+     */
+    void decrementTtl() {
+        int v = --ttl;
+        int i = ttlOff + ttlLen;
+        do {
+            buf[--i] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        while (i > ttlOff) buf[--i] = ' ';
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private boolean parseTtl(int from, int to) {
+        int v = digits(from, to);
+        if (v < 0) return false;
+        ttl = v;
+        ttlOff = from;
+        ttlLen = to - from;
+        return true;
+    }
+
+    /** Non-negative integer in {@code buf[from, to)}, or -1. */
+    private int digits(int from, int to) {
+        if (from == to || to - from > 9) return -1;
+        int v = 0;
+        for (int j = from; j < to; j++) {
+            int d = buf[j] - '0';
+            if (d < 0 || d > 9) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    private int endOfString(int i) {
+        while (i < len) {
+            byte b = buf[i];
+            if (b == '\\') i += 2;
+            else if (b == '"') return i;
+            else i++;
+        }
+        return -1;
+    }
+
+    private boolean keyIs(int off, int n, byte[] key) {
+        return Arrays.equals(buf, off, off + n, key, 0, key.length);
+    }
+
+    private int skipWs(int i) {
+        while (i < len && isWs(buf[i])) i++;
+        return i;
+    }
+
+    private static boolean isWs(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
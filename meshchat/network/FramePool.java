@@ -0,0 +1,37 @@
+package meshchat.network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded free list of {@link Frame}s shared by all connections. Acquire
+ * falls back to allocating when the list is empty; release drops frames when
+ * it is full and shrinks buffers that grew past {@link #RETAIN_BYTES}, so one
+ * large message does not pin a large buffer forever.
+ */
+final class FramePool {
+    static final FramePool SHARED = new FramePool(1024);
+
+    private static final int INITIAL_BYTES = 512;
+    private static final int RETAIN_BYTES = 16 * 1024;
+
+    private final ArrayBlockingQueue<Frame> free;
+
+    FramePool(int capacity) {
+        this.free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    Frame acquire() {
+        Frame f = free.poll();
+        if (f == null) f = new Frame(this, INITIAL_BYTES);
+        f.len = 0;
+        return f;
+    }
+
+    void release(Frame f) {
+        f.source = null;
+        f.decoded = null;
+        f.broadcast = false;
+        if (f.buf.length > RETAIN_BYTES) f.buf = new byte[INITIAL_BYTES];
+        free.offer(f);
+    }
+}
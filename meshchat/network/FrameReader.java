@@ -0,0 +1,150 @@
+package meshchat.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Newline-delimited frame reader with a hard size cap, reading straight into
+ * pooled {@link Frame} buffers.
+ *
+ * Unlike {@code BufferedReader.readLine()} it never buffers more than
+ * {@code maxFrameBytes} of a single line: the remainder of an oversized frame is
+ * skipped and the frame is reported through {@link #lastFrameOversized()}.
+ * After {@link #decrypt} the rest of the stream is read as sealed records,
+ * after {@link #inflate} as deflate data; both can be on, decrypt first.
+ */
+final class FrameReader {
+    private InputStream in;
+    private final int maxFrameBytes;
+    private final FramePool pool;
+    private final byte[] buf = new byte[8192];
+    private int pos, limit;
+    private long lastFrameBytes;
+    private boolean oversized;
+    private Inflater inflater;
+    private byte[] dictionary;
+    private byte[] raw;
+
+    FrameReader(InputStream in, int maxFrameBytes, FramePool pool) {
+        this.in = in;
+        this.maxFrameBytes = maxFrameBytes;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the next frame without its line terminator (empty if oversized),
+     *         or null at end of stream; the caller owns and must release it
+     */
+    Frame next() throws IOException {
+        Frame frame = pool.acquire();
+        oversized = false;
+        long total = 0;
+        while (true) {
+            if (pos == limit) {
+                limit = fill();
+                pos = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    lastFrameBytes = total;
+                    if (total > 0 && !oversized) return trimmed(frame); // unterminated last line
+                    frame.release();
+                    return null;
+                }
+            }
+            // Copy up to the next newline in one go
+            int start = pos;
+            while (pos < limit && buf[pos] != '\n') pos++;
+            int n = pos - start;
+            total += n;
+            if (!oversized) {
+                if (frame.len + n > maxFrameBytes) {
+                    oversized = true;
+                    frame.len = 0;
+                } else {
+                    frame.ensureCapacity(frame.len + n);
+                    System.arraycopy(buf, start, frame.buf, frame.len, n);
+                    frame.len += n;
+                }
+            }
+            if (pos < limit) {
+                pos++; // newline
+                break;
+            }
+        }
+        lastFrameBytes = total + 1;
+        return trimmed(frame);
+    }
+
+    /**
+     * Everything after the frame last returned is {@link LinkCipher} records,
+     * including whatever was already read ahead. A record may hold a whole
+     * frame, so one much over the frame cap ends the link instead of being skipped.
+     */
+    void decrypt(LinkCipher cipher) {
+        InputStream rest = in;
+        if (limit > pos) {
+            rest = new SequenceInputStream(new ByteArrayInputStream(Arrays.copyOfRange(buf, pos, limit)), rest);
+        }
+        in = cipher.opening(rest, (int) Math.min(Integer.MAX_VALUE, maxFrameBytes + 4096L));
+        pos = limit = 0;
+    }
+
+    /**
+     * Everything after the frame last returned is a deflate stream primed with
+     * {@code dictionary}, including whatever was already read ahead.
+     */
+    void inflate(byte[] dictionary) {
+        end();
+        this.inflater = new Inflater();
+        this.dictionary = dictionary;
+        this.raw = new byte[buf.length];
+        int ahead = limit - pos;
+        System.arraycopy(buf, pos, raw, 0, ahead);
+        inflater.setInput(raw, 0, ahead);
+        pos = limit = 0;
+    }
+
+    void end() {
+        if (inflater != null) inflater.end();
+    }
+
+    private int fill() throws IOException {
+        if (inflater == null) return in.read(buf, 0, buf.length);
+        try {
+            while (true) {
+                int n = inflater.inflate(buf, 0, buf.length);
+                if (n > 0) return n;
+                if (inflater.needsDictionary()) {
+                    inflater.setDictionary(dictionary);
+                } else if (inflater.finished()) {
+                    return -1;
+                } else {
+                    int read = in.read(raw, 0, raw.length);
+                    if (read <= 0) return -1;
+                    inflater.setInput(raw, 0, read);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Bad compressed stream: " + e.getMessage(), e);
+        }
+    }
+
+    /** Size of the frame last returned, including the newline; uncompressed once inflating. */
+    long lastFrameBytes() {
+        return lastFrameBytes;
+    }
+
+    boolean lastFrameOversized() {
+        return oversized;
+    }
+
+    private static Frame trimmed(Frame frame) {
+        if (frame.len > 0 && frame.buf[frame.len - 1] == '\r') frame.len--;
+        return frame;
+    }
+}
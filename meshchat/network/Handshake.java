@@ -0,0 +1,155 @@
+package meshchat.network;
+
+import java.util.List;
+
+/**
+ * What one side's HANDSHAKE says it can do and how it wants the link run.
+ * The text is the sender's device ID followed by space-separated
+ * {@code name=value} fields; version 2 leads with
+ *
+ * <pre>
+ * &lt;deviceId&gt; v=2 caps=ff frame=65536 linger=500 hb=5000 codec=deflate subs=... udp=... key=... nonce=...
+ * </pre>
+ *
+ * {@code caps} is a bitmap of the features below, {@code frame} the largest
+ * frame the sender reads, {@code linger} how many µs it lets writes wait to
+ * go out together, {@code hb} its heartbeat interval in ms and {@code codec}
+ * the codecs it speaks, preferred first. Both sides agree by the same rules
+ * ({@link #agree}), so each end arrives at the same {@link LinkParameters}
+ * without another round trip: a feature runs only if both set its bit.
+ *
+ * Nodes from before version 2 send no {@code v=}; what they can do is read
+ * off the fields they do send and everything newer stays off, so mixed
+ * meshes run each link on what its two ends share. Unknown fields and bits
+ * are ignored, which leaves the same room for whatever comes next.
+ */
+record Handshake(int version, int capabilities, int maxFrameBytes, int lingerMicros, int heartbeatMillis,
+                 List<String> codecs) {
+    static final int VERSION = 2;
+
+    /** Channel digests ({@code subs=}) and SUBS. */
+    static final int CHANNELS = 1;
+    /** Deflate once the link is worth it ({@code codec=}). */
+    static final int COMPRESSION = 1 << 1;
+    /** AES-GCM with keys agreed in the HANDSHAKE ({@code key=}, {@code nonce=}). */
+    static final int ENCRYPTION = 1 << 2;
+    /** Small unicast messages as datagrams ({@code udp=}). */
+    static final int DATAGRAMS = 1 << 3;
+    /** {@link PeerConnection#PING} when idle, and links that go quiet are closed. */
+    static final int HEARTBEAT = 1 << 4;
+    /** Writes may wait up to the agreed linger and go out together. */
+    static final int BATCHING = 1 << 5;
+    /** {@link PresenceDirectory#PRESENCE} gossip. */
+    static final int PRESENCE = 1 << 6;
+    /** Links resume their {@link LinkSession} after a reconnect ({@code session=}, {@code acked=}). */
+    static final int SESSIONS = 1 << 7;
+    /** What a version 1 HANDSHAKE can say at all. */
+    static final int V1_CAPABILITIES = CHANNELS | COMPRESSION | ENCRYPTION | DATAGRAMS;
+
+    static final int LINGER_MICROS = Integer.getInteger("meshchat.link.linger", 500);
+    static final int HEARTBEAT_MILLIS = Integer.getInteger("meshchat.link.heartbeat", 5000);
+
+    private static final String VERSION_TAG = " v=";
+    private static final String CAPABILITIES_TAG = " caps=";
+    private static final String FRAME_TAG = " frame=";
+    private static final String LINGER_TAG = " linger=";
+    private static final String HEARTBEAT_TAG = " hb=";
+    private static final String CODEC_TAG = " codec=";
+
+    /**
+     * What this node offers on a new link.
+     * @param version {@link #VERSION}, or 1 to speak like the nodes before it
+     */
+    static Handshake local(int version, boolean compression, boolean encryption, boolean datagrams, int maxFrameBytes) {
+        int caps = CHANNELS | (compression ? COMPRESSION : 0) | (encryption ? ENCRYPTION : 0) | (datagrams ? DATAGRAMS : 0)
+            | (HEARTBEAT_MILLIS > 0 ? HEARTBEAT : 0) | BATCHING | PRESENCE
+            | (LinkSession.GRACE_MILLIS > 0 ? SESSIONS : 0);
+        if (version < VERSION) return new Handshake(version, caps & V1_CAPABILITIES, 0, 0, 0, codecs(caps));
+        return new Handshake(version, caps, maxFrameBytes, LINGER_MICROS, HEARTBEAT_MILLIS, codecs(caps));
+    }
+
+    private static List<String> codecs(int caps) {
+        return (caps & COMPRESSION) != 0 ? List.of(LinkCompression.CODEC) : List.of();
+    }
+
+    /** The fields this adds to a HANDSHAKE text, each with its leading space. */
+    String encode() {
+        StringBuilder text = new StringBuilder();
+        if (version >= 2) {
+            text.append(VERSION_TAG).append(version)
+                .append(CAPABILITIES_TAG).append(Integer.toHexString(capabilities))
+                .append(FRAME_TAG).append(maxFrameBytes)
+                .append(LINGER_TAG).append(lingerMicros)
+                .append(HEARTBEAT_TAG).append(heartbeatMillis);
+        }
+        if (!codecs.isEmpty()) text.append(CODEC_TAG).append(String.join(",", codecs));
+        return text.toString();
+    }
+
+    /** Reads a HANDSHAKE text; one without a version is read as version 1. */
+    static Handshake parse(String text) {
+        String codecField = field(text, CODEC_TAG);
+        List<String> codecs = codecField != null ? List.of(codecField.split(",")) : List.of();
+        int version = intField(text, VERSION_TAG, 1);
+        if (version < 2) {
+            int caps = (field(text, ChannelSubscriptions.HANDSHAKE_TAG) != null ? CHANNELS : 0)
+                | (!codecs.isEmpty() ? COMPRESSION : 0)
+                | (field(text, LinkSecurity.NONCE) != null ? ENCRYPTION : 0)
+                | (field(text, DatagramPath.HANDSHAKE_TAG) != null ? DATAGRAMS : 0);
+            return new Handshake(1, caps, 0, 0, 0, codecs);
+        }
+        int caps;
+        try {
+            caps = Integer.parseUnsignedInt(field(text, CAPABILITIES_TAG), 16);
+        } catch (RuntimeException e) {
+            caps = 0;
+        }
+        return new Handshake(version, caps, intField(text, FRAME_TAG, 0), intField(text, LINGER_TAG, 0),
+            intField(text, HEARTBEAT_TAG, 0), codecs);
+    }
+
+    /**
+     * The parameters for a link with {@code peer}; both ends get the same
+     * ones. Features need both bits; the first of our codecs the peer speaks
+     * wins; linger is the shorter of the two and the heartbeat the slower.
+     * The frame limit is the peer's, since it is what the peer will read.
+     */
+    LinkParameters agree(Handshake peer) {
+        int caps = capabilities & peer.capabilities;
+        String codec = null;
+        if ((caps & COMPRESSION) != 0) {
+            for (String c : codecs) {
+                if (peer.codecs.contains(c)) {
+                    codec = c;
+                    break;
+                }
+            }
+        }
+        return new LinkParameters(
+            Math.min(version, peer.version),
+            caps,
+            peer.maxFrameBytes,
+            (caps & BATCHING) != 0 ? Math.max(0, Math.min(lingerMicros, peer.lingerMicros)) : 0,
+            (caps & HEARTBEAT) != 0 ? Math.max(heartbeatMillis, peer.heartbeatMillis) : 0,
+            codec);
+    }
+
+    /** Value of {@code " name="} in a HANDSHAKE text, up to the next space; null if absent. */
+    static String field(String text, String name) {
+        int at = text.indexOf(name);
+        if (at < 0) return null;
+        int start = at + name.length();
+        int end = text.indexOf(' ', start);
+        return text.substring(start, end < 0 ? text.length() : end);
+    }
+
+    private static int intField(String text, String name, int absent) {
+        String value = field(text, name);
+        if (value == null) return absent;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return absent;
+        }
+    }
+}
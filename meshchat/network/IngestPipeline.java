@@ -0,0 +1,116 @@
+package meshchat.network;
+
+import meshchat.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Staged receive path for one node. Connection reader threads decode (scan)
+ * frames and {@link #submit} them; the rest runs on pipeline threads:
+ *
+ * <pre>
+ *  reader threads ──► route shard i ──► fan-out shard i ──► neighbors
+ *   (decode)              │
+ *                         └──────────► delivery ──► listener / UI
+ * </pre>
+ *
+ * A frame's shard is a hash of its (origin, destination), so every copy of a
+ * message and every message between the same pair of devices is handled by
+ * the same routing and fan-out thread, in arrival order. That keeps dedup
+ * state shard-local and preserves per-pair ordering, while different pairs
+ * run in parallel. Queues are bounded: when a stage falls behind, the reader
+ * threads block, which pushes back on senders through TCP.
+ *
+ * Stages run on virtual threads, so a simulator full of nodes does not cost a
+ * platform thread per shard per node.
+ */
+final class IngestPipeline {
+    private static final Log LOG = Log.get("PIPELINE");
+
+    private final List<BlockingQueue<Frame>> routeQueues = new ArrayList<>();
+    private final List<BlockingQueue<Frame>> fanoutQueues = new ArrayList<>();
+    private final BlockingQueue<Runnable> deliveryQueue;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param route  routing stage; owns the frame (release it or pass it to {@link #fanOut})
+     * @param fanOut fan-out stage; the pipeline releases the frame afterwards
+     */
+    IngestPipeline(int shards, int queueCapacity, String name, Consumer<Frame> route, Consumer<Frame> fanOut) {
+        Consumer<Frame> fanOutAndRelease = frame -> {
+            try {
+                fanOut.accept(frame);
+            } finally {
+                frame.release();
+            }
+        };
+        for (int i = 0; i < shards; i++) {
+            BlockingQueue<Frame> rq = new ArrayBlockingQueue<>(queueCapacity);
+            BlockingQueue<Frame> fq = new ArrayBlockingQueue<>(queueCapacity);
+            routeQueues.add(rq);
+            fanoutQueues.add(fq);
+            threads.add(Thread.ofVirtual().name(name + "-route-" + i).unstarted(() -> drain(rq, route)));
+            threads.add(Thread.ofVirtual().name(name + "-fanout-" + i).unstarted(() -> drain(fq, fanOutAndRelease)));
+        }
+        deliveryQueue = new ArrayBlockingQueue<>(queueCapacity);
+        threads.add(Thread.ofVirtual().name(name + "-deliver").unstarted(() -> drain(deliveryQueue, Runnable::run)));
+    }
+
+    void start() {
+        threads.forEach(Thread::start);
+    }
+
+    /** Decode stage → routing stage; blocks while the shard's queue is full. */
+    void submit(Frame frame) {
+        put(routeQueues.get(frame.shard), frame);
+    }
+
+    /** Routing stage → fan-out stage of the same shard. */
+    void fanOut(Frame frame) {
+        put(fanoutQueues.get(frame.shard), frame);
+    }
+
+    /** Listener notifications run one at a time, in the order they were queued. */
+    void deliver(Runnable task) {
+        try {
+            deliveryQueue.put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    void stop() {
+        running = false;
+        threads.forEach(Thread::interrupt);
+    }
+
+    private void put(BlockingQueue<Frame> queue, Frame frame) {
+        try {
+            queue.put(frame);
+        } catch (InterruptedException e) {
+            frame.release();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> void drain(BlockingQueue<T> queue, Consumer<T> stage) {
+        while (running) {
+            T item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                stage.accept(item);
+            } catch (RuntimeException e) {
+                LOG.warn("Stage failed: " + e);
+            }
+        }
+    }
+}
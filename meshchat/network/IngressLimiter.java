@@ -0,0 +1,190 @@
+package meshchat.network;
+
+import meshchat.metrics.NodeMetrics;
+import meshchat.routing.DeviceRegistry;
+import meshchat.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies an {@link IngressPolicy} for one node: a token bucket per connection
+ * (checked on the raw frame, before decoding) and one per originating deviceId
+ * (checked after routing, on the first copies this node relays).
+ *
+ * Origins the node has a device handle for get a bucket by handle. Any other
+ * {@code from} is charged to a fixed-size table keyed by a hash of the ID,
+ * {@link #UNKNOWN_WAYS} buckets per set with the least recently used one
+ * replaced, so a sender making up IDs cannot grow it; at worst it pushes out
+ * other unknown origins' buckets, which start again full.
+ */
+public class IngressLimiter {
+    private static final Log LOG = Log.get("INGRESS");
+    private static final long IDLE_ORIGIN_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final int UNKNOWN_SETS = 256;
+    private static final int UNKNOWN_WAYS = 4;
+
+    private final IngressPolicy policy;
+    private final NodeMetrics metrics;
+    private final DeviceRegistry devices;
+    private volatile TokenBucket[] origins = new TokenBucket[64]; // by device handle
+    private final UnknownSet[] unknown = new UnknownSet[UNKNOWN_SETS];
+
+    /** One set of the unknown-origin table; guarded by itself. */
+    private static final class UnknownSet {
+        final long[] keys = new long[UNKNOWN_WAYS];
+        final TokenBucket[] buckets = new TokenBucket[UNKNOWN_WAYS];
+    }
+
+    public IngressLimiter(IngressPolicy policy, NodeMetrics metrics, DeviceRegistry devices) {
+        this.policy = policy;
+        this.metrics = metrics;
+        this.devices = devices;
+        for (int i = 0; i < UNKNOWN_SETS; i++) unknown[i] = new UnknownSet();
+    }
+
+    public IngressPolicy policy() {
+        return policy;
+    }
+
+    TokenBucket newLinkBucket() {
+        return new TokenBucket(policy.linkMsgsPerSec(), policy.linkBytesPerSec());
+    }
+
+    /** Per-connection check; called on the connection's reader thread. */
+    boolean admitFrame(TokenBucket link, long bytes, PeerConnection conn) {
+        return admit(link, bytes, conn, policy.action(), "link ", conn.getRemoteHost());
+    }
+
+    /**
+     * Per-origin check; {@code origin} is the device handle of the message's
+     * (unauthenticated) sender.
+     */
+    boolean admitOrigin(int origin, long bytes, PeerConnection conn) {
+        if (policy.originMsgsPerSec() <= 0 && policy.originBytesPerSec() <= 0) return true;
+        TokenBucket[] buckets = origins;
+        TokenBucket bucket = origin < buckets.length ? buckets[origin] : null;
+        if (bucket == null) bucket = newOriginBucket(origin);
+        return admit(bucket, bytes, conn, originAction(), "origin ", devices.shortId(origin));
+    }
+
+    /**
+     * Per-origin check for a sender with no device handle; {@code key} is
+     * {@link #originKey} of its ID.
+     */
+    boolean admitUnknownOrigin(long key, long bytes, PeerConnection conn) {
+        if (policy.originMsgsPerSec() <= 0 && policy.originBytesPerSec() <= 0) return true;
+        UnknownSet set = unknown[(int) (key ^ (key >>> 32)) & (UNKNOWN_SETS - 1)];
+        TokenBucket bucket = null;
+        synchronized (set) {
+            int oldest = 0;
+            for (int i = 0; i < UNKNOWN_WAYS && bucket == null; i++) {
+                TokenBucket b = set.buckets[i];
+                if (b != null && set.keys[i] == key) bucket = b;
+                else if (set.buckets[oldest] != null && (b == null || b.lastUsedNanos() < set.buckets[oldest].lastUsedNanos())) oldest = i;
+            }
+            if (bucket == null) {
+                bucket = new TokenBucket(policy.originMsgsPerSec(), policy.originBytesPerSec());
+                set.keys[oldest] = key;
+                set.buckets[oldest] = bucket;
+            }
+        }
+        return admit(bucket, bytes, conn, originAction(), "origin ", "unknown to this node");
+    }
+
+    /** 64-bit FNV-1a of the UTF-8 device ID in {@code buf[off, off + len)}. */
+    static long originKey(byte[] buf, int off, int len) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = off; i < off + len; i++) h = (h ^ (buf[i] & 0xff)) * 0x100000001b3L;
+        return h;
+    }
+
+    /** The same for a decoded ID; equal to the byte form for the ASCII IDs devices use. */
+    static long originKey(String deviceId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < deviceId.length(); i++) h = (h ^ deviceId.charAt(i)) * 0x100000001b3L;
+        return h;
+    }
+
+    private synchronized TokenBucket newOriginBucket(int origin) {
+        if (origin >= origins.length) {
+            origins = Arrays.copyOf(origins, Math.max(origin + 1, origins.length * 2));
+        }
+        TokenBucket bucket = origins[origin];
+        if (bucket == null) {
+            bucket = new TokenBucket(policy.originMsgsPerSec(), policy.originBytesPerSec());
+            origins[origin] = bucket;
+        }
+        return bucket;
+    }
+
+    void onOversizedFrame(long bytes, PeerConnection conn) {
+        metrics.ingressOversized.increment();
+        LOG.warn("Oversized frame (" + bytes + " bytes, max " + policy.maxFrameBytes() + ") from " + conn.getRemoteHost());
+        if (policy.action() == IngressPolicy.Action.DISCONNECT) {
+            metrics.ingressDisconnected.increment();
+            conn.close();
+        }
+    }
+
+    /** Forget origins we have not heard from for a while; call periodically. */
+    public void evictIdle() {
+        long cutoff = System.nanoTime() - IDLE_ORIGIN_NANOS;
+        TokenBucket[] buckets = origins;
+        for (int i = 0; i < buckets.length; i++) {
+            TokenBucket b = buckets[i];
+            if (b != null && b.lastUsedNanos() < cutoff) buckets[i] = null;
+        }
+        for (UnknownSet set : unknown) {
+            synchronized (set) {
+                for (int i = 0; i < UNKNOWN_WAYS; i++) {
+                    if (set.buckets[i] != null && set.buckets[i].lastUsedNanos() < cutoff) set.buckets[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * The link that delivered an origin's message is usually only relaying
+     * it, so an origin over its limit is dropped rather than disconnected.
+     */
+    private IngressPolicy.Action originAction() {
+        IngressPolicy.Action action = policy.action();
+        return action == IngressPolicy.Action.DISCONNECT ? IngressPolicy.Action.DROP : action;
+    }
+
+    /** {@code kind} + {@code who} name the offender in logs; only joined when one is written. */
+    private boolean admit(TokenBucket bucket, long bytes, PeerConnection conn, IngressPolicy.Action action,
+            String kind, String who) {
+        long wait = bucket.tryAcquire(bytes);
+        if (wait == 0) return true;
+
+        switch (action) {
+            case DROP -> {
+                metrics.ingressDropped.increment();
+                LOG.debug(() -> "Rate limit: dropping frame from " + kind + who);
+                return false;
+            }
+            case DELAY -> {
+                metrics.ingressDelayed.increment();
+                try {
+                    do {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                        wait = bucket.tryAcquire(bytes);
+                    } while (wait > 0 && conn.isConnected());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return wait == 0;
+            }
+            case DISCONNECT -> {
+                metrics.ingressDisconnected.increment();
+                LOG.warn("Rate limit exceeded by " + kind + who + ", disconnecting");
+                conn.close();
+                return false;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,50 @@
+package meshchat.network;
+
+/**
+ * Limits applied to inbound traffic. Rates of 0 disable that limit.
+ *
+ * Read from system properties by {@link #fromSystemProperties()}:
+ * <pre>
+ * -Dmeshchat.ingress.maxFrame=65536        hard cap per line, enforced while reading
+ * -Dmeshchat.ingress.link.msgs=500         per connection, messages/s
+ * -Dmeshchat.ingress.link.bytes=1048576    per connection, bytes/s
+ * -Dmeshchat.ingress.origin.msgs=100       per originating deviceId, messages/s relayed
+ * -Dmeshchat.ingress.origin.bytes=262144   per originating deviceId, bytes/s relayed
+ * -Dmeshchat.ingress.action=drop           drop | delay | disconnect
+ * </pre>
+ */
+public record IngressPolicy(
+    int maxFrameBytes,
+    double linkMsgsPerSec,
+    double linkBytesPerSec,
+    double originMsgsPerSec,
+    double originBytesPerSec,
+    Action action
+) {
+    public enum Action {
+        /** Discard the frame and keep reading. */
+        DROP,
+        /** Stop reading until tokens are available; TCP backpressure slows the sender. */
+        DELAY,
+        /** Close the offending connection. An origin over its limit is dropped instead: its link may only relay it. */
+        DISCONNECT
+    }
+
+    public static final IngressPolicy UNLIMITED = new IngressPolicy(Integer.MAX_VALUE - 8, 0, 0, 0, 0, Action.DROP);
+
+    public static IngressPolicy fromSystemProperties() {
+        return new IngressPolicy(
+            Integer.getInteger("meshchat.ingress.maxFrame", 64 * 1024),
+            doubleProperty("meshchat.ingress.link.msgs", 500),
+            doubleProperty("meshchat.ingress.link.bytes", 1024 * 1024),
+            doubleProperty("meshchat.ingress.origin.msgs", 100),
+            doubleProperty("meshchat.ingress.origin.bytes", 256 * 1024),
+            Action.valueOf(System.getProperty("meshchat.ingress.action", "drop").toUpperCase())
+        );
+    }
+
+    private static double doubleProperty(String name, double def) {
+        String v = System.getProperty(name);
+        return v == null ? def : Double.parseDouble(v);
+    }
+}
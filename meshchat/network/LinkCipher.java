@@ -0,0 +1,196 @@
+package meshchat.network;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES-GCM for both directions of one link, with keys agreed in the HANDSHAKE
+ * ({@link LinkSecurity}). Each side announces the switch with a plain
+ * {@link #MARKER} line; after it, everything a write flushes is one record: a
+ * 4-byte length, then the sealed bytes and their 16-byte tag. Nonces are the
+ * direction's IV XORed with a record counter, so nothing else goes on the
+ * wire, and keys and {@code Cipher}s are set up once for the link's lifetime.
+ *
+ * Deflate, when on, sits inside: its marker and output are what gets sealed.
+ * Datagrams ({@link DatagramPath}) are sealed with the same keys on their own
+ * {@code Cipher}s, with the sequence number they carry as the counter and the
+ * IV's top bit flipped, so their nonces never meet the stream's.
+ *
+ * The sending half is not thread-safe (the connection calls it under its
+ * output lock); the receiving half belongs to the reader thread.
+ */
+final class LinkCipher {
+    static final byte[] MARKER = "{\"codec\":\"aes-gcm\"}".getBytes(StandardCharsets.UTF_8);
+
+    static final int KEY_BYTES = 16;
+    static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int TAG_BYTES = TAG_BITS / 8;
+    private static final int HEADER_BYTES = 4;
+    static final int DATAGRAM_OVERHEAD = TAG_BYTES;
+
+    private final SecretKeySpec sendKey;
+    private final SecretKeySpec receiveKey;
+    private final byte[] sendIv;
+    private final byte[] receiveIv;
+    private final byte[] sendNonce = new byte[IV_BYTES];
+    private final byte[] receiveNonce = new byte[IV_BYTES];
+    private final Cipher encrypt;
+    private final Cipher decrypt;
+    private final Cipher datagramEncrypt;
+    private final Cipher datagramDecrypt;
+    private final byte[] datagramSendNonce = new byte[IV_BYTES];
+    private final byte[] datagramReceiveNonce = new byte[IV_BYTES];
+    private final Plaintext plaintext = new Plaintext();
+    private byte[] sealed = new byte[512];
+    private long sent, received;
+
+    LinkCipher(byte[] sendKey, byte[] sendIv, byte[] receiveKey, byte[] receiveIv) throws GeneralSecurityException {
+        this.sendKey = new SecretKeySpec(sendKey, "AES");
+        this.receiveKey = new SecretKeySpec(receiveKey, "AES");
+        this.sendIv = sendIv;
+        this.receiveIv = receiveIv;
+        this.encrypt = Cipher.getInstance("AES/GCM/NoPadding");
+        this.decrypt = Cipher.getInstance("AES/GCM/NoPadding");
+        this.datagramEncrypt = Cipher.getInstance("AES/GCM/NoPadding");
+        this.datagramDecrypt = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /** Where the next record's plaintext goes; {@link #seal} sends it. */
+    OutputStream plaintext() {
+        return plaintext;
+    }
+
+    /** Plaintext written since the last {@link #seal}. */
+    int pending() {
+        return plaintext.size();
+    }
+
+    /** Seals what was written to {@link #plaintext()} as one record; returns the bytes written. */
+    int seal(OutputStream out) throws IOException {
+        int len = plaintext.size();
+        int need = HEADER_BYTES + len + TAG_BYTES;
+        if (sealed.length < need) sealed = new byte[Math.max(need, sealed.length * 2)];
+        try {
+            encrypt.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_BITS, nonce(sendIv, sent++, sendNonce)));
+            int n = encrypt.doFinal(plaintext.array(), 0, len, sealed, HEADER_BYTES);
+            sealed[0] = (byte) (n >>> 24);
+            sealed[1] = (byte) (n >>> 16);
+            sealed[2] = (byte) (n >>> 8);
+            sealed[3] = (byte) n;
+            out.write(sealed, 0, HEADER_BYTES + n);
+            return HEADER_BYTES + n;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot seal record: " + e.getMessage(), e);
+        } finally {
+            plaintext.reset();
+        }
+    }
+
+    /**
+     * The plaintext of the records read from {@code in}. A record longer than
+     * {@code maxRecordBytes}, or one that fails authentication, ends the link.
+     */
+    InputStream opening(InputStream in, int maxRecordBytes) {
+        return new Opening(in, maxRecordBytes);
+    }
+
+    /**
+     * Seals datagram {@code seq} from {@code in} into {@code out} at {@code off};
+     * returns its length. Callers serialize sends.
+     */
+    int sealDatagram(long seq, byte[] in, int len, byte[] out, int off) throws GeneralSecurityException {
+        byte[] n = nonce(sendIv, seq, datagramSendNonce);
+        n[0] ^= (byte) 0x80;
+        datagramEncrypt.init(Cipher.ENCRYPT_MODE, sendKey, new GCMParameterSpec(TAG_BITS, n));
+        return datagramEncrypt.doFinal(in, 0, len, out, off);
+    }
+
+    /** Opens datagram {@code seq} into {@code out}; returns the plaintext length. Callers serialize receives. */
+    int openDatagram(long seq, byte[] in, int off, int len, byte[] out) throws GeneralSecurityException {
+        byte[] n = nonce(receiveIv, seq, datagramReceiveNonce);
+        n[0] ^= (byte) 0x80;
+        datagramDecrypt.init(Cipher.DECRYPT_MODE, receiveKey, new GCMParameterSpec(TAG_BITS, n));
+        return datagramDecrypt.doFinal(in, off, len, out, 0);
+    }
+
+    private static byte[] nonce(byte[] iv, long counter, byte[] nonce) {
+        System.arraycopy(iv, 0, nonce, 0, IV_BYTES);
+        for (int i = 0; i < 8; i++) {
+            nonce[IV_BYTES - 1 - i] ^= (byte) (counter >>> (8 * i));
+        }
+        return nonce;
+    }
+
+    private static final class Plaintext extends ByteArrayOutputStream {
+        Plaintext() {
+            super(512);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private final class Opening extends InputStream {
+        private final InputStream in;
+        private final int maxRecordBytes;
+        private final byte[] header = new byte[HEADER_BYTES];
+        private byte[] record = new byte[512];
+        private byte[] plain = new byte[512];
+        private int pos, limit;
+
+        Opening(InputStream in, int maxRecordBytes) {
+            this.in = in;
+            this.maxRecordBytes = maxRecordBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (pos == limit) {
+                if (!nextRecord()) return -1;
+            }
+            return plain[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (pos == limit) {
+                if (!nextRecord()) return -1;
+            }
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(plain, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean nextRecord() throws IOException {
+            if (in.readNBytes(header, 0, HEADER_BYTES) < HEADER_BYTES) return false;
+            int n = (header[0] & 0xff) << 24 | (header[1] & 0xff) << 16 | (header[2] & 0xff) << 8 | header[3] & 0xff;
+            if (n < TAG_BYTES || n > maxRecordBytes) throw new IOException("Bad record length " + n);
+            if (record.length < n) record = new byte[Math.max(n, record.length * 2)];
+            if (plain.length < n) plain = new byte[record.length];
+            if (in.readNBytes(record, 0, n) < n) return false;
+            try {
+                decrypt.init(Cipher.DECRYPT_MODE, receiveKey,
+                    new GCMParameterSpec(TAG_BITS, nonce(receiveIv, received++, receiveNonce)));
+                limit = decrypt.doFinal(record, 0, n, plain, 0);
+                pos = 0;
+            } catch (AEADBadTagException e) {
+                throw new IOException("Record failed authentication", e);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot open record: " + e.getMessage(), e);
+            }
+            return true;
+        }
+    }
+}
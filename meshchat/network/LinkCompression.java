@@ -0,0 +1,199 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+import meshchat.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate for the outgoing side of one connection, negotiated in the HANDSHAKE
+ * as codec {@link #CODEC}. Once on, everything written is one deflate stream,
+ * flushed (SYNC_FLUSH) after every frame, or batch of them, so the peer can
+ * act on it at once; the switch is announced by a plain {@link #MARKER} line.
+ * Both sides prime the stream with the same preset dictionary: the JSON field
+ * names plus the two device IDs, which appear in nearly every frame.
+ *
+ * {@code meshchat.compress}: {@code auto} (default) turns it on once writes
+ * show the link is slower than deflating is worth, {@code always} as soon as
+ * the peer agrees, {@code never} does not offer it. The cost of deflating is
+ * measured once per JVM on chat-like frames.
+ *
+ * Not thread-safe; the connection calls it under its output lock.
+ */
+final class LinkCompression {
+    private static final Log LOG = Log.get("COMPRESS");
+
+    static final String CODEC = "deflate";
+    static final byte[] MARKER = "{\"codec\":\"deflate\"}".getBytes(StandardCharsets.UTF_8);
+
+    enum Mode { AUTO, ALWAYS, NEVER }
+
+    static final Mode MODE = parseMode(System.getProperty("meshchat.compress"));
+
+    private static final byte[] NEWLINE = {'\n'};
+    private static final String FIELDS =
+        "{\"id\":\"\",\"from\":\"\",\"to\":\"\",\"ttl\":10,\"text\":\"\",\"timestamp\":17,\"trace\":\"\",\"ttl0\":"
+        + "HANDSHAKE subs= IHAVE GRAFT PRUNE SUBS lazy";
+    // A write has to block at least this long before it says anything about the link
+    private static final long BLOCKED_NANOS = 200_000;
+    // ... and this much blocked time has to add up before we decide
+    private static final long DECIDE_AFTER_NANOS = 50_000_000;
+
+    private final byte[] dictionary;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] buf = new byte[8192];
+    private boolean active;
+    private long blockedBytes, blockedNanos;
+
+    LinkCompression(byte[] dictionary) {
+        this.dictionary = dictionary;
+        deflater.setDictionary(dictionary);
+    }
+
+    /** Same bytes on both ends of a link: field names, then the two IDs in sorted order. */
+    static byte[] dictionary(String deviceId, String peerId) {
+        boolean first = deviceId.compareTo(peerId) < 0;
+        String ids = first ? deviceId + peerId : peerId + deviceId;
+        return (FIELDS + ids).getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] dictionary() {
+        return dictionary;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Called after a plain write of {@code bytes} that took {@code nanos};
+     * @return whether to switch on now
+     */
+    boolean shouldStart(long bytes, long nanos) {
+        if (active || MODE == Mode.NEVER) return false;
+        if (MODE == Mode.ALWAYS) return true;
+        if (nanos < BLOCKED_NANOS) return false;
+        blockedBytes += bytes;
+        blockedNanos += nanos;
+        if (blockedNanos < DECIDE_AFTER_NANOS) return false;
+        double bytesPerSecond = blockedBytes * 1e9 / blockedNanos;
+        blockedBytes = blockedNanos = 0;
+        Cost cost = Cost.MEASURED;
+        // Seconds the wire saves per input byte against seconds spent deflating and inflating it
+        boolean worth = cost.savedFraction / bytesPerSecond > 2 * cost.nanosPerByte * 1e-9;
+        LOG.debug(() -> String.format("Link at ~%.0f KB/s, deflate %.1f ns/B saves %.0f%%: %s",
+            bytesPerSecond / 1024, cost.nanosPerByte, cost.savedFraction * 100, worth ? "compressing" : "plain"));
+        return worth;
+    }
+
+    /** Writes the marker, plain, then turns compression on for everything after it. */
+    void start(OutputStream out) throws IOException {
+        out.write(MARKER);
+        out.write('\n');
+        active = true;
+    }
+
+    /** One frame and its newline, deflated and flushed; returns the bytes written. */
+    int write(OutputStream out, byte[] bytes, int len) throws IOException {
+        return write(out, bytes, len, true);
+    }
+
+    /**
+     * Like {@link #write(OutputStream, byte[], int)}, but unless {@code flush}
+     * the frame may stay in the deflater until the next {@link #flush}, so a
+     * batch of frames shares one.
+     */
+    int write(OutputStream out, byte[] bytes, int len, boolean flush) throws IOException {
+        deflater.setInput(bytes, 0, len);
+        int written = drain(out, Deflater.NO_FLUSH);
+        deflater.setInput(NEWLINE);
+        return written + drain(out, flush ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH);
+    }
+
+    /** Flushes what earlier writes left in the deflater; returns the bytes written. */
+    int flush(OutputStream out) throws IOException {
+        return drain(out, Deflater.SYNC_FLUSH);
+    }
+
+    private int drain(OutputStream out, int flush) throws IOException {
+        int total = 0, n;
+        do {
+            n = deflater.deflate(buf, 0, buf.length, flush);
+            out.write(buf, 0, n);
+            total += n;
+        } while (flush == Deflater.NO_FLUSH ? !deflater.needsInput() : n == buf.length);
+        return total;
+    }
+
+    void end() {
+        deflater.end();
+    }
+
+    /** What deflating chat frames costs on this machine and how much it saves. */
+    private record Cost(double nanosPerByte, double savedFraction) {
+        static final Cost MEASURED = measure();
+
+        private static Cost measure() {
+            Random rnd = new Random(1);
+            String a = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+            String b = new UUID(rnd.nextLong(), rnd.nextLong()).toString();
+            LinkCompression c = new LinkCompression(dictionary(a, b));
+            CountingStream sink = new CountingStream();
+            byte[][] frames = new byte[64][];
+            long in = 0;
+            for (int i = 0; i < frames.length; i++) {
+                Message m = new Message(new UUID(rnd.nextLong(), rnd.nextLong()).toString(), i % 2 == 0 ? a : b,
+                    i % 2 == 0 ? b : a, Message.DEFAULT_TTL, "message number " + i + " about lunch", 1_700_000_000_000L + i);
+                frames[i] = m.toJson().getBytes(StandardCharsets.UTF_8);
+            }
+            try {
+                for (byte[] f : frames) c.write(sink, f, f.length); // warm up
+                sink.count = 0;
+                long start = System.nanoTime();
+                for (int round = 0; round < 8; round++) {
+                    for (byte[] f : frames) {
+                        c.write(sink, f, f.length);
+                        in += f.length + 1;
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                return new Cost((double) nanos / in, 1 - (double) sink.count / in);
+            } catch (IOException e) {
+                return new Cost(Double.MAX_VALUE, 0);
+            } finally {
+                c.end();
+            }
+        }
+    }
+
+    /** {@code auto}, {@code always} or {@code never}, in any case; anything else is warned about and taken as auto. */
+    private static Mode parseMode(String value) {
+        if (value == null) return Mode.AUTO;
+        try {
+            return Mode.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown meshchat.compress '" + value + "', using auto");
+            return Mode.AUTO;
+        }
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
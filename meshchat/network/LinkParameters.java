@@ -0,0 +1,27 @@
+package meshchat.network;
+
+/**
+ * How one link runs, as both ends agreed from their HANDSHAKEs
+ * ({@link Handshake#agree}).
+ *
+ * @param maxFrameBytes   the largest frame the peer reads; 0 if it did not say
+ * @param lingerMicros    how long a write may wait for others to go out with it; 0 flushes each one
+ * @param heartbeatMillis PING interval on an idle link; 0 for none
+ * @param codec           the compression codec, or null for none
+ */
+record LinkParameters(int version, int capabilities, int maxFrameBytes, int lingerMicros, int heartbeatMillis,
+                      String codec) {
+    boolean has(int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version
+            + (codec != null ? " " + codec : "")
+            + (has(Handshake.ENCRYPTION) ? " aes-gcm" : "")
+            + (has(Handshake.DATAGRAMS) ? " udp" : "")
+            + (lingerMicros > 0 ? " linger=" + lingerMicros + "us" : "")
+            + (heartbeatMillis > 0 ? " hb=" + heartbeatMillis + "ms" : "");
+    }
+}
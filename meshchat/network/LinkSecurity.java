@@ -0,0 +1,189 @@
+package meshchat.network;
+
+import meshchat.metrics.NodeMetrics;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key agreement for {@link LinkCipher}, one per node. Our X25519 public key
+ * and a fresh nonce ride on the HANDSHAKE text ({@code " key=... nonce=..."});
+ * once both sides sent theirs, each derives the link's two directional keys
+ * and IVs from the shared secret and both nonces (HKDF with SHA-256).
+ *
+ * Every link also leaves both ends holding the same session ticket for the
+ * other. A node dialing a peer it has a ticket for offers it
+ * ({@code " resume=<id>"}); the listening side, which only answers once it
+ * has read the dialer's HANDSHAKE, takes it up ({@code " ticket=<id>"}) if
+ * it still has it too, and the keys come from the ticket secret and the new
+ * nonces instead, with no X25519 at all.
+ *
+ * The key pair is made once per node, so a new link costs one agreement and
+ * no key generation. This keeps links private and tamper-proof, not tied to
+ * a device: device IDs are not keys, so nothing here stops an active man in
+ * the middle. {@code meshchat.encrypt=false} leaves links plain.
+ */
+final class LinkSecurity {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("meshchat.encrypt", "true"));
+
+    private static final String KEY = " key=";
+    static final String NONCE = " nonce=";
+    private static final String RESUME = " resume=";
+    private static final String TICKET = " ticket=";
+    private static final int NONCE_BYTES = 16;
+    private static final long TICKET_MILLIS = TimeUnit.HOURS.toMillis(24);
+    private static final int MAX_TICKETS = 256;
+
+    private final String deviceId;
+    private final NodeMetrics metrics;
+    private final KeyPair keyPair;
+    private final String publicKey;
+    private final SecureRandom random = new SecureRandom();
+    // Guarded by this; most recently used last, so a ticket in use is not the one evicted
+    private final Map<String, Ticket> tickets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Ticket> eldest) {
+            return size() > MAX_TICKETS;
+        }
+    };
+    private final Map<String, String> latestTicket = new HashMap<>(); // peer ID -> ticket ID
+
+    private record Ticket(String peerId, byte[] secret, long expiresAt) {}
+
+    LinkSecurity(String deviceId, NodeMetrics metrics) {
+        this.deviceId = deviceId;
+        this.metrics = metrics;
+        try {
+            this.keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("X25519 not available", e);
+        }
+        this.publicKey = encode(keyPair.getPublic().getEncoded());
+    }
+
+    /**
+     * HANDSHAKE fields for the side that sends first.
+     * @param peerId the device we are dialing, or null if not known
+     */
+    String offer(String peerId) {
+        StringBuilder fields = new StringBuilder(KEY).append(publicKey).append(NONCE).append(newNonce());
+        String ticket = peerId != null ? latestTicket(peerId) : null;
+        if (ticket != null) fields.append(RESUME).append(ticket);
+        return fields.toString();
+    }
+
+    /** HANDSHAKE fields answering a dialer: takes up its ticket if we still have it, else our key. */
+    String answer(String peerId, String peerText) {
+        StringBuilder fields = new StringBuilder(NONCE).append(newNonce());
+        String offered = Handshake.field(peerText, RESUME);
+        if (offered != null && ticket(offered, peerId) != null) {
+            fields.append(TICKET).append(offered);
+        } else {
+            fields.append(KEY).append(publicKey);
+        }
+        return fields.toString();
+    }
+
+    /**
+     * Keys for a link from both HANDSHAKE texts, or null if the peer offered
+     * none and the link stays plain.
+     */
+    LinkCipher establish(String peerId, String ourText, String peerText) throws GeneralSecurityException {
+        String ourNonce = Handshake.field(ourText, NONCE);
+        String peerNonce = Handshake.field(peerText, NONCE);
+        if (ourNonce == null || peerNonce == null) return null;
+        String ticketId = Handshake.field(peerText, TICKET);
+        if (ticketId == null) ticketId = Handshake.field(ourText, TICKET);
+        byte[] secret;
+        if (ticketId != null) {
+            Ticket ticket = ticket(ticketId, peerId);
+            if (ticket == null) throw new GeneralSecurityException("Session ticket no longer held");
+            secret = ticket.secret();
+            metrics.linksResumed.increment();
+        } else {
+            String peerKey = Handshake.field(peerText, KEY);
+            if (peerKey == null) return null;
+            secret = agree(peerKey);
+            metrics.linksKeyAgreed.increment();
+        }
+        boolean ourFirst = ourNonce.compareTo(peerNonce) < 0;
+        byte[] salt = (ourFirst ? ourNonce + peerNonce : peerNonce + ourNonce).getBytes(StandardCharsets.US_ASCII);
+        byte[] prk = hmac(salt, secret);
+        store(encode(expand(prk, "ticket id", NONCE_BYTES)), peerId, expand(prk, "ticket", 32));
+        return new LinkCipher(
+            expand(prk, "key " + deviceId, LinkCipher.KEY_BYTES), expand(prk, "iv " + deviceId, LinkCipher.IV_BYTES),
+            expand(prk, "key " + peerId, LinkCipher.KEY_BYTES), expand(prk, "iv " + peerId, LinkCipher.IV_BYTES));
+    }
+
+    private byte[] agree(String peerKey) throws GeneralSecurityException {
+        byte[] encoded;
+        try {
+            encoded = Base64.getUrlDecoder().decode(peerKey);
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Malformed key", e);
+        }
+        KeyAgreement agreement = KeyAgreement.getInstance("X25519");
+        agreement.init(keyPair.getPrivate());
+        agreement.doPhase(KeyFactory.getInstance("X25519").generatePublic(new X509EncodedKeySpec(encoded)), true);
+        return agreement.generateSecret();
+    }
+
+    private synchronized String latestTicket(String peerId) {
+        String id = latestTicket.get(peerId);
+        return id != null && ticket(id, peerId) != null ? id : null;
+    }
+
+    private synchronized Ticket ticket(String id, String peerId) {
+        Ticket t = tickets.get(id);
+        if (t == null || !t.peerId().equals(peerId)) return null;
+        if (t.expiresAt() < System.currentTimeMillis()) {
+            tickets.remove(id);
+            return null;
+        }
+        return t;
+    }
+
+    private synchronized void store(String id, String peerId, byte[] secret) {
+        tickets.put(id, new Ticket(peerId, secret, System.currentTimeMillis() + TICKET_MILLIS));
+        latestTicket.put(peerId, id);
+        if (latestTicket.size() > MAX_TICKETS) latestTicket.values().removeIf(t -> !tickets.containsKey(t));
+    }
+
+    private String newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return encode(nonce);
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static byte[] hmac(byte[] key, byte[] data) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(data);
+    }
+
+    /** One HKDF-Expand block, which covers every length used here. */
+    private static byte[] expand(byte[] prk, String info, int length) throws GeneralSecurityException {
+        byte[] label = info.getBytes(StandardCharsets.UTF_8);
+        byte[] block = Arrays.copyOf(label, label.length + 1);
+        block[label.length] = 1;
+        return Arrays.copyOf(hmac(prk, block), length);
+    }
+}
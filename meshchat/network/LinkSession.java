@@ -0,0 +1,144 @@
+package meshchat.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What outlives one connection to a peer: how many frames went each way and
+ * the data frames the peer may not have got, so a reconnect within
+ * {@link #GRACE_MILLIS} (from any address) picks up where the last link
+ * stopped instead of starting over.
+ *
+ * Frames are numbered implicitly, in stream order after the HANDSHAKE, which
+ * both ends see the same way: nothing is written on a link between our
+ * HANDSHAKE and {@link #bind}, and the peer binds on reading our HANDSHAKE,
+ * before the next frame. Every node has an epoch, random per run. Its
+ * HANDSHAKE says {@code session=<epoch>} and, if it has a session with the
+ * peer, {@code acked=<peer's epoch>:<frames received from it>}. A link
+ * resumes when each side's {@code acked} names the other's epoch. Each end
+ * then sends again, in order, whatever it sent past the count the peer
+ * acknowledged. Anything that arrives twice this way is dropped by the
+ * router's duplicate check. Otherwise both start a fresh session.
+ *
+ * Only data frames are kept for replay, at most {@link #REPLAY_FRAMES} of
+ * them and {@link #REPLAY_BYTES} in all; control frames only take a number.
+ * Datagrams the peer had not acknowledged when the link went are sent again
+ * with the replay ({@link #carry}).
+ */
+final class LinkSession {
+    static final String EPOCH_TAG = " session=";
+    static final String ACKED_TAG = " acked=";
+    /** How long a session waits for its peer to come back; 0 turns resumption off. */
+    static final long GRACE_MILLIS = Long.getLong("meshchat.session.grace", 60_000);
+
+    private static final int REPLAY_FRAMES = 512; // a power of two
+    private static final int REPLAY_BYTES = 256 * 1024;
+
+    final String peerEpoch;
+
+    // Guarded by this
+    private PeerConnection link; // null while detached
+    private long sent, received;
+    private long detachedAt;
+    private final long[] seqs = new long[REPLAY_FRAMES];
+    private final byte[][] frames = new byte[REPLAY_FRAMES][];
+    private final int[] lens = new int[REPLAY_FRAMES];
+    private int first, held;
+    private long heldBytes;
+    private long evicted; // highest number pushed out of the buffer
+    private final List<byte[]> carried = new ArrayList<>(); // datagrams from the last link
+
+    LinkSession(String peerEpoch) {
+        this.peerEpoch = peerEpoch;
+    }
+
+    /** Our {@code acked} field for a new link to the peer. */
+    synchronized String ackedField() {
+        return ACKED_TAG + peerEpoch + ":" + received;
+    }
+
+    /**
+     * @param frames   data frames to send again, oldest first
+     * @param complete false if some the peer missed had already left the buffer
+     */
+    record Replay(List<byte[]> frames, boolean complete) {
+    }
+
+    /**
+     * The link's HANDSHAKEs resume this session, {@code peerAcked} being how
+     * many of our frames the peer got and {@code ourAcked} how many of its
+     * frames we said we got. Frames past {@code ourAcked} that an older link
+     * still delivered will come again; the router drops them.
+     */
+    synchronized Replay resume(PeerConnection conn, long peerAcked, long ourAcked) {
+        link = conn;
+        detachedAt = 0;
+        received = ourAcked;
+        boolean complete = evicted <= peerAcked;
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < held; i++) {
+            int slot = (first + i) & (REPLAY_FRAMES - 1);
+            if (seqs[slot] > peerAcked) frames.add(Arrays.copyOf(this.frames[slot], lens[slot]));
+        }
+        frames.addAll(carried);
+        carried.clear();
+        // The replay is written again, so it is numbered again from where the peer is
+        sent = peerAcked;
+        first = held = 0;
+        heldBytes = evicted = 0;
+        return new Replay(frames, complete);
+    }
+
+    /** A fresh session's first link. */
+    synchronized void bind(PeerConnection conn) {
+        link = conn;
+        detachedAt = 0;
+    }
+
+    /** Datagrams {@code conn} sent that the peer never acknowledged, for the next link if the session resumes. */
+    synchronized void carry(PeerConnection conn, List<byte[]> datagrams) {
+        if (link != conn) return;
+        carried.addAll(datagrams);
+        if (carried.size() > REPLAY_FRAMES) carried.subList(0, carried.size() - REPLAY_FRAMES).clear();
+    }
+
+    /** {@code conn} closed; the session waits for the next link if it was the current one. */
+    synchronized boolean detach(PeerConnection conn, long now) {
+        if (link != conn) return false;
+        link = null;
+        detachedAt = now;
+        return true;
+    }
+
+    /** Detached since {@code at}, and still so. */
+    synchronized boolean detachedSince(long at) {
+        return link == null && detachedAt == at;
+    }
+
+    /** {@code conn} wrote a frame; under its output lock, so in stream order. */
+    synchronized void onWrite(PeerConnection conn, byte[] bytes, int len, boolean replayable) {
+        if (link != conn) return;
+        long seq = ++sent;
+        if (!replayable) return;
+        while (held > 0 && (held == REPLAY_FRAMES || heldBytes + len > REPLAY_BYTES)) {
+            heldBytes -= lens[first];
+            evicted = seqs[first];
+            first = (first + 1) & (REPLAY_FRAMES - 1);
+            held--;
+        }
+        int slot = (first + held) & (REPLAY_FRAMES - 1);
+        byte[] copy = frames[slot];
+        if (copy == null || copy.length < len) frames[slot] = copy = new byte[Math.max(len, 256)];
+        System.arraycopy(bytes, 0, copy, 0, len);
+        seqs[slot] = seq;
+        lens[slot] = len;
+        held++;
+        heldBytes += len;
+    }
+
+    /** {@code conn} read a frame past the HANDSHAKE. */
+    synchronized void onRead(PeerConnection conn) {
+        if (link == conn) received++;
+    }
+}
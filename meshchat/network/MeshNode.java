@@ -1,243 +1,1153 @@
 package meshchat.network;
 
+import meshchat.jfr.ForwardFanoutEvent;
+import meshchat.jfr.MessageDecodeEvent;
+import meshchat.jfr.MessageReceiveEvent;
+import meshchat.metrics.NodeMetrics;
+import meshchat.model.HopTrace;
 import meshchat.model.Message;
 import meshchat.model.Peer;
+import meshchat.model.Presence;
+import meshchat.routing.DeviceRegistry;
+import meshchat.routing.HopDistances;
 import meshchat.routing.MessageRouter;
+import meshchat.routing.RoutingTable;
 import meshchat.ui.MessageListener;
+import meshchat.util.Args;
 import meshchat.util.DeviceIdentity;
+import meshchat.util.Log;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class MeshNode {
+    private static final Log LOG = Log.get("NODE");
+    private static final Log SERVER_LOG = Log.get("SERVER");
+    private static final Log CLIENT_LOG = Log.get("CLIENT");
+    private static final Log METRICS_LOG = Log.get("METRICS");
+
     public static final int TCP_PORT = DiscoveryService.TCP_PORT;
 
+    /**
+     * Routing/fan-out shards; 0 processes each frame end-to-end on its reader
+     * thread, which is also the default on a single core where the stage
+     * handoffs would only add latency.
+     */
+    private static final int PIPELINE_SHARDS = Integer.getInteger("meshchat.pipeline.shards",
+        Runtime.getRuntime().availableProcessors() > 1 ? Runtime.getRuntime().availableProcessors() : 0);
+    private static final int PIPELINE_QUEUE = Integer.getInteger("meshchat.pipeline.queue", 1024);
+    /** Broadcasts follow a {@link BroadcastTree}; false floods them like unicast messages. */
+    private static final boolean PLUMTREE = Boolean.parseBoolean(System.getProperty("meshchat.plumtree", "true"));
+    /**
+     * Unicast messages start with the measured hop distance to the recipient plus
+     * this margin rather than {@link Message#DEFAULT_TTL}; negative disables that.
+     */
+    private static final int TTL_MARGIN = Integer.getInteger("meshchat.ttl.margin", 2);
+    /** Next hops unicast messages go on by default; 0 floods them ({@link MultipathRoutes}). */
+    private static final int PATHS = Integer.getInteger("meshchat.paths", 0);
+    /** UDP broadcast discovery; off where broadcasts are filtered anyway and seeds do the job. */
+    private static final boolean DISCOVERY = Boolean.parseBoolean(System.getProperty("meshchat.discovery", "true"));
+    /** Rendezvous nodes to register with and get peers from, {@code host[:port]} comma-separated. */
+    private static final String SEEDS = System.getProperty("meshchat.seeds", "");
+    /** Serve as a rendezvous node on this port; 0 does not. */
+    private static final int RENDEZVOUS_PORT = Integer.getInteger("meshchat.rendezvous.port", 0);
+    private static final long RENDEZVOUS_TTL_MILLIS = Long.getLong("meshchat.rendezvous.ttl", 90) * 1000;
+    /** Re-registers well inside the TTL, and finds peers again if the ones we had are gone. */
+    private static final long SEED_REFRESH_MILLIS = RENDEZVOUS_TTL_MILLIS / 3;
+    /** Peers from seeds are only dialed while we have fewer links (and dials in flight) than this. */
+    private static final int SEED_DIALS = 4;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    /** How often a link we dialed is dialed again while its session waits for it. */
+    private static final long REDIAL_MILLIS = 2000;
+    /** How long a measured hop distance stays good without new traffic from that device. */
+    private static final long HOP_MAX_AGE_MILLIS = 60_000;
+
     private final DeviceIdentity identity;
-    private final MessageRouter router = new MessageRouter();
-    private final Map<String, PeerConnection> connections = new ConcurrentHashMap<>();
-    private final Set<String> connectingPeers = ConcurrentHashMap.newKeySet();
+    private final NodeMetrics metrics = new NodeMetrics();
+    private final MessageRouter router = new MessageRouter(metrics, Math.max(1, PIPELINE_SHARDS));
+    private final DeviceRegistry devices = new DeviceRegistry();
+    private final RoutingTable routingTable = new RoutingTable(devices);
+    private final HopDistances distances = new HopDistances(HOP_MAX_AGE_MILLIS);
+    private final IngressLimiter ingress = new IngressLimiter(IngressPolicy.fromSystemProperties(), metrics, devices);
+    // Keyed by DeviceRegistry handle
+    private final Map<Integer, PeerConnection> connections = new ConcurrentHashMap<>();
+    private final Set<Integer> connectingPeers = ConcurrentHashMap.newKeySet();
     private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final BroadcastTree tree; // null when broadcasts are flooded
+    private final ChannelSubscriptions channels;
+    private final LinkSecurity security; // null when links stay plain
+    private final PresenceDirectory directory;
+    private final MultipathRoutes multipath;
+    // Keyed by DeviceRegistry handle; see LinkSession
+    private final Map<Integer, LinkSession> sessions = new ConcurrentHashMap<>();
+    private final String sessionEpoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
 
     private MessageListener messageListener;
+    private volatile IngestPipeline pipeline;
     private DiscoveryService discovery;
+    private RendezvousServer rendezvous;
     private ServerSocket serverSocket;
+    private volatile DatagramEndpoint udp; // null when detached or the port is taken
+    private volatile int handshakeVersion = Handshake.VERSION;
+    private final String traceHandle;
+    private final byte[] deviceIdBytes;
+    private final int tcpPort;
+
+    private static final byte[] HANDSHAKE_BYTES = "HANDSHAKE".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] BROADCAST_BYTES = Message.BROADCAST.getBytes(StandardCharsets.UTF_8);
 
     public MeshNode(DeviceIdentity identity) {
+        this(identity, TCP_PORT);
+    }
+
+    /**
+     * @param tcpPort port to listen on and advertise in discovery beacons, so
+     *                several nodes (e.g. a load generator) can share one machine
+     */
+    public MeshNode(DeviceIdentity identity, int tcpPort) {
         this.identity = identity;
+        this.tcpPort = tcpPort;
+        this.traceHandle = identity.deviceId().substring(0, 8);
+        this.deviceIdBytes = identity.deviceId().getBytes(StandardCharsets.UTF_8);
+        this.tree = PLUMTREE ? new BroadcastTree(identity.deviceId(), scheduler, metrics) : null;
+        this.channels = new ChannelSubscriptions(identity.deviceId(), scheduler, tree != null ? tree::isEager : null);
+        this.security = LinkSecurity.ENABLED ? new LinkSecurity(identity.deviceId(), metrics) : null;
+        this.directory = new PresenceDirectory(identity.deviceId(),
+            System.getProperty("meshchat.name", ""), scheduler, metrics);
+        directory.setListener(reachable -> {
+            MessageListener l = messageListener;
+            if (l != null) l.onDirectoryChanged(reachable);
+        });
+        this.multipath = new MultipathRoutes(directory, scheduler);
+        if (tree != null) {
+            tree.setTreeListener(channels::onTreeChanged);
+            tree.setInterest(channels::interested);
+        }
     }
 
     public void setMessageListener(MessageListener listener) {
         this.messageListener = listener;
     }
 
+    /**
+     * Has new links speak an older HANDSHAKE, e.g. 1 to act like a node from
+     * before link parameters were negotiated in a simulated mixed mesh.
+     */
+    public void setHandshakeVersion(int version) {
+        this.handshakeVersion = Math.max(1, Math.min(Handshake.VERSION, version));
+    }
+
+    /**
+     * The name other devices see in their directory; {@code meshchat.name}
+     * until set, and none unless one of them is. Devices without one are shown
+     * by their short ID.
+     */
+    public void setDisplayName(String name) {
+        directory.setName(name);
+    }
+
+    public String getDisplayName() {
+        return directory.name();
+    }
+
     public void start() {
+        metrics.register(identity.deviceId().substring(0, 8));
+        startPipeline();
         startTcpServer();
+        startDatagrams();
+        startRendezvous();
         startDiscovery();
+        startSeeds();
+        startConnectionMaintenance();
+        startHeartbeats();
+        startMetricsReporter();
+        channels.start();
+        directory.start();
+        multipath.start();
+        LOG.info("MeshNode started. Device: " + identity.deviceId());
+    }
+
+    /**
+     * Starts the node without a TCP server or UDP discovery; links are supplied
+     * through {@link #attach(PeerConnection)} and {@link #accept}. Used by the in-process simulator.
+     */
+    public void startDetached() {
+        metrics.register(identity.deviceId().substring(0, 8));
+        startPipeline();
         startConnectionMaintenance();
-        System.out.println("[NODE] MeshNode started. Device: " + identity.deviceId());
+        startHeartbeats();
+        startDatagramTicks();
+        startMetricsReporter();
+        channels.start();
+        directory.start();
+        multipath.start();
+        LOG.info("MeshNode started (detached). Device: " + identity.deviceId());
+    }
+
+    private void startPipeline() {
+        if (PIPELINE_SHARDS <= 0) return;
+        IngestPipeline p = new IngestPipeline(PIPELINE_SHARDS, PIPELINE_QUEUE, "ingest-" + traceHandle,
+            this::route, this::sendToNeighbors);
+        p.start();
+        pipeline = p;
     }
 
     private void startTcpServer() {
         Thread.ofVirtual().start(() -> {
             try {
-                serverSocket = new ServerSocket(TCP_PORT);
-                System.out.println("[SERVER] TCP server listening on port " + TCP_PORT);
+                serverSocket = new ServerSocket(tcpPort);
+                SERVER_LOG.info("TCP server listening on port " + tcpPort);
                 if (messageListener != null) {
-                    messageListener.onStatusUpdate("Listening on port " + TCP_PORT);
+                    messageListener.onStatusUpdate("Listening on port " + tcpPort);
                 }
 
                 while (!serverSocket.isClosed()) {
                     try {
                         Socket client = serverSocket.accept();
-                        System.out.println("[SERVER] Incoming connection from: " + client.getInetAddress().getHostAddress());
-                        handleNewConnection(client);
+                        SERVER_LOG.info("Incoming connection from: " + client.getInetAddress().getHostAddress());
+                        handleNewConnection(client, null, false);
                     } catch (IOException e) {
                         if (!serverSocket.isClosed()) {
-                            System.err.println("[SERVER] Accept error: " + e.getMessage());
+                            SERVER_LOG.warn("Accept error: " + e.getMessage());
                         }
                     }
                 }
             } catch (IOException e) {
-                System.err.println("[SERVER] Failed to start server: " + e.getMessage());
+                SERVER_LOG.error("Failed to start server: " + e.getMessage());
                 if (messageListener != null) {
-                    messageListener.onStatusUpdate("ERROR: Port " + TCP_PORT + " in use!");
+                    messageListener.onStatusUpdate("ERROR: Port " + tcpPort + " in use!");
                 }
             }
         });
     }
 
+    /** UDP socket for datagram paths, on the TCP port's number; links just use the stream without it. */
+    private void startDatagrams() {
+        if (!DatagramPath.ENABLED) return;
+        try {
+            DatagramEndpoint endpoint = new DatagramEndpoint(tcpPort);
+            endpoint.start();
+            udp = endpoint;
+        } catch (SocketException e) {
+            SERVER_LOG.warn("No datagram path, UDP port " + tcpPort + ": " + e.getMessage());
+        }
+        startDatagramTicks();
+    }
+
+    private void startDatagramTicks() {
+        if (!DatagramPath.ENABLED) return;
+        scheduler.scheduleAtFixedRate(this::tickDatagrams,
+            DatagramPath.TICK_MILLIS, DatagramPath.TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resends what datagram paths lost and tells each peer what arrived over
+     * its link; on each link's writer, since resends go on the stream.
+     */
+    private void tickDatagrams() {
+        for (PeerConnection conn : connections.values()) {
+            if (!conn.hasDatagrams()) continue;
+            conn.writeSoon(() -> {
+                long now = System.currentTimeMillis();
+                String feedback = conn.tickDatagrams(now);
+                if (feedback != null) {
+                    conn.send(new Message(UUID.randomUUID().toString(), identity.deviceId(), DatagramPath.FEEDBACK, 0, feedback, now));
+                }
+            });
+        }
+    }
+
+    /**
+     * Checks often enough to catch an idle or silent link within a quarter of
+     * the shortest heartbeat, and to PING ranked links on time.
+     */
+    private void startHeartbeats() {
+        long every = Long.MAX_VALUE;
+        if (Handshake.HEARTBEAT_MILLIS > 0) every = Handshake.HEARTBEAT_MILLIS / 4;
+        if (MultipathRoutes.PING_MILLIS > 0) every = Math.min(every, MultipathRoutes.PING_MILLIS / 4);
+        if (every == Long.MAX_VALUE) return;
+        every = Math.max(100, every);
+        scheduler.scheduleAtFixedRate(this::tickHeartbeats, every, every, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * PINGs links that have been idle for a heartbeat or whose round trip is
+     * due, stamped for the PONG, and closes those we stopped hearing from.
+     */
+    private void tickHeartbeats() {
+        long now = System.currentTimeMillis();
+        for (PeerConnection conn : connections.values()) {
+            switch (conn.heartbeat(now, multipath.pingMillis(conn))) {
+                case SEND -> {
+                    long stamp = System.nanoTime();
+                    multipath.onPing(conn, stamp);
+                    conn.sendSoon(new Message(UUID.randomUUID().toString(), identity.deviceId(), PeerConnection.PING, 0,
+                        Long.toString(stamp), now));
+                }
+                case TIMED_OUT -> {
+                    LOG.info("No heartbeat from " + devices.shortId(conn.getPeerHandle()) + ", closing link");
+                    conn.close();
+                }
+                case NONE -> {}
+            }
+        }
+    }
+
     private void startDiscovery() {
-        discovery = new DiscoveryService(identity.deviceId(), this::onPeerDiscovered);
+        if (!DISCOVERY) return;
+        discovery = new DiscoveryService(identity.deviceId(), tcpPort, this::onPeerDiscovered, metrics);
         discovery.start();
     }
 
+    private void startRendezvous() {
+        if (RENDEZVOUS_PORT <= 0) return;
+        try {
+            RendezvousServer server = new RendezvousServer(RENDEZVOUS_PORT, RENDEZVOUS_TTL_MILLIS);
+            server.setLocal(identity.deviceId(), tcpPort);
+            server.start();
+            rendezvous = server;
+        } catch (IOException e) {
+            SERVER_LOG.warn("No rendezvous, port " + RENDEZVOUS_PORT + ": " + e.getMessage());
+        }
+    }
+
+    /** Registers with every seed now and every {@link #SEED_REFRESH_MILLIS}, dialing what they hand out. */
+    private void startSeeds() {
+        List<InetSocketAddress> seeds = new ArrayList<>();
+        for (String s : SEEDS.split(",")) {
+            if (s.isBlank()) continue;
+            try {
+                seeds.add(RendezvousServer.parseSeed(s.trim()));
+            } catch (RuntimeException e) {
+                CLIENT_LOG.warn("Bad seed address: " + s);
+            }
+        }
+        if (seeds.isEmpty()) return;
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (InetSocketAddress seed : seeds) Thread.ofVirtual().start(() -> querySeed(seed));
+        }, 0, SEED_REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void querySeed(InetSocketAddress seed) {
+        List<String> peers;
+        try {
+            peers = RendezvousServer.query(seed, identity.deviceId(), tcpPort);
+        } catch (IOException e) {
+            CLIENT_LOG.warn("Seed " + seed.getHostString() + ":" + seed.getPort() + " unreachable: " + e.getMessage());
+            return;
+        }
+        CLIENT_LOG.debug(() -> "Seed " + seed.getHostString() + " handed out " + peers.size() + " peer(s)");
+        for (String line : peers) {
+            String[] f = line.split(" ");
+            if (f.length != 3 || !RendezvousServer.isDeviceId(f[0]) || f[0].equals(identity.deviceId())) continue;
+            if (connections.size() + connectingPeers.size() >= SEED_DIALS) return;
+            try {
+                onPeerDiscovered(f[0], f[1], Integer.parseInt(f[2]));
+            } catch (NumberFormatException ignored) {}
+        }
+    }
+
     private void startConnectionMaintenance() {
         scheduler.scheduleAtFixedRate(() -> {
             connections.entrySet().removeIf(entry -> {
                 boolean dead = !entry.getValue().isConnected();
                 if (dead) {
-                    System.out.println("[NODE] Removing dead connection: " + entry.getKey().substring(0, 8));
+                    LOG.info("Removing dead connection: " + devices.shortId(entry.getKey()));
                     if (messageListener != null) {
-                        messageListener.onPeerDisconnected(entry.getKey());
+                        messageListener.onPeerDisconnected(devices.deviceId(entry.getKey()));
                     }
                 }
                 return dead;
             });
             connectingPeers.removeIf(id -> connections.containsKey(id));
+            ingress.evictIdle();
         }, 5, 5, TimeUnit.SECONDS);
     }
 
-    private void onPeerDiscovered(String peerId, String host) {
-        if (connections.containsKey(peerId)) return;
-        if (connectingPeers.contains(peerId)) return;
+    /**
+     * Periodic metrics dump, enabled with -Dmeshchat.metrics.interval=&lt;seconds&gt;.
+     */
+    private void startMetricsReporter() {
+        int interval = Integer.getInteger("meshchat.metrics.interval", 0);
+        if (interval <= 0) return;
+        scheduler.scheduleAtFixedRate(() -> METRICS_LOG.info(metrics.snapshot()), interval, interval, TimeUnit.SECONDS);
+    }
+
+    private void onPeerDiscovered(String peerId, String host, int port) {
+        int handle = devices.intern(peerId);
+        if (connections.containsKey(handle)) return;
+        if (!connectingPeers.add(handle)) return;
 
-        connectingPeers.add(peerId);
-        Thread.ofVirtual().start(() -> connectToPeer(peerId, host, TCP_PORT));
+        Thread.ofVirtual().start(() -> connectToPeer(handle, host, port));
     }
 
-    private void connectToPeer(String peerId, String host, int port) {
+    private void connectToPeer(int peerHandle, String host, int port) {
         try {
-            System.out.println("[CLIENT] Connecting to " + peerId.substring(0, 8) + "... @ " + host + ":" + port);
-            Socket socket = new Socket(host, port);
-            handleNewConnection(socket);
+            CLIENT_LOG.info("Connecting to " + devices.shortId(peerHandle) + "... @ " + host + ":" + port);
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            handleNewConnection(socket, devices.deviceId(peerHandle), true);
         } catch (IOException e) {
-            System.err.println("[CLIENT] Failed to connect to " + host + ": " + e.getMessage());
-            connectingPeers.remove(peerId);
+            CLIENT_LOG.warn("Failed to connect to " + host + ": " + e.getMessage());
+            connectingPeers.remove(peerHandle);
         }
     }
 
-    private void handleNewConnection(Socket socket) {
+    private void handleNewConnection(Socket socket, String peerId, boolean dialed) {
         try {
             PeerConnection conn = new PeerConnection(socket);
-            String remoteHost = conn.getRemoteHost();
-
-            // Send handshake: our identity
-            Message handshake = new Message(
-                UUID.randomUUID().toString(),
-                identity.deviceId(),
-                "HANDSHAKE",
-                0,
-                identity.deviceId(),
-                System.currentTimeMillis()
-            );
-            conn.send(handshake);
-
-            conn.startReading(
-                json -> handleIncomingData(json, conn),
-                () -> {
-                    if (conn.getPeer() != null) {
-                        String pid = conn.getPeer().deviceId();
-                        connections.remove(pid);
+            if (dialed) {
+                conn.setDialed();
+                attach(conn, peerId);
+            } else {
+                accept(conn);
+            }
+        } catch (IOException e) {
+            LOG.warn("Error handling connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the handshake and read loop on an already-open connection.
+     */
+    public void attach(PeerConnection conn) {
+        attach(conn, null);
+    }
+
+    /**
+     * Like {@link #attach(PeerConnection)} for a link we dialed to
+     * {@code peerId} (null if not known), which lets the link resume the
+     * keys of an earlier one to that peer.
+     */
+    public void attach(PeerConnection conn, String peerId) {
+        sendHandshake(conn, peerId, security != null ? security.offer(peerId) : "");
+        startReading(conn);
+    }
+
+    /**
+     * Runs the read loop on a connection the peer dialed; our HANDSHAKE
+     * answers theirs, once we know who they are, so it can say how far our
+     * session with them got and take up a session ticket they offer.
+     */
+    public void accept(PeerConnection conn) {
+        startReading(conn);
+    }
+
+    /** @param peerId who is on the other end, if we know yet; null leaves out what we have of our session with it */
+    private void sendHandshake(PeerConnection conn, String peerId, String securityFields) {
+        // Our identity, version, capabilities and link parameters, channel digest, where to send datagrams,
+        // session and our key agreement fields
+        String datagrams = datagramField(conn);
+        Handshake ours = Handshake.local(handshakeVersion, LinkCompression.MODE != LinkCompression.Mode.NEVER,
+            !securityFields.isEmpty(), !datagrams.isEmpty(), ingress.policy().maxFrameBytes());
+        Message handshake = new Message(
+            UUID.randomUUID().toString(),
+            identity.deviceId(),
+            "HANDSHAKE",
+            0,
+            identity.deviceId() + ours.encode() + channels.handshakeField() + datagrams
+                + sessionFields(ours, peerId) + securityFields,
+            System.currentTimeMillis()
+        );
+        conn.sendHandshake(handshake);
+    }
+
+    /** Our epoch, and how far we got in the session with {@code peerId} if there is one. */
+    private String sessionFields(Handshake ours, String peerId) {
+        if ((ours.capabilities() & Handshake.SESSIONS) == 0) return "";
+        LinkSession session = peerId != null ? sessions.get(devices.find(peerId)) : null;
+        return LinkSession.EPOCH_TAG + sessionEpoch + (session != null ? session.ackedField() : "");
+    }
+
+    /**
+     * Resumes the session with the peer if both HANDSHAKEs say so, sending
+     * again what the peer missed, or else starts a new one. Before anything
+     * else is written on the link.
+     */
+    private void bindSession(int handle, PeerConnection conn, String peerText) {
+        String peerEpoch = Handshake.field(peerText, LinkSession.EPOCH_TAG);
+        if (peerEpoch == null) return;
+        LinkSession session = sessions.get(handle);
+        long ourAcked = acked(conn.handshakeText(), peerEpoch);
+        long peerAcked = acked(peerText, sessionEpoch);
+        if (session != null && session.peerEpoch.equals(peerEpoch) && ourAcked >= 0 && peerAcked >= 0) {
+            LinkSession.Replay replay = session.resume(conn, peerAcked, ourAcked);
+            conn.setSession(session);
+            for (byte[] frame : replay.frames()) conn.send(frame, "replay");
+            metrics.sessionsResumed.increment();
+            metrics.framesReplayed.add(replay.frames().size());
+            LOG.info("Resumed session with " + devices.shortId(handle) + ", " + replay.frames().size()
+                + " frame(s) sent again" + (replay.complete() ? "" : "; older ones had left the replay buffer"));
+            return;
+        }
+        session = new LinkSession(peerEpoch);
+        session.bind(conn);
+        sessions.put(handle, session);
+        conn.setSession(session);
+    }
+
+    /** The count in a HANDSHAKE's {@code acked=<epoch>:<count>} if it names {@code epoch}, else -1. */
+    private static long acked(String text, String epoch) {
+        String value = Handshake.field(text, LinkSession.ACKED_TAG);
+        if (value == null || !value.startsWith(epoch + ":")) return -1;
+        try {
+            return Long.parseLong(value.substring(epoch.length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * {@code conn} to the peer closed while it carried their session: the
+     * session waits {@link LinkSession#GRACE_MILLIS} for a new link, and if
+     * we dialed this one we try its address again meanwhile.
+     * @return true if the peer counts as gone only once the grace runs out
+     */
+    private boolean holdSession(int handle, PeerConnection conn) {
+        LinkSession session = sessions.get(handle);
+        long now = System.currentTimeMillis();
+        if (session == null || !session.detach(conn, now)) return false;
+        if (LinkSession.GRACE_MILLIS <= 0) {
+            sessions.remove(handle, session);
+            return false;
+        }
+        try {
+            scheduler.schedule(() -> {
+                if (!session.detachedSince(now) || !sessions.remove(handle, session)) return;
+                LOG.info("Session with " + devices.shortId(handle) + " expired");
+                if (!connections.containsKey(handle) && messageListener != null) {
+                    messageListener.onPeerDisconnected(devices.deviceId(handle));
+                }
+            }, LinkSession.GRACE_MILLIS, TimeUnit.MILLISECONDS);
+            if (conn.isDialed() && conn.getRemoteAddress() != null) {
+                redial(handle, session, now, conn.getRemoteAddress().getHostAddress(), conn.getRemotePort());
+            }
+        } catch (RejectedExecutionException e) {
+            return false; // node is stopping
+        }
+        return true;
+    }
+
+    private void redial(int handle, LinkSession session, long since, String host, int port) {
+        scheduler.schedule(() -> {
+            if (!session.detachedSince(since) || System.currentTimeMillis() - since >= LinkSession.GRACE_MILLIS) return;
+            onPeerDiscovered(devices.deviceId(handle), host, port);
+            redial(handle, session, since, host, port);
+        }, REDIAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** {@code " udp=<port>:<link ID>"}, or {@code " udp=0:0"} for an in-memory link with its own datagrams. */
+    private String datagramField(PeerConnection conn) {
+        if (!DatagramPath.ENABLED) return "";
+        if (conn.getDatagramLink() != null) return DatagramPath.HANDSHAKE_TAG + "0:0";
+        DatagramEndpoint endpoint = udp;
+        if (endpoint == null || conn.getRemoteAddress() == null) return "";
+        return DatagramPath.HANDSHAKE_TAG + endpoint.port() + ":" + endpoint.register(conn);
+    }
+
+    /** Both sides offered datagrams: in memory the link brings its own, else they go to the peer's port and link ID. */
+    private void startDatagrams(PeerConnection conn, String peerText) {
+        String theirs = Handshake.field(peerText, DatagramPath.HANDSHAKE_TAG);
+        if (theirs == null) return;
+        DatagramLink link = conn.getDatagramLink();
+        if (link == null) {
+            DatagramEndpoint endpoint = udp;
+            int colon = theirs.indexOf(':');
+            if (endpoint == null || colon < 0) return;
+            try {
+                link = endpoint.link(conn.getRemoteAddress(), Integer.parseInt(theirs.substring(0, colon)),
+                    Integer.parseInt(theirs.substring(colon + 1)));
+            } catch (NumberFormatException e) {
+                return;
+            }
+        }
+        conn.startDatagrams(link);
+    }
+
+    private void startReading(PeerConnection conn) {
+        conn.setIngress(ingress);
+        conn.startReading(
+            frame -> handleIncomingFrame(frame, conn),
+            () -> {
+                DatagramEndpoint endpoint = udp;
+                if (endpoint != null) endpoint.unregister(conn);
+                int pid = conn.getPeerHandle();
+                if (pid != DeviceRegistry.NONE) {
+                    metrics.connectionsClosed.increment();
+                    metrics.unregisterLink(conn.getStats());
+                    if (tree != null) tree.removeLink(conn);
+                    channels.removeLink(conn);
+                    directory.removeLink(conn);
+                    multipath.removeLink(conn);
+                    boolean held = holdSession(pid, conn);
+                    // A link replaced by a newer one to the same peer leaves that one be
+                    if (connections.remove(pid, conn)) {
                         connectingPeers.remove(pid);
-                        System.out.println("[NODE] Peer disconnected: " + pid.substring(0, 8));
-                        if (messageListener != null) {
-                            messageListener.onPeerDisconnected(pid);
+                        routingTable.removeNeighbor(pid);
+                        if (held) {
+                            LOG.info("Peer disconnected: " + devices.shortId(pid) + ", holding its session for "
+                                + LinkSession.GRACE_MILLIS / 1000 + "s");
+                        } else {
+                            LOG.info("Peer disconnected: " + devices.shortId(pid));
+                            if (messageListener != null) {
+                                messageListener.onPeerDisconnected(devices.deviceId(pid));
+                            }
                         }
                     }
                 }
-            );
+            }
+        );
+    }
 
-        } catch (IOException e) {
-            System.err.println("[NODE] Error handling connection: " + e.getMessage());
+    /**
+     * Decode stage, on the connection's reader thread. Untraced messages are
+     * only scanned; handshakes, traced messages and anything the scanner
+     * declines are fully decoded. Handshakes and broadcast-tree control
+     * messages are handled here, everything else goes on to the routing stage.
+     * Owns the frame.
+     */
+    void handleIncomingFrame(Frame frame, PeerConnection conn) {
+        frame.source = conn;
+        try {
+            if (frame.scan() && !frame.isTraced() && !isLinkLocal(frame) && !isChannel(frame)) {
+                frame.shard = router.shardOf(frame.buf, frame.fromOffset(), frame.fromLength(),
+                    frame.toOffset(), frame.toLength());
+            } else {
+                Message msg = decode(frame);
+                if ("HANDSHAKE".equals(msg.to())) {
+                    handleHandshake(msg, conn);
+                    frame.release();
+                    return;
+                }
+                if (tree != null && BroadcastTree.isControl(msg.to())) {
+                    tree.onControl(msg, conn);
+                    frame.release();
+                    return;
+                }
+                if (ChannelSubscriptions.SUBS.equals(msg.to())) {
+                    channels.onDigest(msg, conn);
+                    frame.release();
+                    return;
+                }
+                if (PresenceDirectory.PRESENCE.equals(msg.to())) {
+                    directory.onGossip(msg, conn);
+                    frame.release();
+                    return;
+                }
+                if (DatagramPath.FEEDBACK.equals(msg.to())) {
+                    conn.onDatagramFeedback(msg.text());
+                    frame.release();
+                    return;
+                }
+                if (PeerConnection.PING.equals(msg.to())) {
+                    frame.release(); // counted as heard when it was read
+                    if (!msg.text().isEmpty()) { // not from this thread, which must keep reading
+                        conn.sendSoon(new Message(UUID.randomUUID().toString(), identity.deviceId(), PeerConnection.PONG, 0,
+                            msg.text(), System.currentTimeMillis()));
+                    }
+                    return;
+                }
+                if (PeerConnection.PONG.equals(msg.to())) {
+                    multipath.onPong(conn, msg.text());
+                    frame.release();
+                    return;
+                }
+                frame.decoded = msg;
+                frame.shard = router.shardOf(msg.from(), msg.to());
+            }
+        } catch (Exception e) {
+            LOG.warn("Error decoding message: " + e.getMessage());
+            frame.release();
+            return;
+        }
+
+        IngestPipeline p = pipeline;
+        if (p != null) {
+            p.submit(frame);
+        } else {
+            route(frame);
+        }
+    }
+
+    /**
+     * Device IDs are UUIDs, so a destination no longer than "HANDSHAKE" other
+     * than the broadcast address is a link-local control message (or an odd
+     * ID, which the full decode handles just as well).
+     */
+    private static boolean isLinkLocal(Frame frame) {
+        return frame.toLength() <= HANDSHAKE_BYTES.length && !frame.toEquals(BROADCAST_BYTES);
+    }
+
+    /** Channel messages are rare enough to always take the full decode. */
+    private static boolean isChannel(Frame frame) {
+        return frame.toLength() > 0 && frame.buf[frame.toOffset()] == '#';
+    }
+
+    private static Message decode(Frame frame) {
+        MessageDecodeEvent decoded = new MessageDecodeEvent();
+        decoded.begin();
+        Message msg = Message.fromJson(frame.toString());
+        decoded.end();
+        if (decoded.shouldCommit()) {
+            decoded.set(msg.id(), msg.ttl(), frame.len);
+            decoded.commit();
+        }
+        return msg;
+    }
+
+    private void handleHandshake(Message msg, PeerConnection conn) {
+        String peerId = msg.from();
+        if (conn.handshakeText() == null) {
+            sendHandshake(conn, peerId, security != null ? security.answer(peerId, msg.text()) : "");
+        }
+        if (security != null && !secure(conn, peerId, msg.text())) return;
+        LinkParameters link = Handshake.parse(conn.handshakeText()).agree(Handshake.parse(msg.text()));
+        conn.setLinkParameters(link);
+        int handle = devices.intern(peerId);
+        Peer peer = new Peer(peerId, conn.getRemoteHost(), TCP_PORT);
+        conn.setPeer(peer);
+
+        // Avoid duplicate connections
+        PeerConnection old = connections.get(handle);
+        if (old != null && old != conn) {
+            if (old.isConnected() && old.isDialed() != conn.isDialed()
+                && conn.isDialed() != identity.deviceId().compareTo(peerId) < 0) {
+                // We dialed each other at once: both ends keep the link the smaller device ID dialed
+                LOG.info("Crossed connection for " + devices.shortId(handle) + ", keeping the other");
+                conn.close();
+                return;
+            }
+            LOG.info("Duplicate connection for " + devices.shortId(handle) + ", closing old");
+            old.close();
+        }
+
+        if (link.has(Handshake.SESSIONS)) bindSession(handle, conn, msg.text());
+        registerConnection(handle, conn);
+        connectingPeers.remove(handle);
+        metrics.connectionsOpened.increment();
+        metrics.registerLink(conn.getStats(), devices.shortId(handle) + "@" + peer.host());
+        if (tree != null) tree.addLink(conn);
+        channels.addLink(conn, msg.text());
+        if (LinkCompression.CODEC.equals(link.codec())) {
+            conn.agreeCompression(LinkCompression.dictionary(identity.deviceId(), peerId));
+        }
+        if (link.has(Handshake.DATAGRAMS)) startDatagrams(conn, msg.text());
+        if (link.has(Handshake.PRESENCE)) {
+            directory.addLink(conn);
+            multipath.addLink(conn);
+        }
+        LOG.info("Peer registered: " + devices.shortId(handle) + " @ " + peer.host() + " [" + link + "]");
+        if (messageListener != null) {
+            messageListener.onPeerConnected(peer);
         }
     }
 
-    private void handleIncomingData(String json, PeerConnection conn) {
+    /**
+     * Switches the link to encryption if both sides offered it. Runs before
+     * the link is registered, so nothing but the HANDSHAKEs ever goes out
+     * plain.
+     * @return false if the link was closed instead
+     */
+    private boolean secure(PeerConnection conn, String peerId, String peerText) {
         try {
-            Message msg = Message.fromJson(json);
-
-            // Handshake message
-            if ("HANDSHAKE".equals(msg.to())) {
-                String peerId = msg.from();
-                Peer peer = new Peer(peerId, conn.getRemoteHost(), TCP_PORT);
-                conn.setPeer(peer);
-
-                // Avoid duplicate connections
-                if (connections.containsKey(peerId)) {
-                    System.out.println("[NODE] Duplicate connection for " + peerId.substring(0, 8) + ", closing old");
-                    PeerConnection old = connections.get(peerId);
-                    if (old != conn) {
-                        old.close();
-                    }
+            LinkCipher cipher = security.establish(peerId, conn.handshakeText(), peerText);
+            if (cipher != null) conn.startEncryption(cipher);
+            return true;
+        } catch (GeneralSecurityException e) {
+            LOG.warn("Cannot secure link to " + conn.getRemoteHost() + ": " + e.getMessage());
+            conn.close();
+            return false;
+        }
+    }
+
+    /**
+     * Routing stage: dedup, TTL and origin limits, then hands the frame to the
+     * fan-out stage or releases it. Owns the frame; once handed off it may be
+     * reused at any time, so nothing here touches it afterwards.
+     */
+    private void route(Frame frame) {
+        MessageReceiveEvent received = new MessageReceiveEvent();
+        received.begin();
+        boolean forward = false;
+        try {
+            forward = frame.decoded == null ? routeScanned(frame) : routeDecoded(frame);
+        } catch (Exception e) {
+            LOG.warn("Error processing message: " + e.getMessage());
+        } finally {
+            received.end();
+            if (received.shouldCommit()) {
+                Message msg = frame.decoded;
+                received.set(msg != null ? msg.id() : frame.id(), msg != null ? msg.ttl() : frame.ttl(), frame.len);
+                received.remoteHost = frame.source.getRemoteHost();
+                received.commit();
+            }
+        }
+
+        IngestPipeline p = pipeline;
+        if (!forward) {
+            frame.release();
+        } else if (p != null) {
+            p.fanOut(frame);
+        } else {
+            try {
+                sendToNeighbors(frame);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Hot path for untraced messages: works on the received bytes and patches
+     * the TTL in place, so nothing is decoded unless it is for this node.
+     * @return whether to forward the frame
+     */
+    private boolean routeScanned(Frame frame) {
+        boolean broadcast = frame.toLength() == 1 && frame.toEquals(BROADCAST_BYTES);
+        MessageRouter.Action action = router.route(frame.buf, frame.len, frame.idOffset(), frame.idLength(),
+            frame.shard, broadcast || frame.toEquals(deviceIdBytes), frame.ttl());
+        if (broadcast && action == MessageRouter.Action.DROP) {
+            if (tree != null) tree.duplicate(frame.source);
+            return false;
+        }
+        if (action != MessageRouter.Action.DROP) {
+            int origin = devices.find(frame.buf, frame.fromOffset(), frame.fromLength());
+            // Only what we pass on counts against its origin, as in routeDecoded
+            if ((broadcast || action == MessageRouter.Action.FORWARD)
+                && (origin != DeviceRegistry.NONE ? !ingress.admitOrigin(origin, frame.len + 1, frame.source)
+                : !ingress.admitUnknownOrigin(IngressLimiter.originKey(frame.buf, frame.fromOffset(), frame.fromLength()),
+                    frame.len + 1, frame.source))) {
+                return false;
+            }
+            // Tree paths are not shortest paths; flooded first copies are
+            if (!broadcast || tree == null) {
+                distances.observe(origin, frame.hops(broadcast ? Message.BROADCAST_TTL : Message.DEFAULT_TTL),
+                    System.currentTimeMillis());
+            }
+        }
+        switch (action) {
+            case DELIVER -> {
+                deliver(decode(frame), null);
+                if (broadcast) {
+                    frame.broadcast = frame.ttl() > 0;
+                    if (frame.broadcast) frame.decrementTtl();
+                    if (tree != null) tree.received(frame.id(), Arrays.copyOf(frame.buf, frame.len), frame.source);
+                    return frame.broadcast;
+                }
+            }
+            case FORWARD -> {
+                if (messageListener != null && messageListener.wantsRelayEvents()) {
+                    Message relayed = decode(frame);
+                    notifyListener(() -> messageListener.onMessageRelayed(relayed));
                 }
+                frame.decrementTtl();
+                return true;
+            }
+            case DROP -> {}
+        }
+        return false;
+    }
 
-                connections.put(peerId, conn);
-                connectingPeers.remove(peerId);
-                System.out.println("[NODE] Peer registered: " + peerId.substring(0, 8) + " @ " + peer.host());
+    /** @return whether to forward; {@code frame.decoded} is replaced by the message to send */
+    private boolean routeDecoded(Frame frame) {
+        Message msg = frame.decoded;
+        PeerConnection conn = frame.source;
+        long now = System.currentTimeMillis();
+        HopTrace trace = null;
+        if (msg.isTraced() && conn.getPeerHandle() != DeviceRegistry.NONE) {
+            // Duplicates arriving over other links are useful route knowledge too
+            trace = HopTrace.of(msg, now);
+            int origin = devices.find(msg.from());
+            if (origin != DeviceRegistry.NONE) {
+                routingTable.observe(origin, conn.getPeerHandle(), trace.pathLength(), trace.totalMillis());
+            }
+        }
+
+        MessageRouter.Action action = msg.isChannel()
+            ? router.route(msg, channels.isSubscribed(ChannelSubscriptions.normalize(msg.channel())), frame.len)
+            : router.route(msg, identity.deviceId(), frame.len);
+        // With ttl 0 a channel message is dropped as expired, not only as a duplicate
+        if (action == MessageRouter.Action.DROP && (msg.isBroadcast() || msg.isChannel() && msg.ttl() > 0)) {
+            if (tree != null) tree.duplicate(conn);
+            return false;
+        }
+        // Charge the origin only for first copies we pass on; flood duplicates are already
+        // dropped, and a message for us alone is held to its link's limit. A rejected
+        // message stays marked as seen, so later copies are dropped too.
+        if (action != MessageRouter.Action.DROP) {
+            int origin = devices.find(msg.from());
+            boolean relays = action == MessageRouter.Action.FORWARD || msg.isBroadcast() || msg.isChannel();
+            if (relays && (origin != DeviceRegistry.NONE ? !ingress.admitOrigin(origin, frame.len + 1, conn)
+                : !ingress.admitUnknownOrigin(IngressLimiter.originKey(msg.from()), frame.len + 1, conn))) {
+                return false;
+            }
+            if (!(msg.isBroadcast() || msg.isChannel()) || tree == null) distances.observe(origin, msg.hops(), now);
+        }
+        switch (action) {
+            case DELIVER -> {
+                deliver(msg, trace);
+                // Other subscribers may be further on
+                if (msg.isBroadcast() || msg.isChannel()) return relayGroup(frame, now);
+            }
+
+            case FORWARD -> {
+                if (msg.isChannel()) return relayGroup(frame, now);
+                Message forwarded = relayed(msg, now);
+                LOG.debug(() -> "Forwarding message " + msg.id().substring(0, 8) + " (ttl " + msg.ttl() + " → " + forwarded.ttl() + ")");
+                frame.decoded = forwarded;
                 if (messageListener != null) {
-                    messageListener.onPeerConnected(peer);
+                    notifyListener(() -> messageListener.onMessageRelayed(msg));
                 }
-                return;
+                return true;
             }
+            case DROP -> {} // Already logged in router
+        }
+        return false;
+    }
 
-            // Regular message
-            MessageRouter.Action action = router.route(msg, identity.deviceId());
-            switch (action) {
-                case DELIVER -> {
-                    System.out.println("[NODE] *** MESSAGE FOR ME from " + msg.from().substring(0, 8) + ": " + msg.text());
-                    if (messageListener != null) {
-                        messageListener.onMessageReceived(msg);
-                    }
-                }
-                case FORWARD -> {
-                    Message forwarded = msg.withDecrementedTtl();
-                    System.out.println("[NODE] Forwarding message " + msg.id().substring(0, 8) + " (ttl " + msg.ttl() + " → " + forwarded.ttl() + ")");
-                    broadcast(forwarded, conn); // Forward to all except sender
-                    if (messageListener != null) {
-                        messageListener.onMessageRelayed(msg);
-                    }
+    /**
+     * First copy of a broadcast or channel message: remembers it for the tree
+     * and relays it while it has hops left. The fan-out stage picks the links.
+     */
+    private boolean relayGroup(Frame frame, long now) {
+        Message msg = frame.decoded;
+        Message relayed = msg.ttl() > 0 ? relayed(msg, now) : msg;
+        if (tree != null) tree.received(msg.id(), relayed.toJson().getBytes(StandardCharsets.UTF_8), frame.source);
+        frame.decoded = relayed;
+        return msg.ttl() > 0;
+    }
+
+    private Message relayed(Message msg, long now) {
+        return msg.isTraced() ? msg.withDecrementedTtl().withHop(traceHandle, now) : msg.withDecrementedTtl();
+    }
+
+    /**
+     * Fan-out stage: every neighbor except the one the frame came from, the
+     * best few toward the destination for a message sent on k paths, or for a
+     * broadcast, the tree's eager links.
+     */
+    private void sendToNeighbors(Frame frame) {
+        Message msg = frame.decoded;
+        ForwardFanoutEvent fanout = new ForwardFanoutEvent();
+        fanout.begin();
+        int sent;
+        if (msg != null && (msg.isBroadcast() || msg.isChannel())) {
+            sent = sendToGroup(msg, frame.source);
+        } else if (frame.broadcast && tree != null) {
+            sent = tree.push(frame.id(), frame.source, conn -> conn.send(frame));
+        } else {
+            sent = msg != null ? relay(msg, frame.source) : relay(frame);
+        }
+        metrics.copiesSent.add(sent);
+        fanout.end();
+        if (fanout.shouldCommit()) {
+            fanout.set(msg != null ? msg.id() : frame.id(), msg != null ? msg.ttl() : frame.ttl(), frame.len);
+            fanout.fanout = sent;
+            fanout.commit();
+        }
+    }
+
+    /** A unicast message on its k paths if it asks for them and they are known, else to every neighbor. */
+    private int relay(Message msg, PeerConnection source) {
+        int sent = msg.paths() > 0 ? sendOnPaths(multipath.nextHops(msg.to()), msg.paths(), source, msg, null) : -1;
+        return sent >= 0 ? sent : broadcast(msg, source);
+    }
+
+    /** Same as {@link #relay(Message, PeerConnection)} for a frame that was not decoded. */
+    private int relay(Frame frame) {
+        int sent = frame.paths() > 0
+            ? sendOnPaths(multipath.nextHops(frame.buf, frame.toOffset(), frame.toLength()), frame.paths(), frame.source,
+                null, frame)
+            : -1;
+        return sent >= 0 ? sent : broadcast(frame, frame.source);
+    }
+
+    /** Broadcast along the tree (or flooded), channel messages only toward subscribers. */
+    private int sendToGroup(Message msg, PeerConnection exclude) {
+        if (msg.isChannel()) {
+            String channel = ChannelSubscriptions.normalize(msg.channel());
+            return tree != null
+                ? tree.push(msg.id(), ChannelSubscriptions.tag(channel), exclude,
+                    conn -> channels.wants(conn, channel, msg.ttl()), conn -> conn.send(msg))
+                : channels.forward(channel, msg.ttl(), exclude, conn -> conn.send(msg));
+        }
+        return tree != null ? tree.push(msg.id(), exclude, conn -> conn.send(msg)) : broadcast(msg, exclude);
+    }
+
+    /** Delivery stage: listener callbacks run one at a time, in routing order. */
+    private void deliver(Message msg, HopTrace trace) {
+        notifyListener(() -> {
+            metrics.deliveryLatencyMillis.record(System.currentTimeMillis() - msg.timestamp());
+            LOG.debug(() -> "*** MESSAGE FOR ME from " + msg.from().substring(0, 8) + ": " + msg.text());
+            if (messageListener != null) {
+                messageListener.onMessageReceived(msg);
+            }
+            if (trace != null) {
+                LOG.info(() -> "Trace " + trace);
+                if (messageListener != null) {
+                    messageListener.onTraceReceived(msg, trace);
                 }
-                case DROP -> {} // Already logged in router
             }
-        } catch (Exception e) {
-            System.err.println("[NODE] Error processing message: " + e.getMessage());
+        });
+    }
+
+    private void notifyListener(Runnable task) {
+        IngestPipeline p = pipeline;
+        if (p != null) {
+            p.deliver(task);
+        } else {
+            task.run();
         }
     }
 
+    void registerConnection(String peerId, PeerConnection conn) {
+        registerConnection(devices.intern(peerId), conn);
+    }
+
+    private void registerConnection(int handle, PeerConnection conn) {
+        conn.setPeerHandle(handle);
+        connections.put(handle, conn);
+    }
+
     public void sendMessage(String toDeviceId, String text) {
+        sendMessage(toDeviceId, text, false);
+    }
+
+    /**
+     * @param toDeviceId recipient, {@link Message#BROADCAST} for every node in the mesh, or
+     *                   {@code "#name"} for everyone subscribed to a channel
+     * @param trace ask every relay to stamp the message so the destination can report per-hop latency
+     */
+    public void sendMessage(String toDeviceId, String text, boolean trace) {
+        sendMessage(toDeviceId, text, trace, PATHS);
+    }
+
+    /**
+     * @param paths for a unicast message, how many of its best next hops each
+     *              node sends it on instead of flooding it; 0 floods
+     */
+    public void sendMessage(String toDeviceId, String text, boolean trace, int paths) {
+        boolean toAll = Message.BROADCAST.equals(toDeviceId);
+        String channel = toDeviceId.startsWith(Message.CHANNEL_PREFIX) ? ChannelSubscriptions.normalize(toDeviceId) : null;
         Message msg = new Message(
             UUID.randomUUID().toString(),
             identity.deviceId(),
-            toDeviceId,
-            Message.DEFAULT_TTL,
+            channel != null ? Message.CHANNEL_PREFIX + channel : toDeviceId,
+            toAll || channel != null ? Message.BROADCAST_TTL : Message.DEFAULT_TTL,
             text,
             System.currentTimeMillis()
         );
+        if (!toAll && channel == null) {
+            devices.intern(toDeviceId); // so what we hear back from it is measured and charged by handle
+            msg = msg.withInitialTtl(unicastTtl(toDeviceId, msg.timestamp()));
+        }
+        if (trace) msg = msg.withTrace();
+        if (!toAll && channel == null && paths > 0) msg = msg.withPaths(paths);
 
         // Mark as seen so we don't process our own message if it loops back
-        router.markSeen(msg.id());
+        router.markSeen(msg);
 
-        System.out.println("[NODE] Sending message to " + toDeviceId.substring(0, 8) + ": " + text);
-        broadcast(msg, null);
+        LOG.debug(() -> "Sending message to " + (toAll || channel != null ? toDeviceId : toDeviceId.substring(0, 8)) + ": " + text);
+        int sent;
+        if (toAll || channel != null) {
+            if (tree != null) tree.received(msg.id(), msg.toJson().getBytes(StandardCharsets.UTF_8), null);
+            sent = sendToGroup(msg, null);
+        } else {
+            sent = relay(msg, null);
+        }
+        metrics.copiesSent.add(sent);
 
         if (messageListener != null) {
             messageListener.onMessageSent(msg);
         }
     }
 
-    private void broadcast(Message msg, PeerConnection exclude) {
+    /**
+     * Measured distance plus the margin, or the directory's if nothing is
+     * measured yet, or the default for a recipient we know no distance to.
+     */
+    private int unicastTtl(String toDeviceId, long now) {
+        int distance = -1;
+        if (TTL_MARGIN >= 0) {
+            distance = distances.distance(devices.find(toDeviceId), now);
+            if (distance <= 0) distance = directory.hops(toDeviceId);
+        }
+        return distance > 0 ? Math.min(distance + TTL_MARGIN, Message.BROADCAST_TTL) : Message.DEFAULT_TTL;
+    }
+
+    /**
+     * Sends {@code msg}, or {@code frame} if it is null, on the first {@code k}
+     * of the ranked {@code next} hops other than {@code exclude}.
+     * @return copies sent, or -1 if no link toward it is known and the caller should flood
+     */
+    private int sendOnPaths(PeerConnection[] next, int k, PeerConnection exclude, Message msg, Frame frame) {
+        int sent = 0;
+        if (next != null) {
+            for (int i = 0; i < next.length && sent < k; i++) {
+                PeerConnection conn = next[i];
+                if (conn == exclude || !conn.isConnected()) continue;
+                if (msg != null) conn.send(msg); else conn.send(frame);
+                sent++;
+            }
+        }
+        if (sent > 0) return sent;
+        metrics.multipathFallbacks.increment();
+        return -1;
+    }
+
+    int broadcast(Message msg, PeerConnection exclude) {
+        int sent = 0;
         for (PeerConnection conn : connections.values()) {
             if (conn != exclude && conn.isConnected()) {
                 conn.send(msg);
+                sent++;
             }
         }
+        return sent;
+    }
+
+    int broadcast(Frame frame, PeerConnection exclude) {
+        int sent = 0;
+        for (PeerConnection conn : connections.values()) {
+            if (conn != exclude && conn.isConnected()) {
+                conn.send(frame);
+                sent++;
+            }
+        }
+        return sent;
     }
 
     /**
      * Manually connect to a peer by IP address (fallback when UDP discovery is blocked).
+     * Accepts "host", "host:port", an IPv6 address or "[v6]:port"; what cannot
+     * be read or reached is reported through {@link MessageListener#onStatusUpdate}.
      */
-    public void connectManually(String host) {
-        System.out.println("[NODE] Manual connect to: " + host);
+    public void connectManually(String address) {
+        LOG.info("Manual connect to: " + address);
+        InetSocketAddress target;
+        try {
+            target = Args.hostPort(address, TCP_PORT);
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Manual connect: " + e.getMessage());
+            if (messageListener != null) messageListener.onStatusUpdate("Connect failed: " + e.getMessage());
+            return;
+        }
         Thread.ofVirtual().start(() -> {
+            String host = target.getHostString();
             try {
-                Socket socket = new Socket(host, TCP_PORT);
-                System.out.println("[NODE] Manual connection established to: " + host);
-                handleNewConnection(socket);
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(host, target.getPort()), CONNECT_TIMEOUT_MILLIS);
+                LOG.info("Manual connection established to: " + host);
+                handleNewConnection(socket, null, true);
             } catch (IOException e) {
-                System.err.println("[NODE] Manual connect failed to " + host + ": " + e.getMessage());
+                LOG.warn("Manual connect failed to " + host + ": " + e.getMessage());
                 if (messageListener != null) {
                     messageListener.onStatusUpdate("Connect failed: " + host + " - " + e.getMessage());
                 }
@@ -245,13 +1155,71 @@ public class MeshNode {
         });
     }
 
-    public Map<String, PeerConnection> getConnections() {
-        return Collections.unmodifiableMap(connections);
+    /** Subscribes to a channel ({@code "name"} or {@code "#name"}); returns false if already joined. */
+    public boolean joinChannel(String channel) {
+        return channels.join(channel);
+    }
+
+    public boolean leaveChannel(String channel) {
+        return channels.leave(channel);
+    }
+
+    /** Joined channel names, without the prefix. */
+    public Set<String> getChannels() {
+        return channels.subscriptions();
+    }
+
+    public String getDeviceId() {
+        return identity.deviceId();
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /** Measured hops to {@code deviceId}, or -1 if unknown. */
+    public int getHopDistance(String deviceId) {
+        return distances.distance(devices.find(deviceId), System.currentTimeMillis());
+    }
+
+    /** Every device the presence directory knows of, nearest first. */
+    public List<Presence> getDirectory() {
+        return directory.reachable();
+    }
+
+    /**
+     * Farthest device currently measured, in hops, see {@link HopDistances#diameter};
+     * or, if the presence directory knows of one further away, its hop count.
+     */
+    public int getMeshDiameter() {
+        List<Presence> reachable = directory.reachable();
+        int farthest = reachable.isEmpty() ? 0 : reachable.get(reachable.size() - 1).hops();
+        return Math.max(distances.diameter(System.currentTimeMillis()), farthest);
+    }
+
+    /** Outbound connection attempts still in flight; should stay small. */
+    public int getConnectingCount() {
+        return connectingPeers.size();
+    }
+
+    public NodeMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Collection<PeerConnection> getConnections() {
+        return Collections.unmodifiableCollection(connections.values());
+    }
+
+    public DeviceRegistry getDevices() {
+        return devices;
     }
 
     public void stop() {
-        discovery.stop();
+        if (discovery != null) discovery.stop();
+        if (rendezvous != null) rendezvous.stop();
+        if (udp != null) udp.stop();
         scheduler.shutdown();
+        if (pipeline != null) pipeline.stop();
         connections.values().forEach(PeerConnection::close);
         connections.clear();
         try {
@@ -0,0 +1,215 @@
+package meshchat.network;
+
+import meshchat.model.Message;
+import meshchat.routing.DeviceRegistry;
+import meshchat.util.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Next hops for unicast messages that ask to go on k paths
+ * ({@link Message#paths()}) rather than be flooded: each node, the sender and
+ * every relay, sends its copy on the k best of its links toward the
+ * destination, and the router's duplicate check collapses whatever arrives
+ * twice.
+ *
+ * Which links lead where comes from the presence directory: every neighbor
+ * says how many hops it is from each device it reaches
+ * ({@link PresenceDirectory#heard}). Links whose neighbor is no further than
+ * one hop past the nearest one qualify, so copies never head back. How good a
+ * link is comes from its heartbeat: every {@link #PING_MILLIS} the node sends
+ * it a {@link PeerConnection#PING} stamped with its clock, and the neighbor
+ * echoes the stamp in a {@link PeerConnection#PONG}. That gives a smoothed
+ * round trip, and PINGs not answered by the next one count as lost. A link's
+ * cost is its round trip, or how long its oldest PING has been waiting if
+ * longer, divided by the share of PINGs that get through. A qualifying link
+ * scores its cost plus the neighbor's hops at the average link cost, an
+ * estimate of the time to the destination through it, lowest first. The
+ * ranking is rebuilt {@link #RANKS_PER_PING} times a PING, and a link whose
+ * PING has waited {@link #STALL_RTTS} round trips, and at least until the next
+ * ranking, is left out until it answers; a message with no link left toward
+ * its destination is flooded. A link that stalls therefore stops taking copies
+ * within a fraction of a second, rather than when its heartbeat gives out.
+ *
+ * Each ranking is indexed by a registry of its own, built with it and
+ * dropped with it, so the forward path looks up next hops by the
+ * destination's bytes without allocating, and gossiped IDs never get a
+ * handle in the node's registry. Only links that gossip presence are ranked;
+ * one whose node predates the PONG never answers and is left out.
+ */
+final class MultipathRoutes {
+    private static final Log LOG = Log.get("MULTIPATH");
+
+    /** How often links are PINGed for their round trip; 0 floods every message. */
+    static final long PING_MILLIS = Long.getLong("meshchat.multipath.ping", 1000);
+
+    private static final double EWMA_ALPHA = 0.25;
+    private static final int DETOUR_HOPS = 1;
+    private static final double MIN_DELIVERY = 0.05;
+    private static final int STALL_RTTS = 4;
+    private static final int RANKS_PER_PING = 4;
+
+    private final PresenceDirectory directory;
+    private final ScheduledExecutorService scheduler;
+    private final Map<PeerConnection, Pings> links = new ConcurrentHashMap<>();
+    private volatile Ranking ranking = new Ranking(new DeviceRegistry(), new PeerConnection[0][]);
+
+    /** One link's PING state; guarded by itself. */
+    private static final class Pings {
+        double rttMillis = -1;
+        double loss;
+        boolean sent, answered;
+        long waitingSince; // nanos the oldest unanswered PING went out, 0 if none
+    }
+
+    private record Candidate(PeerConnection conn, double score) {
+    }
+
+    /** Next hops by {@code destinations} handle. */
+    private record Ranking(DeviceRegistry destinations, PeerConnection[][] nextHops) {
+        PeerConnection[] get(int handle) {
+            return handle >= 0 && handle < nextHops.length ? nextHops[handle] : null;
+        }
+    }
+
+    MultipathRoutes(PresenceDirectory directory, ScheduledExecutorService scheduler) {
+        this.directory = directory;
+        this.scheduler = scheduler;
+    }
+
+    void start() {
+        if (PING_MILLIS <= 0) return;
+        long every = Math.max(1, PING_MILLIS / RANKS_PER_PING);
+        scheduler.scheduleAtFixedRate(this::rank, every, every, TimeUnit.MILLISECONDS);
+    }
+
+    void addLink(PeerConnection conn) {
+        if (PING_MILLIS > 0) links.put(conn, new Pings());
+    }
+
+    /** How often the heartbeat should PING {@code conn}: {@link #PING_MILLIS}, or 0 if it is not ranked. */
+    long pingMillis(PeerConnection conn) {
+        return links.containsKey(conn) ? PING_MILLIS : 0;
+    }
+
+    void removeLink(PeerConnection conn) {
+        links.remove(conn);
+    }
+
+    /**
+     * Links toward {@code deviceId}, best first; every one that qualifies, for
+     * the caller to take the first k it can use. Null if none is known.
+     */
+    PeerConnection[] nextHops(String deviceId) {
+        Ranking r = ranking;
+        return r.get(r.destinations().find(deviceId));
+    }
+
+    /** The same for the UTF-8 device ID in {@code buf[off, off + len)}. */
+    PeerConnection[] nextHops(byte[] buf, int off, int len) {
+        Ranking r = ranking;
+        return r.get(r.destinations().find(buf, off, len));
+    }
+
+    /** A PING stamped {@code nanos} is going out on {@code conn}: settles the last one. */
+    void onPing(PeerConnection conn, long nanos) {
+        Pings p = links.get(conn);
+        if (p == null) return;
+        synchronized (p) {
+            if (p.sent) p.loss += EWMA_ALPHA * ((p.answered ? 0 : 1) - p.loss);
+            p.sent = true;
+            p.answered = false;
+            if (p.waitingSince == 0) p.waitingSince = nanos;
+            conn.getStats().setPing(p.rttMillis, p.loss);
+        }
+    }
+
+    /** The neighbor on {@code conn} echoed a stamp of ours. */
+    void onPong(PeerConnection conn, String stamp) {
+        Pings p = links.get(conn);
+        if (p == null) return;
+        double sample;
+        try {
+            sample = (System.nanoTime() - Long.parseLong(stamp)) / 1e6;
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (sample < 0 || sample > 60_000) return; // not one of ours
+        synchronized (p) {
+            p.rttMillis = p.rttMillis < 0 ? sample : p.rttMillis + EWMA_ALPHA * (sample - p.rttMillis);
+            p.answered = true;
+            p.waitingSince = 0;
+        }
+    }
+
+    private void rank() {
+        try {
+            rank(System.nanoTime());
+        } catch (RuntimeException e) {
+            LOG.warn("Ranking next hops failed: " + e.getMessage());
+        }
+    }
+
+    private void rank(long now) {
+        Map<PeerConnection, Double> costs = new HashMap<>();
+        double measured = 0;
+        int n = 0;
+        for (Map.Entry<PeerConnection, Pings> l : links.entrySet()) {
+            Pings p = l.getValue();
+            synchronized (p) {
+                if (p.rttMillis >= 0) {
+                    measured += p.rttMillis / Math.max(MIN_DELIVERY, 1 - p.loss); // a typical hop, stalls aside
+                    n++;
+                }
+            }
+        }
+        double hopMillis = n > 0 ? measured / n : 1;
+        for (Map.Entry<PeerConnection, Pings> l : links.entrySet()) {
+            if (!l.getKey().isConnected()) continue;
+            Pings p = l.getValue();
+            synchronized (p) {
+                double rtt = p.rttMillis >= 0 ? p.rttMillis : hopMillis;
+                double stall = Math.max(STALL_RTTS * rtt, (double) PING_MILLIS / RANKS_PER_PING);
+                if (p.waitingSince != 0 && (now - p.waitingSince) / 1e6 > stall) continue;
+                costs.put(l.getKey(), cost(p, rtt, now));
+            }
+        }
+
+        Map<PeerConnection, Map<String, Integer>> heard = directory.heard();
+        heard.keySet().retainAll(costs.keySet());
+        Map<String, Integer> nearest = new HashMap<>();
+        for (Map<String, Integer> reaches : heard.values()) {
+            for (Map.Entry<String, Integer> d : reaches.entrySet()) nearest.merge(d.getKey(), d.getValue(), Math::min);
+        }
+        Map<String, List<Candidate>> byDevice = new HashMap<>();
+        for (Map.Entry<PeerConnection, Map<String, Integer>> h : heard.entrySet()) {
+            double cost = costs.get(h.getKey());
+            for (Map.Entry<String, Integer> d : h.getValue().entrySet()) {
+                int hops = d.getValue();
+                if (hops > nearest.get(d.getKey()) + DETOUR_HOPS) continue;
+                byDevice.computeIfAbsent(d.getKey(), k -> new ArrayList<>())
+                    .add(new Candidate(h.getKey(), cost + hops * hopMillis));
+            }
+        }
+
+        DeviceRegistry destinations = new DeviceRegistry();
+        PeerConnection[][] table = new PeerConnection[byDevice.size()][];
+        for (Map.Entry<String, List<Candidate>> d : byDevice.entrySet()) {
+            List<Candidate> candidates = d.getValue();
+            candidates.sort(Comparator.comparingDouble(Candidate::score));
+            table[destinations.intern(d.getKey())] = candidates.stream().map(Candidate::conn).toArray(PeerConnection[]::new);
+        }
+        ranking = new Ranking(destinations, table);
+        LOG.debug(() -> "Next hops ranked for " + table.length + " device(s), a hop costing "
+            + String.format("%.1fms", hopMillis));
+    }
+
+    /** Expected ms for a frame to cross the link, with {@code rttMillis} for its round trip. */
+    private static double cost(Pings p, double rttMillis, long now) {
+        double rtt = p.waitingSince != 0 ? Math.max(rttMillis, (now - p.waitingSince) / 1e6) : rttMillis;
+        return rtt / Math.max(MIN_DELIVERY, 1 - p.loss);
+    }
+}
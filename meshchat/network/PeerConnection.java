@@ -1,23 +1,95 @@
 package meshchat.network;
 
+import meshchat.jfr.SendQueueEvent;
+import meshchat.metrics.LinkStats;
 import meshchat.model.Message;
 import meshchat.model.Peer;
+import meshchat.routing.DeviceRegistry;
+import meshchat.util.Log;
 
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
 public class PeerConnection implements Closeable {
-    private final Socket socket;
-    private final PrintWriter writer;
-    private final BufferedReader reader;
+    private static final Log LOG = Log.get("CONNECTION");
+
+    /**
+     * Link-local keepalive, sent when a link with a heartbeat has been idle
+     * for one interval, or when its round trip is due to be measured. Its
+     * text, if any, is the sender's clock, which comes back in a {@link #PONG}.
+     */
+    static final String PING = "PING";
+    /** Answer to a {@link #PING} with text, echoing it. */
+    static final String PONG = "PONG";
+    /** Missing this many heartbeat intervals in a row closes the link. */
+    private static final int HEARTBEATS_MISSED = 3;
+    /** A batch this large goes out without waiting for the linger. */
+    private static final int MAX_BATCH_BYTES = 16 * 1024;
+    /** Timer work waiting for a link's writer beyond this is dropped; the link is stuck anyway. */
+    private static final int MAX_WRITER_TASKS = 256;
+
+    private final Socket socket; // null for in-memory links
+    private final Closeable channel;
+    private final String remoteHost;
+    private final OutputStream out;
+    private final InputStream in;
+    private final LinkStats stats = new LinkStats();
+    private IngressLimiter ingress;
     private Peer peer;
+    private volatile int peerHandle = DeviceRegistry.NONE;
+    private volatile boolean dialed;
     private volatile boolean running = true;
+    private LinkCompression compression; // guarded by out; null until the peer agrees to it
+    private volatile byte[] dictionary; // the peer's deflate dictionary, once agreed
+    private volatile LinkCipher cipher; // written under out; null while the link is plain
+    private volatile String handshakeText; // what our HANDSHAKE said, once sent
+    private DatagramLink datagramLink; // in-memory links come with one
+    private volatile DatagramPath datagrams; // null while everything goes on the stream
+    private volatile int datagramId;
+    private volatile Consumer<Frame> frameSink;
+    private volatile TokenBucket bucket;
+    private volatile LinkParameters parameters; // null until the HANDSHAKEs are in
+    private volatile LinkSession session; // null until the HANDSHAKEs are in
+    private volatile int peerMaxFrameBytes = Integer.MAX_VALUE;
+    private long lingerNanos; // guarded by out; 0 flushes every write
+    private boolean flushPending; // guarded by out
+    private volatile long flushAt; // nanoTime the pending batch is due, 0 if none
+    private long batchBytes; // guarded by out; frame bytes in the record being batched
+    private final Queue<Runnable> writerTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger writerBacklog = new AtomicInteger();
+    private volatile Thread writer; // started on first use; see writeSoon
+    // Heartbeat bookkeeping, touched only by the node's heartbeat tick
+    private long heardCount, heardAt, saidCount, saidAt, pingedAt;
+    private LinkParameters ticked; // the parameters the times above were last reset for
 
     public PeerConnection(Socket socket) throws IOException {
+        this(socket, socket.getInputStream(), socket.getOutputStream(),
+            socket.getInetAddress().getHostAddress(), socket);
+    }
+
+    /**
+     * Connection over arbitrary streams, e.g. in-memory links for benchmarks and simulation.
+     * {@code channel} is closed when the connection is.
+     */
+    public PeerConnection(InputStream in, OutputStream out, String remoteHost, Closeable channel) {
+        this(null, in, out, remoteHost, channel);
+    }
+
+    private PeerConnection(Socket socket, InputStream in, OutputStream out, String remoteHost, Closeable channel) {
         this.socket = socket;
-        this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
-        this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.channel = channel;
+        this.remoteHost = remoteHost;
+        this.out = new BufferedOutputStream(out);
+        this.in = in;
     }
 
     public void setPeer(Peer peer) {
@@ -28,42 +100,557 @@ public class PeerConnection implements Closeable {
         return peer;
     }
 
+    /** We opened this connection, rather than accepting it. */
+    void setDialed() {
+        this.dialed = true;
+    }
+
+    boolean isDialed() {
+        return dialed;
+    }
+
+    /** The peer's {@link DeviceRegistry} handle once the handshake is done, else {@code NONE}. */
+    public int getPeerHandle() {
+        return peerHandle;
+    }
+
+    void setPeerHandle(int peerHandle) {
+        this.peerHandle = peerHandle;
+    }
+
     public String getRemoteHost() {
-        return socket.getInetAddress().getHostAddress();
+        return remoteHost;
+    }
+
+    /** The peer's address, or null for an in-memory link. */
+    InetAddress getRemoteAddress() {
+        return socket != null ? socket.getInetAddress() : null;
+    }
+
+    /** The peer's port; on a link we dialed, the one it listens on. 0 for an in-memory link. */
+    int getRemotePort() {
+        return socket != null ? socket.getPort() : 0;
+    }
+
+    public LinkStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Enforces frame size and rate limits on this connection; must be set
+     * before {@link #startReading}.
+     */
+    public void setIngress(IngressLimiter ingress) {
+        this.ingress = ingress;
     }
 
     public void send(Message msg) {
-        if (!socket.isClosed() && socket.isConnected()) {
-            writer.println(msg.toJson());
+        if (isConnected()) {
+            byte[] json = msg.toJson().getBytes(StandardCharsets.UTF_8);
+            if (isData(msg.to()) && sendDatagram(json, json.length)) return;
+            SendQueueEvent waited = new SendQueueEvent();
+            write(json, json.length, waited, !isControl(msg.to()));
+            if (waited.shouldCommit()) {
+                waited.set(msg.id(), msg.ttl(), json.length);
+                waited.remoteHost = getRemoteHost();
+                waited.commit();
+            }
+        }
+    }
+
+    /** Sends an already encoded message, e.g. one kept to answer a later request for it. */
+    void send(byte[] json, String id) {
+        if (isConnected()) {
+            SendQueueEvent waited = new SendQueueEvent();
+            write(json, json.length, waited, true);
+            if (waited.shouldCommit()) {
+                waited.set(id, -1, json.length);
+                waited.remoteHost = getRemoteHost();
+                waited.commit();
+            }
+        }
+    }
+
+    /** Sends a received frame's bytes unchanged, e.g. a relayed message with its TTL patched. */
+    void send(Frame frame) {
+        if (isConnected()) {
+            if (!frame.broadcast && sendDatagram(frame.buf, frame.len)) return;
+            SendQueueEvent waited = new SendQueueEvent();
+            write(frame.buf, frame.len, waited, true);
+            if (waited.shouldCommit()) {
+                waited.set(frame.id(), frame.ttl(), frame.len);
+                waited.remoteHost = getRemoteHost();
+                waited.commit();
+            }
+        }
+    }
+
+    /**
+     * Messages for a device; link-local control messages have short names.
+     * Tree traffic stays on the stream: a copy resent there after its datagram
+     * arrived would look like a redundant path and prune the tree.
+     */
+    private static boolean isData(String to) {
+        return to.length() > "HANDSHAKE".length() && !to.startsWith(Message.CHANNEL_PREFIX);
+    }
+
+    /** Link-local: means nothing on another link, so never replayed on one. */
+    private static boolean isControl(String to) {
+        return to.length() <= "HANDSHAKE".length() && !to.equals(Message.BROADCAST);
+    }
+
+    private boolean sendDatagram(byte[] bytes, int len) {
+        DatagramPath p = datagrams;
+        return p != null && p.send(bytes, len, System.currentTimeMillis());
+    }
+
+    /**
+     * A datagram path for an in-memory link; used once both sides offer
+     * datagrams in their HANDSHAKE. Must be set before the link is attached.
+     */
+    public void setDatagramLink(DatagramLink link) {
+        this.datagramLink = link;
+    }
+
+    DatagramLink getDatagramLink() {
+        return datagramLink;
+    }
+
+    /** This link's ID on the node's {@link DatagramEndpoint}, 0 if none. */
+    int getDatagramId() {
+        return datagramId;
+    }
+
+    void setDatagramId(int datagramId) {
+        this.datagramId = datagramId;
+    }
+
+    /** Both sides offered datagrams: small data messages go over {@code link} from now on. */
+    void startDatagrams(DatagramLink link) {
+        datagrams = new DatagramPath(link, cipher, this::resendOnStream, stats, getRemoteHost());
+    }
+
+    private void resendOnStream(byte[] bytes, int len) {
+        if (isConnected()) write(bytes, len, new SendQueueEvent(), true);
+    }
+
+    /**
+     * A datagram from the peer; handled like a frame off the stream, dropped
+     * unless the link agreed to use datagrams.
+     */
+    public void onDatagram(byte[] buf, int off, int len) {
+        DatagramPath p = datagrams;
+        Consumer<Frame> sink = frameSink;
+        if (p == null || sink == null || !running) return;
+        Frame frame = FramePool.SHARED.acquire();
+        if (!p.receive(buf, off, len, frame)) {
+            frame.release();
+            return;
+        }
+        stats.recordIn(frame.len + 1);
+        IngressLimiter limiter = ingress;
+        if (limiter != null && !limiter.admitFrame(bucket, frame.len + 1, this)) {
+            frame.release();
+            return;
+        }
+        sink.accept(frame);
+    }
+
+    /**
+     * Stops the datagram path. What the peer never acknowledged goes to the
+     * session, to be sent again if it resumes on another link.
+     */
+    private void retireDatagrams() {
+        DatagramPath p = datagrams;
+        datagrams = null;
+        LinkSession s = session;
+        if (p != null && s != null) s.carry(this, p.takeUnsettled());
+    }
+
+    void onDatagramFeedback(String text) {
+        DatagramPath p = datagrams;
+        if (p != null) p.onFeedback(text, System.currentTimeMillis());
+    }
+
+    boolean hasDatagrams() {
+        return datagrams != null;
+    }
+
+    /** Periodic datagram upkeep; returns feedback to send the peer, or null. */
+    String tickDatagrams(long now) {
+        DatagramPath p = datagrams;
+        return p != null ? p.tick(now) : null;
+    }
+
+    /** Sends our HANDSHAKE and keeps its text for setting up the link later. */
+    void sendHandshake(Message handshake) {
+        handshakeText = handshake.text();
+        send(handshake);
+    }
+
+    /** Text of the HANDSHAKE we sent, or null if we have not yet. */
+    String handshakeText() {
+        return handshakeText;
+    }
+
+    /**
+     * Keys are agreed: announces the switch with a plain marker, after which
+     * everything we write is sealed, and reads switch at the peer's marker.
+     * Must be called on the reader thread, before the next frame is read.
+     */
+    void startEncryption(LinkCipher cipher) {
+        try {
+            synchronized (out) {
+                out.write(LinkCipher.MARKER);
+                out.write('\n');
+                out.flush();
+                this.cipher = cipher;
+            }
+        } catch (IOException e) {
+            LOG.debug(() -> "Write to " + getRemoteHost() + " failed: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * What the two HANDSHAKEs agreed on for this link: the peer's frame limit,
+     * how long writes may wait to go out together, and the heartbeat. Called
+     * on the reader thread before the link is registered.
+     */
+    void setLinkParameters(LinkParameters parameters) {
+        this.parameters = parameters;
+        if (parameters.maxFrameBytes() > 0) peerMaxFrameBytes = parameters.maxFrameBytes();
+        synchronized (out) {
+            lingerNanos = TimeUnit.MICROSECONDS.toNanos(parameters.lingerMicros());
+        }
+        // Batching ourselves, so the kernel need not hold back small segments too
+        if (socket != null && parameters.has(Handshake.BATCHING)) {
+            try {
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                LOG.debug(() -> "No TCP_NODELAY for " + getRemoteHost() + ": " + e.getMessage());
+            }
+        }
+        stats.setParameters(parameters.toString());
+    }
+
+    /**
+     * Frames written and read from now on count toward {@code session}; on
+     * the reader thread, before the next frame is read or anything but the
+     * HANDSHAKE has been written.
+     */
+    void setSession(LinkSession session) {
+        this.session = session;
+    }
+
+    /** What the link agreed on, or null before its HANDSHAKEs are in. */
+    LinkParameters getLinkParameters() {
+        return parameters;
+    }
+
+    enum Heartbeat { NONE, SEND, TIMED_OUT }
+
+    /**
+     * Heartbeat upkeep, called regularly from one thread: whether to send a
+     * {@link #PING}, because the link has been idle for a heartbeat or it is
+     * {@code pingMillis} since the last one (0: only when idle), or whether it
+     * has heard nothing for {@link #HEARTBEATS_MISSED} heartbeats and should
+     * be closed.
+     */
+    Heartbeat heartbeat(long now, long pingMillis) {
+        LinkParameters p = parameters;
+        if (p == null || p.heartbeatMillis() == 0 && pingMillis <= 0) return Heartbeat.NONE;
+        if (p != ticked) { // the link was (re)negotiated: time it from now
+            ticked = p;
+            heardAt = saidAt = pingedAt = now;
+        }
+        long heard = stats.getMessagesIn(), said = stats.getMessagesOut();
+        if (heard != heardCount) {
+            heardCount = heard;
+            heardAt = now;
+        }
+        if (said != saidCount) {
+            saidCount = said;
+            saidAt = now;
+        }
+        boolean idle = false;
+        if (p.heartbeatMillis() > 0) {
+            if (now - heardAt > (long) HEARTBEATS_MISSED * p.heartbeatMillis()) return Heartbeat.TIMED_OUT;
+            idle = now - saidAt >= p.heartbeatMillis();
+        }
+        if (!idle && (pingMillis <= 0 || now - pingedAt < pingMillis)) return Heartbeat.NONE;
+        pingedAt = now;
+        return Heartbeat.SEND;
+    }
+
+    /**
+     * Both sides offered deflate in their HANDSHAKE: our side may switch to it
+     * from now on, and the peer's side may announce the switch at any time.
+     */
+    void agreeCompression(byte[] dictionary) {
+        this.dictionary = dictionary;
+        synchronized (out) {
+            if (compression == null) compression = new LinkCompression(dictionary);
+        }
+    }
+
+    /** @param replayable a data frame, to keep for sending again on the session's next link */
+    private void write(byte[] bytes, int len, SendQueueEvent waited, boolean replayable) {
+        if (len > peerMaxFrameBytes) {
+            LOG.debug(() -> "Not sending " + len + "-byte frame to " + getRemoteHost() + ", which reads at most " + peerMaxFrameBytes);
+            return;
+        }
+        long wire;
+        waited.begin();
+        try {
+            synchronized (out) {
+                waited.end();
+                wire = writeLocked(bytes, len, replayable);
+            }
+        } catch (IOException e) {
+            LOG.debug(() -> "Write to " + getRemoteHost() + " failed: " + e.getMessage());
+            close();
+            return;
+        }
+        stats.recordOut(len + 1, wire);
+    }
+
+    /**
+     * Under the output lock. Apart from {@link #write} so that stays small
+     * enough to inline into the senders whatever the link runs, and their
+     * {@code SendQueueEvent} is never allocated while it is off.
+     */
+    private long writeLocked(byte[] bytes, int len, boolean replayable) throws IOException {
+        LinkSession s = session;
+        if (s != null) s.onWrite(this, bytes, len, replayable);
+        if (compression != null || cipher != null) return writeEncoded(bytes, len);
+        out.write(bytes, 0, len);
+        out.write('\n');
+        if (lingerNanos == 0) out.flush(); else flushLater();
+        return len + 1;
+    }
+
+    /**
+     * Write through deflate and/or encryption, under the output lock. Kept
+     * apart from {@link #writeLocked} so the plain path stays small enough to inline.
+     * @return bytes on the wire; on an encrypted link that batches, 0 until
+     *         the batch is sealed
+     */
+    private long writeEncoded(byte[] bytes, int len) throws IOException {
+        LinkCompression c = compression;
+        LinkCipher k = cipher;
+        OutputStream target = k != null ? k.plaintext() : out;
+        // The peer reads records of at most its frame cap (plus slack for deflate); a frame
+        // that would take the batch past that goes in a record of its own
+        if (k != null && batchBytes > 0 && batchBytes + len + 1 > peerMaxFrameBytes) sealBatch(c, k, target);
+        boolean batch = lingerNanos != 0 && (k == null || k.pending() < MAX_BATCH_BYTES);
+        long start = System.nanoTime();
+        long wire;
+        if (c != null && c.isActive()) {
+            wire = c.write(target, bytes, len, !batch);
+        } else {
+            target.write(bytes, 0, len);
+            target.write('\n');
+            wire = len + 1;
+        }
+        if (batch) {
+            batchBytes += len + 1;
+            flushLater();
+            return k != null ? 0 : wire;
+        }
+        batchBytes = 0;
+        if (k != null) wire = k.seal(out);
+        out.flush();
+        maybeCompress(c, k, target, wire, System.nanoTime() - start);
+        return wire;
+    }
+
+    /** Under the output lock: seals what the batch holds so far without flushing the socket. */
+    private void sealBatch(LinkCompression c, LinkCipher k, OutputStream target) throws IOException {
+        if (c != null && c.isActive()) c.flush(target);
+        if (k.pending() > 0) stats.recordWireOut(k.seal(out));
+        batchBytes = 0;
+    }
+
+    /** Under the output lock: lets auto compression judge the link by a write that took {@code nanos}. */
+    private void maybeCompress(LinkCompression c, LinkCipher k, OutputStream target, long wire, long nanos)
+            throws IOException {
+        if (c != null && !c.isActive() && c.shouldStart(wire, nanos)) {
+            c.start(target);
+            if (k != null) k.seal(out);
+            out.flush();
+            LOG.info("Compressing link to " + getRemoteHost());
         }
     }
 
-    public void startReading(Consumer<String> onMessage, Runnable onClose) {
+    /** Under the output lock: what was just written goes out with the batch, within the agreed linger. */
+    private void flushLater() {
+        if (flushPending) return;
+        flushPending = true;
+        flushAt = System.nanoTime() + lingerNanos;
+        LockSupport.unpark(writer());
+    }
+
+    /**
+     * Runs {@code task} on this link's writer, a virtual thread of its own,
+     * instead of the caller's: for timers on a shared scheduler, which must
+     * not block on a slow or stalled socket. Tasks run in order; if too many
+     * are waiting, the link is not draining and {@code task} is dropped.
+     */
+    void writeSoon(Runnable task) {
+        if (!running) return;
+        if (writerBacklog.incrementAndGet() > MAX_WRITER_TASKS) {
+            writerBacklog.decrementAndGet();
+            LOG.debug(() -> "Writer for " + getRemoteHost() + " is behind, dropping timer work");
+            return;
+        }
+        writerTasks.add(task);
+        LockSupport.unpark(writer());
+    }
+
+    /** {@link #send(Message)} from the link's writer; see {@link #writeSoon}. */
+    void sendSoon(Message msg) {
+        writeSoon(() -> send(msg));
+    }
+
+    private Thread writer() {
+        Thread w = writer;
+        if (w == null) {
+            synchronized (writerTasks) {
+                w = writer;
+                if (w == null) writer = w = Thread.ofVirtual().name("link-writer-" + remoteHost).start(this::runWriter);
+            }
+        }
+        return w;
+    }
+
+    /** The writer: queued timer work first, then the batch once its linger is up. */
+    private void runWriter() {
+        while (running) {
+            Runnable task;
+            while ((task = writerTasks.poll()) != null) {
+                writerBacklog.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Timer work for " + getRemoteHost() + " failed: " + e.getMessage());
+                }
+            }
+            long due = flushAt;
+            if (due == 0) {
+                LockSupport.park(this);
+            } else if (due - System.nanoTime() > 0) {
+                LockSupport.parkNanos(this, due - System.nanoTime());
+            } else {
+                flushAt = 0; // a later batch cannot be due before this one is flushed
+                flushBatch();
+            }
+        }
+    }
+
+    /** Sends the batch the linger was holding: deflate flushed, sealed as one record. */
+    private void flushBatch() {
+        long wire = 0;
+        try {
+            synchronized (out) {
+                if (!flushPending) return;
+                flushPending = false;
+                batchBytes = 0;
+                LinkCompression c = compression;
+                LinkCipher k = cipher;
+                OutputStream target = k != null ? k.plaintext() : out;
+                long start = System.nanoTime();
+                if (c != null && c.isActive()) wire = c.flush(target);
+                if (k != null && k.pending() > 0) wire = k.seal(out);
+                out.flush();
+                maybeCompress(c, k, target, wire, System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            LOG.debug(() -> "Write to " + getRemoteHost() + " failed: " + e.getMessage());
+            close();
+            return;
+        }
+        if (wire > 0) stats.recordWireOut(wire);
+    }
+
+    /**
+     * Reads frames on a virtual thread. {@code onFrame} owns each frame it is
+     * given and must release it.
+     */
+    void startReading(Consumer<Frame> onFrame, Runnable onClose) {
+        IngressLimiter limiter = ingress;
+        IngressPolicy policy = limiter != null ? limiter.policy() : IngressPolicy.UNLIMITED;
+        FrameReader frames = new FrameReader(in, policy.maxFrameBytes(), FramePool.SHARED);
+        TokenBucket bucket = limiter != null ? limiter.newLinkBucket() : null;
+        this.bucket = bucket;
+        this.frameSink = onFrame;
         Thread.ofVirtual().start(() -> {
             try {
-                String line;
-                while (running && (line = reader.readLine()) != null) {
-                    onMessage.accept(line);
+                Frame frame;
+                boolean sealed = false, compressed = false;
+                while (running && (frame = frames.next()) != null) {
+                    long bytes = frames.lastFrameBytes();
+                    stats.recordIn(bytes);
+                    LinkCipher k = cipher;
+                    if (k != null && !sealed && isMarker(frame, LinkCipher.MARKER)) {
+                        frame.release();
+                        frames.decrypt(k);
+                        sealed = true;
+                        continue;
+                    }
+                    if (dictionary != null && isMarker(frame, LinkCompression.MARKER)) {
+                        frame.release();
+                        if (compressed) { // what is buffered is already inflated
+                            LOG.warn("Repeated compression marker from " + getRemoteHost() + ", closing");
+                            close();
+                            break;
+                        }
+                        frames.inflate(dictionary);
+                        compressed = true;
+                        continue;
+                    }
+                    LinkSession s = session;
+                    if (s != null) s.onRead(this);
+                    if (frames.lastFrameOversized()) {
+                        frame.release();
+                        if (limiter != null) limiter.onOversizedFrame(bytes, this);
+                        continue;
+                    }
+                    if (bucket != null && !limiter.admitFrame(bucket, bytes, this)) {
+                        frame.release();
+                        continue;
+                    }
+                    onFrame.accept(frame);
                 }
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("[CONNECTION] Read error from " + getRemoteHost() + ": " + e.getMessage());
+                    LOG.warn("Read error from " + getRemoteHost() + ": " + e.getMessage());
                 }
             } finally {
+                frames.end();
+                retireDatagrams();
                 onClose.run();
             }
         });
     }
 
+    private static boolean isMarker(Frame frame, byte[] marker) {
+        return frame.len == marker.length && Arrays.equals(frame.buf, 0, frame.len, marker, 0, frame.len);
+    }
+
     public boolean isConnected() {
+        if (socket == null) return running;
         return !socket.isClosed() && socket.isConnected();
     }
 
     @Override
     public void close() {
         running = false;
+        Thread w = writer;
+        if (w != null) LockSupport.unpark(w);
+        retireDatagrams();
         try {
-            socket.close();
+            channel.close();
         } catch (IOException ignored) {}
     }
 }
@@ -0,0 +1,322 @@
+package meshchat.network;
+
+import meshchat.metrics.NodeMetrics;
+import meshchat.model.Message;
+import meshchat.model.Presence;
+import meshchat.util.Log;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Every device this node can reach, with its display name, hop distance and
+ * when it was last heard of, kept up to date by gossip between neighbors.
+ *
+ * Each node announces itself with a version (its clock when it did, so a
+ * restart does not go backwards) and re-announces every
+ * {@link #refreshMillis}. Entries spread over link-local PRESENCE messages,
+ * one line per entry: {@code <deviceId> <version> <hops> <age ms> <name>}.
+ * A newer version replaces what we have, as does the same version over
+ * fewer hops; the hop count is ours plus one. Per link we remember what we
+ * last sent, so every {@link #ROUND_MILLIS} a link gets only the entries
+ * that changed since (a new link: all of them), and never the ones it is
+ * our route to. Entries not re-announced for {@link #EXPIRE_REFRESHES}
+ * refreshes, plus a round per hop for the announcement to travel, are
+ * dropped; nothing needs to announce that a device left.
+ *
+ * Gossip is bounded per link at {@link #ROUND_ENTRIES} entries a round,
+ * nearest first, and the refresh stretches as the directory grows so that
+ * all re-announcements together stay within about half of that; a mesh
+ * twice as large refreshes half as often rather than gossiping twice as
+ * much. Only links whose HANDSHAKE has {@link Handshake#PRESENCE} take part.
+ * Gossiped device IDs must be canonical UUIDs, and the directory holds at
+ * most {@link #MAX_ENTRIES}: past that a newcomer replaces the farthest
+ * entry (the least recently announced of those) if it is nearer, or as near
+ * and newer, and is ignored otherwise. So a neighbor making up devices cannot
+ * stretch the refresh without bound.
+ *
+ * What each neighbor last said about a device, better than ours or not, is
+ * kept too: how many hops it is from there ({@link #heard}). That is the
+ * choice of next hops {@link MultipathRoutes} ranks.
+ */
+final class PresenceDirectory {
+    private static final Log LOG = Log.get("PRESENCE");
+
+    static final String PRESENCE = "PRESENCE";
+
+    private static final long ROUND_MILLIS = 1000;
+    private static final int ROUND_ENTRIES = 32;
+    private static final long MIN_REFRESH_MILLIS = Long.getLong("meshchat.presence.refresh", 60_000);
+    private static final int EXPIRE_REFRESHES = 3;
+    private static final int MAX_NAME = 32;
+    static final int MAX_ENTRIES = 4096;
+
+    private final String deviceId;
+    private final ScheduledExecutorService scheduler;
+    private final NodeMetrics metrics;
+    // Guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<PeerConnection, Link> links = new ConcurrentHashMap<>();
+    private final Entry self;
+    private volatile Consumer<List<Presence>> listener;
+    private boolean changed; // guarded by this
+
+    private static final class Entry {
+        final String deviceId;
+        String name;
+        long version;
+        int hops;
+        long seenAt; // local time the version was announced
+        PeerConnection via; // null for our own entry
+
+        Entry(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    private static final class Link {
+        final Map<String, long[]> sent = new HashMap<>(); // device -> {version, hops} last sent; guarded by the directory
+        final Map<String, long[]> heard = new HashMap<>(); // device -> {version, hops} the neighbor last sent; likewise
+    }
+
+    PresenceDirectory(String deviceId, String name, ScheduledExecutorService scheduler, NodeMetrics metrics) {
+        this.deviceId = deviceId;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.self = new Entry(deviceId);
+        self.name = clean(name);
+        announce(System.currentTimeMillis());
+    }
+
+    void start() {
+        scheduler.scheduleAtFixedRate(this::round, ROUND_MILLIS, ROUND_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Called at most once a round while entries change, with the directory as {@link #reachable()} gives it. */
+    void setListener(Consumer<List<Presence>> listener) {
+        this.listener = listener;
+    }
+
+    synchronized void setName(String name) {
+        self.name = clean(name);
+        announce(System.currentTimeMillis());
+    }
+
+    synchronized String name() {
+        return self.name;
+    }
+
+    void addLink(PeerConnection conn) {
+        links.put(conn, new Link());
+    }
+
+    void removeLink(PeerConnection conn) {
+        links.remove(conn);
+    }
+
+    /** Every device we currently know of, nearest first; not us. */
+    synchronized List<Presence> reachable() {
+        List<Presence> list = new ArrayList<>(entries.size());
+        for (Entry e : entries.values()) {
+            if (e != self) list.add(new Presence(e.deviceId, e.name, e.hops, e.seenAt));
+        }
+        list.sort(Comparator.comparingInt(Presence::hops).thenComparing(Presence::name).thenComparing(Presence::deviceId));
+        return list;
+    }
+
+    /** Hops to {@code deviceId} as the directory has it, or -1 if unknown. */
+    synchronized int hops(String deviceId) {
+        Entry e = entries.get(deviceId);
+        return e != null && e != self ? e.hops : -1;
+    }
+
+    /**
+     * Per link, the devices the neighbor there reaches and its hop count to
+     * each (0 for the neighbor itself). A neighbor never mentions devices it
+     * reaches through us, so one that started to stops counting once it has
+     * missed a refresh.
+     */
+    synchronized Map<PeerConnection, Map<String, Integer>> heard() {
+        long stale = refreshMillis();
+        Map<PeerConnection, Map<String, Integer>> heard = new HashMap<>();
+        for (Map.Entry<PeerConnection, Link> l : links.entrySet()) {
+            Map<String, Integer> reaches = new HashMap<>();
+            for (Map.Entry<String, long[]> h : l.getValue().heard.entrySet()) {
+                Entry e = entries.get(h.getKey());
+                if (e != null && h.getValue()[0] >= e.version - stale) reaches.put(h.getKey(), (int) h.getValue()[1]);
+            }
+            heard.put(l.getKey(), reaches);
+        }
+        return heard;
+    }
+
+    /** A PRESENCE message from a neighbor. */
+    void onGossip(Message msg, PeerConnection conn) {
+        Link link = links.get(conn);
+        if (link == null) return;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (String line : msg.text().split("\n")) {
+                String[] f = line.split(" ", 5);
+                if (f.length < 4 || f[0].equals(deviceId) || !isUuid(f[0])) continue;
+                long version, age;
+                int hops;
+                try {
+                    version = Long.parseLong(f[1]);
+                    hops = Integer.parseInt(f[2]) + 1;
+                    age = Math.max(0, Long.parseLong(f[3]));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (hops > Message.BROADCAST_TTL) continue;
+                Entry e = entries.get(f[0]);
+                if (e == null && !makeRoom(hops, now - age)) continue;
+                link.heard.put(f[0], new long[]{version, hops - 1});
+                if (e != null && (version < e.version || version == e.version && hops >= e.hops)) continue;
+                if (e == null) {
+                    e = new Entry(f[0]);
+                    entries.put(e.deviceId, e);
+                }
+                e.name = f.length > 4 ? clean(f[4]) : "";
+                e.version = version;
+                e.hops = hops;
+                e.seenAt = now - age;
+                e.via = conn;
+                changed = true;
+            }
+        }
+    }
+
+    /**
+     * Re-announces us when due, drops what expired, sends each link its delta;
+     * the sends are queued on the links' writers once the directory is unlocked.
+     */
+    private void round() {
+        try {
+            round(System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            LOG.warn("Presence round failed: " + e.getMessage());
+        }
+    }
+
+    private void round(long now) {
+        List<Presence> update = null;
+        Map<PeerConnection, Message> deltas = new HashMap<>();
+        synchronized (this) {
+            long refresh = refreshMillis();
+            if (now - self.seenAt >= refresh) announce(now);
+            Iterator<Entry> it = entries.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                // A far entry is already older by the rounds it took to get here
+                if (e != self && now - e.seenAt > EXPIRE_REFRESHES * refresh + e.hops * ROUND_MILLIS) {
+                    it.remove();
+                    forget(e.deviceId);
+                    LOG.debug(() -> "Expired " + e.deviceId.substring(0, 8));
+                }
+            }
+            for (Map.Entry<PeerConnection, Link> l : links.entrySet()) {
+                String delta = delta(l.getKey(), l.getValue(), now);
+                if (delta != null) deltas.put(l.getKey(), new Message(UUID.randomUUID().toString(), deviceId, PRESENCE, 0, delta, now));
+            }
+            if (changed && listener != null) {
+                changed = false;
+                update = reachable();
+            }
+        }
+        deltas.forEach(PeerConnection::sendSoon);
+        Consumer<List<Presence>> l = listener;
+        if (update != null && l != null) l.accept(update);
+    }
+
+    /**
+     * Whether a new entry {@code hops} away, announced at {@code seenAt}, may
+     * be added: there is room, or it is nearer, or as near and newer, than the
+     * farthest entry, which is then dropped.
+     */
+    private boolean makeRoom(int hops, long seenAt) {
+        if (entries.size() < MAX_ENTRIES) return true;
+        Entry victim = null;
+        for (Entry e : entries.values()) {
+            if (e != self && (victim == null || e.hops > victim.hops || e.hops == victim.hops && e.seenAt < victim.seenAt)) {
+                victim = e;
+            }
+        }
+        if (victim == null || hops > victim.hops || hops == victim.hops && seenAt <= victim.seenAt) return false;
+        entries.remove(victim.deviceId);
+        forget(victim.deviceId);
+        return true;
+    }
+
+    /** What the links sent and heard of a device no longer in the directory. */
+    private void forget(String deviceId) {
+        for (Link link : links.values()) {
+            link.sent.remove(deviceId);
+            link.heard.remove(deviceId);
+        }
+        changed = true;
+    }
+
+    /** Entries {@code conn} has not had in this version and hop count, nearest first, up to the budget; null if none. */
+    private String delta(PeerConnection conn, Link link, long now) {
+        List<Entry> due = new ArrayList<>();
+        for (Entry e : entries.values()) {
+            if (e.via == conn) continue; // it is our way there, so it knows better
+            long[] sent = link.sent.get(e.deviceId);
+            if (sent == null || sent[0] < e.version || sent[0] == e.version && sent[1] > e.hops) due.add(e);
+        }
+        if (due.isEmpty()) return null;
+        if (due.size() > ROUND_ENTRIES) {
+            due.sort(Comparator.comparingInt(e -> e.hops));
+            due = due.subList(0, ROUND_ENTRIES);
+        }
+        StringBuilder text = new StringBuilder();
+        for (Entry e : due) {
+            if (!text.isEmpty()) text.append('\n');
+            text.append(e.deviceId).append(' ').append(e.version).append(' ').append(e.hops).append(' ')
+                .append(Math.max(0, now - e.seenAt)).append(' ').append(e.name);
+            link.sent.put(e.deviceId, new long[]{e.version, e.hops});
+        }
+        metrics.presenceEntriesSent.add(due.size());
+        return text.toString();
+    }
+
+    /**
+     * How often we re-announce: the minimum, or longer once the directory is
+     * big enough that everyone's announcements would take more than half of
+     * every link's gossip budget.
+     */
+    private long refreshMillis() {
+        return Math.max(MIN_REFRESH_MILLIS, 2 * entries.size() * ROUND_MILLIS / ROUND_ENTRIES);
+    }
+
+    private void announce(long now) {
+        self.version = Math.max(self.version + 1, now);
+        self.hops = 0;
+        self.seenAt = now;
+        entries.put(deviceId, self);
+    }
+
+    /** Canonical form only: 8-4-4-4-12 hex digits, as every node's ID is made. */
+    private static boolean isUuid(String id) {
+        if (id.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = id.charAt(i);
+            boolean ok = i == 8 || i == 13 || i == 18 || i == 23
+                ? c == '-'
+                : c >= '0' && c <= '9' || c >= 'a' && c <= 'f' || c >= 'A' && c <= 'F';
+            if (!ok) return false;
+        }
+        return true;
+    }
+
+    /** Names travel at the end of a line: no line breaks, trimmed, short. */
+    private static String clean(String name) {
+        if (name == null) return "";
+        String s = name.replaceAll("\\s+", " ").trim();
+        return s.length() > MAX_NAME ? s.substring(0, MAX_NAME) : s;
+    }
+}
@@ -0,0 +1,155 @@
+package meshchat.network;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The devices that registered with a rendezvous node lately, for handing out
+ * to the next one. Split into shards by device ID, each with its own lock, so
+ * registrations arriving together rarely wait on each other.
+ *
+ * A shard keeps its entries in an array, for picking one at random in one
+ * step, and their registrations in a queue, oldest first, so expired entries
+ * are always at its head and are swept from there whenever the shard is
+ * used. A shard holds at most {@link #MAX_PER_SHARD} devices; past that the
+ * one that registered longest ago makes room. So a sender making up device
+ * IDs only ever pushes out other entries, and the registry stays bounded.
+ */
+final class RendezvousRegistry {
+    static final int MAX_PER_SHARD = 4096;
+    /** Random picks {@link #sample} tries per entry it hands out, before it settles for fewer. */
+    private static final int TRIES_PER_PICK = 4;
+
+    /** {@code host} null: whichever of our addresses the asking device reached ({@link RendezvousServer#setLocal}). */
+    record Entry(String deviceId, String host, int port, long expiresAt) {
+    }
+
+    /** One shard; guarded by itself. */
+    private static final class Shard {
+        Entry[] entries = new Entry[16]; // [0, size), in no order
+        int size;
+        final Map<String, Integer> slots = new HashMap<>(); // device ID -> index in entries
+        // Every registration in order; one whose entry was renewed or evicted since is skipped
+        final ArrayDeque<Entry> registered = new ArrayDeque<>();
+    }
+
+    private final Shard[] shards;
+    private final long ttlMillis;
+
+    RendezvousRegistry(int shards, long ttlMillis) {
+        this.shards = new Shard[Integer.highestOneBit(Math.max(1, shards) * 2 - 1)];
+        for (int i = 0; i < this.shards.length; i++) this.shards[i] = new Shard();
+        this.ttlMillis = ttlMillis;
+    }
+
+    void register(String deviceId, String host, int port, long now) {
+        Shard shard = shardOf(deviceId);
+        Entry entry = new Entry(deviceId, host, port, now + ttlMillis);
+        synchronized (shard) {
+            sweep(shard, now);
+            Integer slot = shard.slots.get(deviceId);
+            if (slot != null) {
+                shard.entries[slot] = entry;
+            } else {
+                if (shard.size == MAX_PER_SHARD) evictOldest(shard);
+                if (shard.size == shard.entries.length) shard.entries = Arrays.copyOf(shard.entries, shard.size * 2);
+                shard.entries[shard.size] = entry;
+                shard.slots.put(deviceId, shard.size++);
+            }
+            shard.registered.addLast(entry);
+            // Renewals leave stale registrations behind until they expire; a device renewing
+            // far more often than the TTL would pile them up
+            if (shard.registered.size() > 2 * MAX_PER_SHARD) {
+                shard.registered.removeIf(e -> !isCurrent(shard, e));
+            }
+        }
+    }
+
+    /**
+     * Up to {@code max} live entries other than {@code except}, picked at
+     * random: a random shard, or the next one that has entries, then a
+     * random entry in it, so a request costs a few short lock holds however
+     * many devices are registered. Each device is about equally likely, as
+     * IDs spread evenly over the shards; with only a few registered, fewer
+     * than {@code max} may come back.
+     */
+    List<Entry> sample(String except, int max, long now) {
+        List<Entry> picked = new ArrayList<>(max);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int tries = max * TRIES_PER_PICK; tries > 0 && picked.size() < max; tries--) {
+            Entry e = pick(random.nextInt(shards.length), random, now);
+            if (e == null) break; // nothing registered
+            if (e.expiresAt <= now || e.deviceId.equals(except) || picked.contains(e)) continue;
+            picked.add(e);
+        }
+        return picked;
+    }
+
+    /** A random entry of the first shard from {@code start} on that has live ones; null if none has. */
+    private Entry pick(int start, ThreadLocalRandom random, long now) {
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) & (shards.length - 1)];
+            synchronized (shard) {
+                sweep(shard, now);
+                if (shard.size > 0) return shard.entries[random.nextInt(shard.size)];
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        int n = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                n += shard.size;
+            }
+        }
+        return n;
+    }
+
+    private Shard shardOf(String deviceId) {
+        int h = deviceId.hashCode();
+        return shards[(h ^ h >>> 16) & (shards.length - 1)];
+    }
+
+    /** Drops the entries at the head of the registration order that have expired. */
+    private static void sweep(Shard shard, long now) {
+        Entry head;
+        while ((head = shard.registered.peekFirst()) != null && head.expiresAt <= now) {
+            shard.registered.pollFirst();
+            if (isCurrent(shard, head)) remove(shard, head.deviceId);
+        }
+    }
+
+    private static void evictOldest(Shard shard) {
+        Entry head;
+        while ((head = shard.registered.pollFirst()) != null) {
+            if (isCurrent(shard, head)) {
+                remove(shard, head.deviceId);
+                return;
+            }
+        }
+    }
+
+    /** {@code e} is its device's latest registration, not one renewed since. */
+    private static boolean isCurrent(Shard shard, Entry e) {
+        Integer slot = shard.slots.get(e.deviceId);
+        return slot != null && shard.entries[slot] == e;
+    }
+
+    /** Fills the device's slot with the last entry, so the array stays dense. */
+    private static void remove(Shard shard, String deviceId) {
+        int slot = shard.slots.remove(deviceId);
+        Entry last = shard.entries[--shard.size];
+        shard.entries[shard.size] = null;
+        if (slot != shard.size) {
+            shard.entries[slot] = last;
+            shard.slots.put(last.deviceId, slot);
+        }
+    }
+}
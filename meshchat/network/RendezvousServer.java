@@ -0,0 +1,184 @@
+package meshchat.network;
+
+import meshchat.util.Args;
+import meshchat.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rendezvous for networks that filter discovery broadcasts. Devices started
+ * with {@code -Dmeshchat.seeds=host[:port],...} connect here over TCP and send
+ * one line,
+ *
+ * <pre>
+ * SEED &lt;deviceId&gt; &lt;tcpPort&gt;
+ * </pre>
+ *
+ * and get back up to {@link #BATCH} other devices that registered lately, one
+ * {@code <deviceId> <host> <port>} line each, before the connection closes.
+ * The asking device is registered under the address it connected from, so a
+ * cold start costs one round trip and the mesh takes it from there. Entries
+ * not renewed within the registry's TTL are dropped ({@link RendezvousRegistry}).
+ *
+ * A mesh node serves this beside its own links with
+ * {@code -Dmeshchat.rendezvous.port=45680}, and then hands itself out too; the
+ * {@link #main} here runs a seed on its own:
+ *
+ * <pre>
+ * java -cp out meshchat.network.RendezvousServer --port 45680 --ttl 90
+ * </pre>
+ */
+public final class RendezvousServer {
+    private static final Log LOG = Log.get("SEED");
+
+    public static final int PORT = 45680;
+    static final String REQUEST = "SEED";
+    static final int BATCH = 8;
+    static final int MAX_LINE = 256;
+    static final int TIMEOUT_MILLIS = 2000;
+    static final int MAX_ID_CHARS = 64;
+
+    private final RendezvousRegistry registry;
+    private final ServerSocket serverSocket;
+    private volatile RendezvousRegistry.Entry local; // the mesh node serving this, if any
+
+    public RendezvousServer(int port, long ttlMillis) throws IOException {
+        this.registry = new RendezvousRegistry(Runtime.getRuntime().availableProcessors() * 4, ttlMillis);
+        this.serverSocket = new ServerSocket(port);
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** The mesh node serving this; it leads every batch, at whichever of our addresses the request came in on. */
+    public void setLocal(String deviceId, int tcpPort) {
+        local = new RendezvousRegistry.Entry(deviceId, null, tcpPort, Long.MAX_VALUE);
+    }
+
+    public void start() {
+        Thread.ofVirtual().start(() -> {
+            LOG.info("Rendezvous listening on port " + port());
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket client = serverSocket.accept();
+                    Thread.ofVirtual().start(() -> serve(client));
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) LOG.warn("Accept error: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {}
+    }
+
+    private void serve(Socket client) {
+        try (client) {
+            client.setSoTimeout(TIMEOUT_MILLIS);
+            String[] f = readLine(client.getInputStream()).split(" ");
+            if (f.length != 3 || !REQUEST.equals(f[0]) || !isDeviceId(f[1])) return;
+            int port = Integer.parseInt(f[2]);
+            String host = client.getInetAddress().getHostAddress();
+            long now = System.currentTimeMillis();
+            List<RendezvousRegistry.Entry> batch = new ArrayList<>(BATCH);
+            RendezvousRegistry.Entry self = local;
+            if (self != null && !self.deviceId().equals(f[1])) batch.add(self);
+            batch.addAll(registry.sample(f[1], BATCH - batch.size(), now));
+            if (port > 0 && port < 65536) registry.register(f[1], host, port, now);
+            StringBuilder reply = new StringBuilder();
+            for (RendezvousRegistry.Entry e : batch) {
+                String entryHost = e.host() != null ? e.host() : client.getLocalAddress().getHostAddress();
+                reply.append(e.deviceId()).append(' ').append(entryHost).append(' ').append(e.port()).append('\n');
+            }
+            OutputStream out = client.getOutputStream();
+            out.write(reply.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            LOG.debug(() -> "Registered " + f[1] + " @ " + host + ", sent " + batch.size() + " of " + registry.size());
+        } catch (IOException | RuntimeException e) {
+            LOG.debug(() -> "Bad request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Registers with the seed at {@code seed} and returns the devices it
+     * handed out, one {@code <deviceId> <host> <port>} line each.
+     * @param tcpPort where we take links; 0 to only ask
+     */
+    static List<String> query(InetSocketAddress seed, String deviceId, int tcpPort) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(seed.getHostString(), seed.getPort()), TIMEOUT_MILLIS); // resolved afresh
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            OutputStream out = socket.getOutputStream();
+            out.write((REQUEST + " " + deviceId + " " + tcpPort + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            List<String> lines = new ArrayList<>(BATCH);
+            for (String line; lines.size() < BATCH && !(line = readLine(in)).isEmpty(); ) lines.add(line);
+            return lines;
+        }
+    }
+
+    /** One line, without its end; empty at the end of the stream. */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b; (b = in.read()) >= 0 && b != '\n'; ) {
+            if (line.size() >= MAX_LINE) throw new IOException("line too long");
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * {@code "host"}, {@code "host:port"} or {@code "[v6]:port"}, the port
+     * defaulting to {@link #PORT}; resolved on every {@link #query}.
+     */
+    static InetSocketAddress parseSeed(String address) {
+        return Args.hostPort(address, PORT);
+    }
+
+    /**
+     * Whether {@code deviceId} looks like one: at most {@link #MAX_ID_CHARS}
+     * letters, digits and dashes, as a UUID is. Anything else is not
+     * registered or handed out.
+     */
+    static boolean isDeviceId(String deviceId) {
+        if (deviceId.isEmpty() || deviceId.length() > MAX_ID_CHARS) return false;
+        for (int i = 0; i < deviceId.length(); i++) {
+            char c = deviceId.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '-')) return false;
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> opt = Args.parse(args);
+        int port = Integer.parseInt(opt.getOrDefault("port", String.valueOf(PORT)));
+        long ttl = Long.parseLong(opt.getOrDefault("ttl", "90"));
+        RendezvousServer server = new RendezvousServer(port, ttl * 1000);
+        server.start();
+        System.out.println("Rendezvous seed on port " + server.port() + ", entries expire after " + ttl + "s");
+        while (true) {
+            try {
+                Thread.sleep(60_000);
+            } catch (InterruptedException e) {
+                break;
+            }
+            LOG.info(server.registry.size() + " device(s) registered");
+        }
+        server.stop();
+    }
+}
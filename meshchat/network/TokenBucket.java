@@ -0,0 +1,53 @@
+package meshchat.network;
+
+/**
+ * Paired message-rate and byte-rate token buckets, refilled lazily on use.
+ * Each bucket holds at most one second's worth of tokens. A rate of 0 means unlimited.
+ */
+final class TokenBucket {
+    private final double msgsPerSec;
+    private final double bytesPerSec;
+    private double msgTokens;
+    private double byteTokens;
+    private long lastRefill;
+    private volatile long lastUsed;
+
+    TokenBucket(double msgsPerSec, double bytesPerSec) {
+        this.msgsPerSec = msgsPerSec;
+        this.bytesPerSec = bytesPerSec;
+        this.msgTokens = msgsPerSec;
+        this.byteTokens = bytesPerSec;
+        this.lastRefill = System.nanoTime();
+        this.lastUsed = lastRefill;
+    }
+
+    /**
+     * Takes one message and {@code bytes} bytes if both are available.
+     * @return 0 if admitted, otherwise nanoseconds until it would be
+     */
+    synchronized long tryAcquire(long bytes) {
+        long now = System.nanoTime();
+        lastUsed = now;
+        double elapsed = (now - lastRefill) / 1e9;
+        lastRefill = now;
+        if (msgsPerSec > 0) msgTokens = Math.min(msgsPerSec, msgTokens + elapsed * msgsPerSec);
+        if (bytesPerSec > 0) byteTokens = Math.min(bytesPerSec, byteTokens + elapsed * bytesPerSec);
+
+        boolean msgOk = msgsPerSec <= 0 || msgTokens >= 1;
+        // A frame bigger than a full bucket is admitted once the bucket is full
+        boolean bytesOk = bytesPerSec <= 0 || byteTokens >= Math.min(bytes, bytesPerSec);
+        if (msgOk && bytesOk) {
+            if (msgsPerSec > 0) msgTokens -= 1;
+            if (bytesPerSec > 0) byteTokens -= bytes;
+            return 0;
+        }
+        double wait = 0;
+        if (!msgOk) wait = Math.max(wait, (1 - msgTokens) / msgsPerSec);
+        if (!bytesOk) wait = Math.max(wait, (Math.min(bytes, bytesPerSec) - byteTokens) / bytesPerSec);
+        return Math.max(1, (long) (wait * 1e9));
+    }
+
+    long lastUsedNanos() {
+        return lastUsed;
+    }
+}
@@ -0,0 +1,129 @@
+package meshchat.routing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Node-local mapping from 36-char device IDs to small int handles. Each ID is
+ * hashed once when it enters the node (handshake, discovery, decode) and the
+ * handle is used as the key in connection maps and routing state from then on;
+ * strings are only looked up again for logs and the UI.
+ *
+ * Handles are dense, start at 0 and are never reused. The registry only grows,
+ * so only devices the node has a reason to keep state for are interned: its
+ * links and the devices it sends to. IDs that merely arrive in a message's
+ * {@code from} are looked up with {@link #find}, never interned; anyone can
+ * put anything there.
+ */
+public final class DeviceRegistry {
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> handles = new ConcurrentHashMap<>();
+    private volatile String[] ids = new String[16];
+    private volatile String[] shortIds = new String[16];
+    private volatile ByteIndex byteIndex = new ByteIndex(32);
+    private int next;
+
+    /** Handle for {@code deviceId}, assigning one on first sight. */
+    public int intern(String deviceId) {
+        Integer h = handles.get(deviceId);
+        if (h != null) return h;
+        synchronized (this) {
+            h = handles.get(deviceId);
+            if (h != null) return h;
+            int handle = next++;
+            if (handle == ids.length) {
+                ids = Arrays.copyOf(ids, handle * 2);
+                shortIds = Arrays.copyOf(shortIds, handle * 2);
+            }
+            // Written before the map put, so anyone who can see the handle sees the strings
+            shortIds[handle] = deviceId.length() > 8 ? deviceId.substring(0, 8) : deviceId;
+            ids[handle] = deviceId;
+            byte[] key = deviceId.getBytes(StandardCharsets.UTF_8);
+            if (!byteIndex.add(key, handle)) byteIndex = byteIndex.grown(key, handle);
+            handles.put(deviceId, handle);
+            return handle;
+        }
+    }
+
+    /**
+     * Handle for the UTF-8 device ID in {@code buf[off, off + len)}, or
+     * {@link #NONE}; lets the forward path look up a sender without building
+     * a String.
+     */
+    public int find(byte[] buf, int off, int len) {
+        return byteIndex.find(buf, off, len);
+    }
+
+    /** Handle for {@code deviceId}, or {@link #NONE} if it has never been interned. */
+    public int find(String deviceId) {
+        Integer h = handles.get(deviceId);
+        return h != null ? h : NONE;
+    }
+
+    public String deviceId(int handle) {
+        return ids[handle];
+    }
+
+    /** First 8 characters of the device ID, for logs. */
+    public String shortId(int handle) {
+        return shortIds[handle];
+    }
+
+    public int size() {
+        return handles.size();
+    }
+
+    /**
+     * Open-addressing index over the IDs' bytes. Inserts (under the registry's
+     * lock) write the key before the slot, so a lock-free lookup that sees the
+     * slot sees the key; the table is only copied when it doubles, at half full.
+     */
+    private static final class ByteIndex {
+        private final byte[][] keys; // by handle
+        private final AtomicIntegerArray table; // handle + 1, 0 if empty
+
+        ByteIndex(int slots) {
+            keys = new byte[slots / 2][];
+            table = new AtomicIntegerArray(slots);
+        }
+
+        /** @return false if the table is full and must grow first */
+        boolean add(byte[] key, int handle) {
+            if (handle >= keys.length) return false;
+            keys[handle] = key;
+            int mask = table.length() - 1;
+            int i = hash(key, 0, key.length) & mask;
+            while (table.get(i) != 0) i = (i + 1) & mask;
+            table.set(i, handle + 1);
+            return true;
+        }
+
+        /** A copy twice the size with every key so far and {@code key}. */
+        ByteIndex grown(byte[] key, int handle) {
+            ByteIndex g = new ByteIndex(table.length() * 2);
+            for (int h = 0; h < handle; h++) g.add(keys[h], h);
+            g.add(key, handle);
+            return g;
+        }
+
+        int find(byte[] buf, int off, int len) {
+            int mask = table.length() - 1;
+            int slot;
+            for (int i = hash(buf, off, len) & mask; (slot = table.get(i)) != 0; i = (i + 1) & mask) {
+                byte[] k = keys[slot - 1];
+                if (Arrays.equals(k, 0, k.length, buf, off, off + len)) return slot - 1;
+            }
+            return NONE;
+        }
+
+        private static int hash(byte[] b, int off, int len) {
+            int h = 0;
+            for (int i = off; i < off + len; i++) h = 31 * h + b[i];
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package meshchat.routing;
+
+import java.util.Arrays;
+
+/**
+ * Hop distance from this node to the devices it has a handle for, learned
+ * from the TTL messages arrive with (see {@code Message.hops()}). Origins
+ * without one are not measured: that would mean interning whatever IDs
+ * senders put in their messages. The first copy of a
+ * flooded message comes the quickest way, so the latest first-copy sample is
+ * taken as the current distance. Samples older than the maximum age are
+ * forgotten: a device that has gone quiet is unknown again rather than
+ * remembered as closer than it may now be.
+ *
+ * Indexed by {@link DeviceRegistry} handle. {@link #observe} takes no lock and
+ * allocates nothing, so the forward path can call it; writes are plain, so a
+ * reader may see a sample late, and one racing an array resize may be lost.
+ */
+public final class HopDistances {
+    private final long maxAgeMillis;
+    private volatile int[] hops = new int[64];
+    private volatile long[] seenAt = new long[64];
+
+    public HopDistances(long maxAgeMillis) {
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    public void observe(int handle, int hops, long now) {
+        if (handle < 0 || hops <= 0) return;
+        int[] h = this.hops;
+        long[] t = this.seenAt;
+        if (handle >= h.length || handle >= t.length) {
+            grow(handle);
+            h = this.hops;
+            t = this.seenAt;
+        }
+        h[handle] = hops;
+        t[handle] = now;
+    }
+
+    /** Hops to {@code handle} as last measured, or -1 if unknown or too old. */
+    public int distance(int handle, long now) {
+        int[] h = this.hops;
+        long[] t = this.seenAt;
+        if (handle < 0 || handle >= h.length || handle >= t.length) return -1;
+        return h[handle] > 0 && now - t[handle] <= maxAgeMillis ? h[handle] : -1;
+    }
+
+    /**
+     * Longest current distance to any device: the mesh's extent as seen from
+     * here, between half the diameter and all of it; 0 if nothing is known.
+     */
+    public int diameter(long now) {
+        int[] h = this.hops;
+        long[] t = this.seenAt;
+        int max = 0;
+        for (int i = 0; i < Math.min(h.length, t.length); i++) {
+            if (h[i] > max && now - t[i] <= maxAgeMillis) max = h[i];
+        }
+        return max;
+    }
+
+    private synchronized void grow(int handle) {
+        int size = Math.max(hops.length, 64);
+        while (size <= handle) size *= 2;
+        if (size == hops.length) return;
+        seenAt = Arrays.copyOf(seenAt, size);
+        hops = Arrays.copyOf(hops, size);
+    }
+}
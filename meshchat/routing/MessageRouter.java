@@ -1,49 +1,183 @@
 package meshchat.routing;
 
+import meshchat.jfr.RouteDecisionEvent;
+import meshchat.metrics.NodeMetrics;
 import meshchat.model.Message;
+import meshchat.util.Log;
 
-import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
 
+/**
+ * Dedup + TTL decisions. Seen-ID state is split into shards keyed by a hash of
+ * (origin, destination): every copy of a message hashes to the same shard, so
+ * shards never need to agree with each other and each has its own lock.
+ */
 public class MessageRouter {
-    private static final int MAX_SEEN = 1000;
-
-    // LRU set of seen message IDs to suppress duplicates
-    private final Set<String> seenMessageIds = Collections.newSetFromMap(
-        new LinkedHashMap<>(MAX_SEEN, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
-                return size() > MAX_SEEN;
-            }
-        }
-    );
+    private static final Log LOG = Log.get("ROUTER");
+
+    private static final int MAX_SEEN = 1000; // per shard
+
+    // Bounded sets of seen message IDs to suppress duplicates
+    private final SeenSet[] seenMessageIds;
+
+    private final NodeMetrics metrics;
 
     public enum Action { DELIVER, FORWARD, DROP }
 
-    public synchronized Action route(Message msg, String myDeviceId) {
-        if (seenMessageIds.contains(msg.id())) {
-            System.out.println("[ROUTER] DROP (duplicate): " + msg.id());
-            return Action.DROP;
+    public MessageRouter() {
+        this(new NodeMetrics());
+    }
+
+    public MessageRouter(NodeMetrics metrics) {
+        this(metrics, 1);
+    }
+
+    public MessageRouter(NodeMetrics metrics, int shards) {
+        this.metrics = metrics;
+        this.seenMessageIds = new SeenSet[Math.max(1, shards)];
+        for (int i = 0; i < seenMessageIds.length; i++) seenMessageIds[i] = new SeenSet(MAX_SEEN);
+    }
+
+    public int shards() {
+        return seenMessageIds.length;
+    }
+
+    /** Shard for a message between these two device IDs (UTF-8 bytes). */
+    public int shardOf(byte[] buf, int fromOff, int fromLen, int toOff, int toLen) {
+        int h = 0;
+        for (int i = fromOff; i < fromOff + fromLen; i++) h = 31 * h + buf[i];
+        h = 31 * h + '>';
+        for (int i = toOff; i < toOff + toLen; i++) h = 31 * h + buf[i];
+        return spread(h);
+    }
+
+    /** Same as {@link #shardOf(byte[], int, int, int, int)} for decoded IDs. */
+    public int shardOf(String from, String to) {
+        if (!isAscii(from) || !isAscii(to)) {
+            byte[] f = from.getBytes(StandardCharsets.UTF_8);
+            byte[] t = to.getBytes(StandardCharsets.UTF_8);
+            byte[] both = new byte[f.length + t.length];
+            System.arraycopy(f, 0, both, 0, f.length);
+            System.arraycopy(t, 0, both, f.length, t.length);
+            return shardOf(both, 0, f.length, f.length, t.length);
         }
-        seenMessageIds.add(msg.id());
+        int h = 0;
+        for (int i = 0; i < from.length(); i++) h = 31 * h + from.charAt(i);
+        h = 31 * h + '>';
+        for (int i = 0; i < to.length(); i++) h = 31 * h + to.charAt(i);
+        return spread(h);
+    }
 
-        if (msg.to().equals(myDeviceId)) {
-            System.out.println("[ROUTER] DELIVER to self: " + msg.id() + " from=" + msg.from().substring(0, 8));
-            return Action.DELIVER;
+    private int spread(int h) {
+        return Math.floorMod(h ^ (h >>> 16), seenMessageIds.length);
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 128) return false;
         }
+        return true;
+    }
 
-        if (msg.ttl() > 0) {
-            System.out.println("[ROUTER] FORWARD (ttl=" + msg.ttl() + "): " + msg.id() + " → " + msg.to().substring(0, 8));
-            return Action.FORWARD;
+    /** Broadcasts count as addressed to us; the caller decides whether to relay them too. */
+    public Action route(Message msg, String myDeviceId) {
+        return route(msg, myDeviceId, -1);
+    }
+
+    /** @param bytes the size of the encoded message, if the caller has it; -1 to encode it again when recorded */
+    public Action route(Message msg, String myDeviceId, int bytes) {
+        return route(msg, msg.isBroadcast() || msg.to().equals(myDeviceId), bytes);
+    }
+
+    /** For destinations only the caller can resolve, e.g. a channel this node may have joined. */
+    public Action route(Message msg, boolean forMe) {
+        return route(msg, forMe, -1);
+    }
+
+    /** @param bytes the size of the encoded message, if the caller has it; -1 to encode it again when recorded */
+    public Action route(Message msg, boolean forMe, int bytes) {
+        RouteDecisionEvent event = new RouteDecisionEvent();
+        event.begin();
+        long start = System.nanoTime();
+        SeenSet seen = seenMessageIds[shardOf(msg.from(), msg.to())];
+        boolean firstSeen;
+        synchronized (seen) {
+            firstSeen = seen.add(msg.id());
+        }
+        Action action = decide(firstSeen, forMe, msg.ttl());
+        metrics.routeDecisionNanos.record(System.nanoTime() - start);
+        event.end();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(describe(action, firstSeen, msg.id(), msg.ttl()) + " from=" + msg.from().substring(0, 8));
+        }
+        if (event.shouldCommit()) {
+            event.set(msg.id(), msg.ttl(), bytes >= 0 ? bytes : msg.toJson().getBytes(StandardCharsets.UTF_8).length);
+            event.action = action.name();
+            event.commit();
+        }
+        return action;
+    }
+
+    /**
+     * The same decision for a message that has not been decoded: the encoded
+     * message is {@code frame[0, frameLen)} and its ID {@code frame[idOff, idOff + idLen)};
+     * {@code shard} comes from {@link #shardOf(byte[], int, int, int, int)}. Allocates nothing unless
+     * debug logging or the JFR event is on.
+     */
+    public Action route(byte[] frame, int frameLen, int idOff, int idLen, int shard, boolean forMe, int ttl) {
+        RouteDecisionEvent event = new RouteDecisionEvent();
+        event.begin();
+        long start = System.nanoTime();
+        SeenSet seen = seenMessageIds[shard];
+        boolean firstSeen;
+        synchronized (seen) {
+            firstSeen = seen.add(frame, idOff, idLen);
+        }
+        Action action = decide(firstSeen, forMe, ttl);
+        metrics.routeDecisionNanos.record(System.nanoTime() - start);
+        event.end();
+        if (LOG.isDebugEnabled() || event.shouldCommit()) {
+            String id = new String(frame, idOff, idLen, StandardCharsets.UTF_8);
+            LOG.debug(() -> describe(action, firstSeen, id, ttl));
+            if (event.shouldCommit()) {
+                event.set(id, ttl, frameLen);
+                event.action = action.name();
+                event.commit();
+            }
         }
+        return action;
+    }
 
-        System.out.println("[ROUTER] DROP (ttl=0): " + msg.id());
+    private Action decide(boolean firstSeen, boolean forMe, int ttl) {
+        if (!firstSeen) {
+            metrics.droppedDuplicate.increment();
+            return Action.DROP;
+        }
+        if (forMe) {
+            metrics.delivered.increment();
+            return Action.DELIVER;
+        }
+        if (ttl > 0) {
+            metrics.forwarded.increment();
+            return Action.FORWARD;
+        }
+        metrics.droppedTtl.increment();
         return Action.DROP;
     }
 
-    public synchronized void markSeen(String messageId) {
-        seenMessageIds.add(messageId);
+    private static String describe(Action action, boolean firstSeen, String id, int ttl) {
+        return switch (action) {
+            case DELIVER -> "DELIVER to self: " + id;
+            case FORWARD -> "FORWARD (ttl=" + ttl + "): " + id;
+            case DROP -> (firstSeen ? "DROP (ttl=0): " : "DROP (duplicate): ") + id;
+        };
+    }
+
+    /** Records one of our own messages so copies that loop back are dropped. */
+    public void markSeen(Message msg) {
+        SeenSet seen = seenMessageIds[shardOf(msg.from(), msg.to())];
+        synchronized (seen) {
+            seen.add(msg.id());
+        }
     }
 }
@@ -0,0 +1,107 @@
+package meshchat.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What this node has learned about reaching other devices: for each
+ * destination, which neighbors have delivered traffic from it, over how many
+ * hops and with what latency. Fed from traced messages; flooding still does the
+ * actual delivery.
+ *
+ * Keyed by {@link DeviceRegistry} handles; device ID strings are only looked
+ * up for display.
+ */
+public class RoutingTable {
+    private static final double EWMA_ALPHA = 0.25;
+
+    /** Path knowledge for one (destination, neighbor) pair. */
+    public static final class Route {
+        private final DeviceRegistry devices;
+        private final int destination;
+        private final int via;
+        private volatile int hops;
+        private volatile double latencyMillis;
+        private volatile long lastSeen;
+        private volatile long samples;
+
+        Route(DeviceRegistry devices, int destination, int via, int hops, long latencyMillis, long now) {
+            this.devices = devices;
+            this.destination = destination;
+            this.via = via;
+            this.hops = hops;
+            this.latencyMillis = latencyMillis;
+            this.lastSeen = now;
+            this.samples = 1;
+        }
+
+        synchronized void update(int hops, long latencyMillis, long now) {
+            this.hops = Math.min(this.hops, hops);
+            this.latencyMillis += EWMA_ALPHA * (latencyMillis - this.latencyMillis);
+            this.lastSeen = now;
+            this.samples++;
+        }
+
+        public String destination() { return devices.deviceId(destination); }
+        public String via() { return devices.deviceId(via); }
+        public int destinationHandle() { return destination; }
+        public int viaHandle() { return via; }
+        public int hops() { return hops; }
+        public double latencyMillis() { return latencyMillis; }
+        public long lastSeen() { return lastSeen; }
+
+        @Override
+        public String toString() {
+            return String.format("%s via %s: %d hop(s), %.0fms",
+                devices.shortId(destination), devices.shortId(via), hops, latencyMillis);
+        }
+    }
+
+    private final DeviceRegistry devices;
+    private final Map<Integer, Map<Integer, Route>> routes = new ConcurrentHashMap<>();
+
+    public RoutingTable(DeviceRegistry devices) {
+        this.devices = devices;
+    }
+
+    /**
+     * Records that traffic from {@code destination} reached us through neighbor
+     * {@code via} after {@code hops} links and {@code latencyMillis}.
+     */
+    public void observe(int destination, int via, int hops, long latencyMillis) {
+        long now = System.currentTimeMillis();
+        routes.computeIfAbsent(destination, d -> new ConcurrentHashMap<>())
+            .compute(via, (v, route) -> {
+                if (route == null) return new Route(devices, destination, via, hops, latencyMillis, now);
+                route.update(hops, latencyMillis, now);
+                return route;
+            });
+    }
+
+    /** Known routes to {@code destination}, best (fewest hops, then lowest latency) first. */
+    public List<Route> routesTo(int destination) {
+        Map<Integer, Route> byNeighbor = routes.get(destination);
+        if (byNeighbor == null) return List.of();
+        List<Route> list = new ArrayList<>(byNeighbor.values());
+        list.sort(Comparator.comparingInt(Route::hops).thenComparingDouble(Route::latencyMillis));
+        return list;
+    }
+
+    public List<Route> snapshot() {
+        List<Route> all = new ArrayList<>();
+        for (int dest : routes.keySet()) all.addAll(routesTo(dest));
+        return Collections.unmodifiableList(all);
+    }
+
+    /** Forget everything learned through a neighbor that went away. */
+    public void removeNeighbor(int via) {
+        for (Map<Integer, Route> byNeighbor : routes.values()) {
+            byNeighbor.remove(via);
+        }
+        routes.values().removeIf(Map::isEmpty);
+    }
+}
@@ -0,0 +1,111 @@
+package meshchat.routing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Fixed-capacity set of message IDs for duplicate suppression. IDs are stored
+ * as UTF-8 bytes in one flat array (a ring in insertion order plus an
+ * open-addressing index into it), so checking or adding an ID allocates
+ * nothing and works straight off a received frame's bytes. When full, the
+ * oldest ID is evicted. Not thread-safe.
+ */
+final class SeenSet {
+    private static final int SLOT = 48; // canonical UUIDs are 36 bytes
+
+    private final byte[] keys;
+    private final int[] lengths;
+    private final int[] hashes;
+    private final byte[][] longKeys; // IDs longer than SLOT; rare
+    private final int[] index; // ring position + 1, 0 = empty
+    private final int capacity;
+    private final int mask;
+    private int head;
+    private int size;
+
+    SeenSet(int capacity) {
+        this.capacity = capacity;
+        keys = new byte[capacity * SLOT];
+        lengths = new int[capacity];
+        hashes = new int[capacity];
+        longKeys = new byte[capacity][];
+        int tableSize = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        index = new int[tableSize];
+        mask = tableSize - 1;
+    }
+
+    boolean add(String id) {
+        byte[] b = id.getBytes(StandardCharsets.UTF_8);
+        return add(b, 0, b.length);
+    }
+
+    /** @return false if the ID was already present */
+    boolean add(byte[] id, int off, int len) {
+        int h = hash(id, off, len);
+        if (find(id, off, len, h) >= 0) return false;
+
+        if (size == capacity) {
+            removeSlot(slotOf(head));
+        } else {
+            size++;
+        }
+        if (len <= SLOT) {
+            System.arraycopy(id, off, keys, head * SLOT, len);
+            longKeys[head] = null;
+        } else {
+            longKeys[head] = Arrays.copyOfRange(id, off, off + len);
+        }
+        lengths[head] = len;
+        hashes[head] = h;
+        int i = h & mask;
+        while (index[i] != 0) i = (i + 1) & mask;
+        index[i] = head + 1;
+        head = (head + 1) % capacity;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int find(byte[] id, int off, int len, int h) {
+        for (int i = h & mask; index[i] != 0; i = (i + 1) & mask) {
+            int e = index[i] - 1;
+            if (hashes[e] == h && lengths[e] == len && keyEquals(e, id, off, len)) return i;
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int e, byte[] id, int off, int len) {
+        if (len > SLOT) return Arrays.equals(longKeys[e], 0, len, id, off, off + len);
+        return Arrays.equals(keys, e * SLOT, e * SLOT + len, id, off, off + len);
+    }
+
+    private int slotOf(int e) {
+        int i = hashes[e] & mask;
+        while (index[i] != e + 1) i = (i + 1) & mask;
+        return i;
+    }
+
+    /** Backward-shift deletion keeps probe chains intact without tombstones. */
+    private void removeSlot(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (index[j] == 0) break;
+            int k = hashes[index[j] - 1] & mask;
+            boolean stays = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!stays) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = 0;
+    }
+
+    private static int hash(byte[] b, int off, int len) {
+        int h = 0;
+        for (int i = off; i < off + len; i++) h = 31 * h + b[i];
+        return h ^ (h >>> 16);
+    }
+}
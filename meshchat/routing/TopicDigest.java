@@ -0,0 +1,130 @@
+package meshchat.routing;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+
+/**
+ * Attenuated Bloom filter of channel subscriptions, as advertised over one
+ * link. Level 0 holds the channels the advertising node itself is subscribed
+ * to, level {@code i} those of nodes {@code i} hops beyond it; the last level
+ * collects everything further away. A node builds the digest for a link from
+ * its own channels plus the digests it heard on its other links, shifted one
+ * level down.
+ *
+ * 256 bits and 3 hashes per level: a handful of false positives at a few
+ * dozen channels, and each level is 32 bytes on the wire. Immutable.
+ */
+public final class TopicDigest {
+    public static final int LEVELS = 8;
+    private static final int WORDS = 4; // 256 bits per level
+    private static final int BITS = WORDS * 64;
+    private static final int HASHES = 3;
+
+    public static final TopicDigest EMPTY = new TopicDigest(new long[LEVELS * WORDS]);
+
+    private final long[] bits;
+
+    private TopicDigest(long[] bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * @param own       channels this node is subscribed to
+     * @param neighbors digests heard on the links the result is built for
+     */
+    public static TopicDigest combine(Collection<String> own, Iterable<TopicDigest> neighbors) {
+        long[] bits = new long[LEVELS * WORDS];
+        for (String topic : own) set(bits, 0, topic);
+        for (TopicDigest d : neighbors) {
+            for (int i = 0; i < (LEVELS - 1) * WORDS; i++) bits[i + WORDS] |= d.bits[i];
+            for (int i = (LEVELS - 1) * WORDS; i < LEVELS * WORDS; i++) bits[i] |= d.bits[i];
+        }
+        return new TopicDigest(bits);
+    }
+
+    /** Fewest hops beyond the advertiser at which {@code topic} may have a subscriber, or -1. */
+    public int distance(String topic) {
+        return distance(topic.hashCode());
+    }
+
+    /** Same, for a topic known only by its {@link String#hashCode()}. */
+    public int distance(int topicHash) {
+        int h1 = topicHash;
+        int h2 = Integer.rotateLeft(h1 * 0x9E3779B9, 16) | 1;
+        for (int level = 0; level < LEVELS; level++) {
+            if (contains(level, h1, h2)) return level;
+        }
+        return -1;
+    }
+
+    /** URL-safe Base64 of the levels up to the last non-empty one; "" when empty. */
+    public String encode() {
+        int levels = LEVELS;
+        while (levels > 0 && isEmpty(levels - 1)) levels--;
+        byte[] out = new byte[levels * WORDS * 8];
+        for (int i = 0; i < levels * WORDS; i++) {
+            long w = bits[i];
+            for (int b = 0; b < 8; b++) out[i * 8 + b] = (byte) (w >>> (56 - 8 * b));
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(out);
+    }
+
+    /** Inverse of {@link #encode()}; extra levels are ignored. */
+    public static TopicDigest decode(String encoded) {
+        if (encoded == null || encoded.isEmpty()) return EMPTY;
+        byte[] in = Base64.getUrlDecoder().decode(encoded);
+        long[] bits = new long[LEVELS * WORDS];
+        for (int i = 0; i < Math.min(bits.length, in.length / 8); i++) {
+            long w = 0;
+            for (int b = 0; b < 8; b++) w = (w << 8) | (in[i * 8 + b] & 0xFF);
+            bits[i] = w;
+        }
+        return new TopicDigest(bits);
+    }
+
+    private static void set(long[] bits, int level, String topic) {
+        int h1 = topic.hashCode();
+        int h2 = Integer.rotateLeft(h1 * 0x9E3779B9, 16) | 1;
+        for (int k = 0; k < HASHES; k++) {
+            int bit = Math.floorMod(h1 + k * h2, BITS);
+            bits[level * WORDS + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean contains(int level, int h1, int h2) {
+        for (int k = 0; k < HASHES; k++) {
+            int bit = Math.floorMod(h1 + k * h2, BITS);
+            if ((bits[level * WORDS + (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private boolean isEmpty(int level) {
+        for (int i = level * WORDS; i < (level + 1) * WORDS; i++) {
+            if (bits[i] != 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TopicDigest d && Arrays.equals(bits, d.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bits);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TopicDigest[");
+        for (int level = 0; level < LEVELS; level++) {
+            int n = 0;
+            for (int i = level * WORDS; i < (level + 1) * WORDS; i++) n += Long.bitCount(bits[i]);
+            sb.append(level == 0 ? "" : " ").append(n);
+        }
+        return sb.append(" bits]").toString();
+    }
+}
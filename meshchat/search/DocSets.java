@@ -0,0 +1,56 @@
+package meshchat.search;
+
+import java.util.Arrays;
+
+/**
+ * Set operations over ascending int arrays of doc ids.
+ */
+final class DocSets {
+    static final int[] NONE = new int[0];
+
+    private DocSets() {}
+
+    static int[] union(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) out[n++] = a[i++];
+            else if (a[i] > b[j]) out[n++] = b[j++];
+            else { out[n++] = a[i++]; j++; }
+        }
+        while (i < a.length) out[n++] = a[i++];
+        while (j < b.length) out[n++] = b[j++];
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else { out[n++] = a[i++]; j++; }
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static int[] subtract(int[] a, int[] b) {
+        if (b.length == 0) return a;
+        int[] out = new int[a.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length) {
+            while (j < b.length && b[j] < a[i]) j++;
+            if (j < b.length && b[j] == a[i]) i++;
+            else out[n++] = a[i++];
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    static int[] range(int from, int toExclusive) {
+        int[] out = new int[Math.max(0, toExclusive - from)];
+        for (int i = 0; i < out.length; i++) out[i] = from + i;
+        return out;
+    }
+}
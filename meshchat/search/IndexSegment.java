@@ -0,0 +1,145 @@
+package meshchat.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable inverted index over a contiguous range of doc ids.
+ * Terms are kept sorted so prefix queries are a binary search plus a scan.
+ */
+final class IndexSegment implements TermSource {
+    private final String[] terms;
+    private final PostingList[] postings;
+    private final int firstDoc;
+    private final int endDoc; // exclusive
+
+    private IndexSegment(String[] terms, PostingList[] postings, int firstDoc, int endDoc) {
+        this.terms = terms;
+        this.postings = postings;
+        this.firstDoc = firstDoc;
+        this.endDoc = endDoc;
+    }
+
+    int firstDoc() { return firstDoc; }
+    int endDoc() { return endDoc; }
+    int docCount() { return endDoc - firstDoc; }
+    int termCount() { return terms.length; }
+
+    @Override
+    public int[] allDocs() {
+        return DocSets.range(firstDoc, endDoc);
+    }
+
+    @Override
+    public int[] lookup(String term) {
+        int idx = Arrays.binarySearch(terms, term);
+        return idx >= 0 ? postings[idx].decode() : DocSets.NONE;
+    }
+
+    @Override
+    public int[] lookupPrefix(String prefix) {
+        int idx = Arrays.binarySearch(terms, prefix);
+        if (idx < 0) idx = -idx - 1;
+        int[] result = DocSets.NONE;
+        while (idx < terms.length && terms[idx].startsWith(prefix)) {
+            result = DocSets.union(result, postings[idx].decode());
+            idx++;
+        }
+        return result;
+    }
+
+    /** Merges adjacent segments; {@code a} must cover the lower doc range. */
+    static IndexSegment merge(IndexSegment a, IndexSegment b) {
+        List<String> terms = new ArrayList<>(a.terms.length + b.terms.length);
+        List<PostingList> postings = new ArrayList<>(a.terms.length + b.terms.length);
+        int i = 0, j = 0;
+        while (i < a.terms.length || j < b.terms.length) {
+            int cmp = i == a.terms.length ? 1 : j == b.terms.length ? -1 : a.terms[i].compareTo(b.terms[j]);
+            if (cmp < 0) {
+                terms.add(a.terms[i]);
+                postings.add(a.postings[i++]);
+            } else if (cmp > 0) {
+                terms.add(b.terms[j]);
+                postings.add(b.postings[j++]);
+            } else {
+                terms.add(a.terms[i]);
+                postings.add(PostingList.union(a.postings[i++], b.postings[j++]));
+            }
+        }
+        return new IndexSegment(terms.toArray(new String[0]), postings.toArray(new PostingList[0]),
+            Math.min(a.firstDoc, b.firstDoc), Math.max(a.endDoc, b.endDoc));
+    }
+
+    /**
+     * Mutable in-memory segment that accepts new docs until it is frozen.
+     */
+    static final class Builder implements TermSource {
+        private final Map<String, int[]> postings = new HashMap<>();
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final int firstDoc;
+        private int endDoc;
+
+        Builder(int firstDoc) {
+            this.firstDoc = firstDoc;
+            this.endDoc = firstDoc;
+        }
+
+        void add(int docId, List<String> docTerms) {
+            for (String term : docTerms) {
+                int n = counts.getOrDefault(term, 0);
+                int[] list = postings.get(term);
+                if (list == null) {
+                    list = new int[4];
+                    postings.put(term, list);
+                } else if (list[n - 1] == docId) {
+                    continue; // repeated term within the same doc
+                } else if (n == list.length) {
+                    list = Arrays.copyOf(list, n * 2);
+                    postings.put(term, list);
+                }
+                list[n] = docId;
+                counts.put(term, n + 1);
+            }
+            endDoc = docId + 1;
+        }
+
+        int docCount() {
+            return endDoc - firstDoc;
+        }
+
+        @Override
+        public int[] lookup(String term) {
+            int[] list = postings.get(term);
+            return list == null ? DocSets.NONE : Arrays.copyOf(list, counts.get(term));
+        }
+
+        @Override
+        public int[] lookupPrefix(String prefix) {
+            int[] result = DocSets.NONE;
+            for (Map.Entry<String, int[]> e : postings.entrySet()) {
+                if (e.getKey().startsWith(prefix)) {
+                    result = DocSets.union(result, Arrays.copyOf(e.getValue(), counts.get(e.getKey())));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int[] allDocs() {
+            return DocSets.range(firstDoc, endDoc);
+        }
+
+        IndexSegment freeze() {
+            String[] terms = postings.keySet().toArray(new String[0]);
+            Arrays.sort(terms);
+            PostingList[] lists = new PostingList[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                lists[i] = PostingList.encode(postings.get(terms[i]), counts.get(terms[i]));
+            }
+            return new IndexSegment(terms, lists, firstDoc, endDoc);
+        }
+    }
+}
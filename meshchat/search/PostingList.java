@@ -0,0 +1,70 @@
+package meshchat.search;
+
+import java.util.Arrays;
+
+/**
+ * Immutable list of ascending doc ids, stored as varint-encoded gaps.
+ * Chat terms are mostly rare, so most lists fit in a handful of bytes.
+ */
+final class PostingList {
+    static final PostingList EMPTY = new PostingList(new byte[0], 0);
+
+    private final byte[] data;
+    private final int size;
+
+    private PostingList(byte[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    static PostingList encode(int[] docs, int count) {
+        if (count == 0) return EMPTY;
+        byte[] buf = new byte[count * 5];
+        int pos = 0;
+        int prev = 0;
+        for (int i = 0; i < count; i++) {
+            int gap = docs[i] - prev;
+            prev = docs[i];
+            while ((gap & ~0x7F) != 0) {
+                buf[pos++] = (byte) ((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            buf[pos++] = (byte) gap;
+        }
+        return new PostingList(Arrays.copyOf(buf, pos), count);
+    }
+
+    int[] decode() {
+        int[] docs = new int[size];
+        int pos = 0;
+        int prev = 0;
+        for (int i = 0; i < size; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            prev += gap;
+            docs[i] = prev;
+        }
+        return docs;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int byteSize() {
+        return data.length;
+    }
+
+    static PostingList union(PostingList a, PostingList b) {
+        if (a.size == 0) return b;
+        if (b.size == 0) return a;
+        int[] merged = DocSets.union(a.decode(), b.decode());
+        return encode(merged, merged.length);
+    }
+}
@@ -0,0 +1,163 @@
+package meshchat.search;
+
+import meshchat.model.Message;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Incremental inverted index over {@link Message#text()}.
+ *
+ * New messages go into a small in-memory buffer on the indexer thread. Once the
+ * buffer holds {@link #FLUSH_DOCS} messages it is frozen into an immutable
+ * {@link IndexSegment}; runs of similarly sized segments are merged on a
+ * separate background thread so the segment count stays logarithmic.
+ * Nothing here ever runs on the Swing EDT.
+ */
+public class SearchIndex implements Closeable {
+    private static final int FLUSH_DOCS = 256;
+    private static final int MERGE_FACTOR = 4;
+    private static final int MAX_RESULTS = 200;
+
+    private final ExecutorService indexer = Executors.newSingleThreadExecutor(daemon("meshchat-indexer"));
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(daemon("meshchat-index-merge"));
+    private final ExecutorService searcher = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final List<Message> docs = new ArrayList<>();     // guarded by docs
+    private final Object segmentLock = new Object();
+    private volatile List<IndexSegment> segments = List.of(); // replaced under segmentLock, flushes also under this
+    private IndexSegment.Builder live = new IndexSegment.Builder(0); // guarded by this
+
+    public void add(Message msg) {
+        indexer.execute(() -> indexNow(msg));
+    }
+
+    public CompletableFuture<List<Message>> search(SearchQuery query) {
+        return CompletableFuture.supplyAsync(() -> searchNow(query), searcher);
+    }
+
+    public int size() {
+        synchronized (docs) {
+            return docs.size();
+        }
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+
+    private void indexNow(Message msg) {
+        int docId;
+        synchronized (docs) {
+            docId = docs.size();
+            docs.add(msg);
+        }
+        List<String> terms = Tokenizer.tokenize(msg.text());
+        boolean flushed = false;
+        synchronized (this) {
+            live.add(docId, terms);
+            if (live.docCount() >= FLUSH_DOCS) {
+                // Published with the new buffer, so a search sees these docs in one or the other
+                IndexSegment frozen = live.freeze();
+                synchronized (segmentLock) {
+                    List<IndexSegment> next = new ArrayList<>(segments);
+                    next.add(frozen);
+                    segments = Collections.unmodifiableList(next);
+                }
+                live = new IndexSegment.Builder(docId + 1);
+                flushed = true;
+            }
+        }
+        if (flushed) merger.execute(this::mergeIfNeeded);
+    }
+
+    private void mergeIfNeeded() {
+        while (true) {
+            List<IndexSegment> snapshot = segments;
+            int start = findMergeRun(snapshot);
+            if (start < 0) return;
+
+            List<IndexSegment> run = snapshot.subList(start, start + MERGE_FACTOR);
+            IndexSegment merged = run.get(0);
+            for (int i = 1; i < run.size(); i++) {
+                merged = IndexSegment.merge(merged, run.get(i));
+            }
+
+            // Flushes only ever append, so the run is still at the same position.
+            synchronized (segmentLock) {
+                List<IndexSegment> next = new ArrayList<>(segments);
+                next.subList(start, start + MERGE_FACTOR).clear();
+                next.add(start, merged);
+                segments = Collections.unmodifiableList(next);
+            }
+        }
+    }
+
+    private static int findMergeRun(List<IndexSegment> segs) {
+        for (int end = segs.size(); end >= MERGE_FACTOR; end--) {
+            int tier = tier(segs.get(end - 1));
+            boolean sameTier = true;
+            for (int i = end - MERGE_FACTOR; i < end - 1; i++) {
+                if (tier(segs.get(i)) != tier) { sameTier = false; break; }
+            }
+            if (sameTier) return end - MERGE_FACTOR;
+        }
+        return -1;
+    }
+
+    private static int tier(IndexSegment seg) {
+        int tier = 0;
+        for (int n = seg.docCount() / FLUSH_DOCS; n >= MERGE_FACTOR; n /= MERGE_FACTOR) tier++;
+        return tier;
+    }
+
+    private List<Message> searchNow(SearchQuery query) {
+        if (query.isEmpty()) return List.of();
+
+        List<IndexSegment> segs;
+        int[] hits;
+        synchronized (this) {
+            segs = segments;
+            hits = query.evaluate(live);
+        }
+        for (IndexSegment seg : segs) {
+            hits = DocSets.union(hits, query.evaluate(seg));
+        }
+
+        List<Message> results = new ArrayList<>();
+        synchronized (docs) {
+            // Newest first
+            for (int i = hits.length - 1; i >= 0 && results.size() < MAX_RESULTS; i--) {
+                Message m = docs.get(hits[i]);
+                if (matchesFilters(m, query)) results.add(m);
+            }
+        }
+        return results;
+    }
+
+    private static boolean matchesFilters(Message m, SearchQuery q) {
+        if (m.timestamp() < q.fromMillis() || m.timestamp() > q.toMillis()) return false;
+        return q.peer() == null || q.peer().equals(m.from()) || q.peer().equals(m.to());
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    @Override
+    public void close() {
+        indexer.shutdown();
+        merger.shutdown();
+        searcher.shutdown();
+    }
+}
@@ -0,0 +1,75 @@
+package meshchat.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parsed full-text query plus optional peer and time filters.
+ *
+ * Syntax: whitespace-separated terms are ANDed, {@code OR} separates
+ * alternatives, {@code -term} excludes, and {@code term*} matches a prefix.
+ * e.g. {@code lunch OR dinner -tomorrow meet*}
+ */
+public record SearchQuery(List<List<Term>> groups, String peer, long fromMillis, long toMillis) {
+
+    public record Term(String text, boolean prefix, boolean negated) {}
+
+    public static SearchQuery parse(String text) {
+        List<List<Term>> groups = new ArrayList<>();
+        List<Term> current = new ArrayList<>();
+        for (String raw : text.trim().split("\\s+")) {
+            if (raw.isEmpty()) continue;
+            if (raw.equals("OR")) {
+                if (!current.isEmpty()) groups.add(current);
+                current = new ArrayList<>();
+                continue;
+            }
+            boolean negated = raw.startsWith("-") && raw.length() > 1;
+            if (negated) raw = raw.substring(1);
+            boolean prefix = raw.endsWith("*") && raw.length() > 1;
+            if (prefix) raw = raw.substring(0, raw.length() - 1);
+            String term = Tokenizer.normalize(raw);
+            if (!term.isEmpty()) current.add(new Term(term, prefix, negated));
+        }
+        if (!current.isEmpty()) groups.add(current);
+        return new SearchQuery(groups, null, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /** Restricts results to messages sent to or received from {@code deviceId}. */
+    public SearchQuery withPeer(String deviceId) {
+        return new SearchQuery(groups, deviceId, fromMillis, toMillis);
+    }
+
+    public SearchQuery between(long fromMillis, long toMillis) {
+        return new SearchQuery(groups, peer, fromMillis, toMillis);
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    int[] evaluate(TermSource source) {
+        int[] result = DocSets.NONE;
+        for (List<Term> group : groups) {
+            result = DocSets.union(result, evaluateGroup(group, source));
+        }
+        return result;
+    }
+
+    private static int[] evaluateGroup(List<Term> group, TermSource source) {
+        int[] docs = null;
+        for (Term t : group) {
+            if (t.negated()) continue;
+            int[] hits = t.prefix() ? source.lookupPrefix(t.text()) : source.lookup(t.text());
+            docs = docs == null ? hits : DocSets.intersect(docs, hits);
+            if (docs.length == 0) return docs;
+        }
+        if (docs == null) docs = source.allDocs(); // only exclusions in this group
+        for (Term t : group) {
+            if (!t.negated()) continue;
+            int[] hits = t.prefix() ? source.lookupPrefix(t.text()) : source.lookup(t.text());
+            docs = DocSets.subtract(docs, hits);
+        }
+        return docs;
+    }
+}
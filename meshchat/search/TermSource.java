@@ -0,0 +1,10 @@
+package meshchat.search;
+
+/**
+ * Anything a query can be evaluated against: a frozen segment or the live buffer.
+ */
+interface TermSource {
+    int[] lookup(String term);
+    int[] lookupPrefix(String prefix);
+    int[] allDocs();
+}
@@ -0,0 +1,38 @@
+package meshchat.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits message text into lowercase terms on any non letter/digit boundary.
+ */
+public final class Tokenizer {
+    private static final int MAX_TERM_LENGTH = 64;
+
+    private Tokenizer() {}
+
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null) return terms;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isLetterOrDigit(cp)) {
+                if (sb.length() < MAX_TERM_LENGTH) sb.appendCodePoint(Character.toLowerCase(cp));
+            } else if (sb.length() > 0) {
+                terms.add(sb.toString());
+                sb.setLength(0);
+            }
+        }
+        if (sb.length() > 0) terms.add(sb.toString());
+        return terms;
+    }
+
+    /** Normalizes a single query term the same way indexed text is normalized. */
+    public static String normalize(String term) {
+        List<String> t = tokenize(term);
+        return t.isEmpty() ? "" : t.get(0);
+    }
+}
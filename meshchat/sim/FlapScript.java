@@ -0,0 +1,36 @@
+package meshchat.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scheduled link state changes, e.g. {@code "2000:down:3-4,5000:up:3-4"}
+ * (milliseconds after traffic starts, action, node pair). {@code stall}
+ * silently drops everything on the link while both ends keep it open, as
+ * when a laptop roams, until it is brought {@code up} as a fresh connection.
+ */
+record FlapScript(List<Event> events) {
+
+    enum Action { UP, DOWN, STALL }
+
+    record Event(long atMillis, Action action, int a, int b) {}
+
+    static FlapScript parse(String spec) {
+        List<Event> events = new ArrayList<>();
+        if (spec == null || spec.isBlank()) return new FlapScript(events);
+        for (String part : spec.split(",")) {
+            String[] f = part.trim().split(":");
+            if (f.length != 3) throw new IllegalArgumentException("Bad flap event: " + part);
+            String[] pair = f[2].split("-");
+            Action action = switch (f[1]) {
+                case "up" -> Action.UP;
+                case "down" -> Action.DOWN;
+                case "stall" -> Action.STALL;
+                default -> throw new IllegalArgumentException("Flap action must be up/down/stall: " + part);
+            };
+            events.add(new Event(Long.parseLong(f[0]), action, Integer.parseInt(pair[0]), Integer.parseInt(pair[1])));
+        }
+        events.sort((x, y) -> Long.compare(x.atMillis(), y.atMillis()));
+        return new FlapScript(events);
+    }
+}
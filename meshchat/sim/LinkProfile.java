@@ -0,0 +1,13 @@
+package meshchat.sim;
+
+/**
+ * Characteristics of one simulated link, applied independently per direction.
+ *
+ * @param latencyMillis        one-way propagation delay
+ * @param jitterMillis         uniform extra delay in [0, jitter)
+ * @param loss                 probability that a frame is lost
+ * @param bytesPerSecond       serialization rate; 0 = unlimited
+ */
+public record LinkProfile(double latencyMillis, double jitterMillis, double loss, long bytesPerSecond) {
+    public static final LinkProfile IDEAL = new LinkProfile(0, 0, 0, 0);
+}
@@ -0,0 +1,298 @@
+package meshchat.sim;
+
+import meshchat.metrics.LatencyHistogram;
+import meshchat.model.HopTrace;
+import meshchat.model.Message;
+import meshchat.model.Peer;
+import meshchat.network.MeshNode;
+import meshchat.routing.TopicDigest;
+import meshchat.ui.MessageListener;
+import meshchat.util.Args;
+import meshchat.util.DeviceIdentity;
+import meshchat.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Runs many {@link MeshNode}s in one JVM over in-memory links and reports how
+ * well the mesh delivers.
+ *
+ * <pre>
+ * java -cp out meshchat.sim.MeshSimulator --nodes 100 --topology grid \
+ *      --latency 5 --jitter 2 --loss 0.01 --bandwidth 250000 \
+ *      --messages 500 --rate 100 --flap "1000:down:0-1,3000:up:0-1"
+ * </pre>
+ *
+ * {@code --broadcast} sends every message to {@link Message#BROADCAST}; a
+ * delivery then means one node receiving it, so full delivery is n - 1 per
+ * message. Run with {@code -Dmeshchat.plumtree=false} to compare against flooding.
+ * {@code --subscribers k} has k random nodes join one channel and every message
+ * go from one of them to the channel; full delivery is k - 1 per message.
+ * {@code --legacy k} has k random nodes speak a version 1 HANDSHAKE, as nodes
+ * from before link parameters were negotiated do, to try a mixed mesh.
+ * {@code --paths k} sends every unicast message on the k best next hops at
+ * each node instead of flooding it; compare copies per message and p99 with
+ * a flood, e.g. under {@code --loss} or a {@code stall} flap.
+ */
+public class MeshSimulator {
+    private static final Log LOG = Log.get("SIM");
+    private static final String CHANNEL = "#sim";
+
+    private final List<MeshNode> nodes = new ArrayList<>();
+    private final List<DeviceIdentity> identities = new ArrayList<>();
+    private final Map<String, SimLink> links = new HashMap<>();
+    private final Random random;
+    private boolean broadcast;
+    private int legacy;
+    private int paths;
+    private long directoryMillis;
+    private final List<Integer> subscribers = new ArrayList<>();
+
+    private final Set<String> delivered = ConcurrentHashMap.newKeySet();
+    private final LongAdder sent = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram("ms");
+
+    public MeshSimulator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opt = Args.parse(args);
+        if (System.getProperty("meshchat.log.level") == null) Log.setLevel(Log.Level.WARN);
+
+        int n = Integer.parseInt(opt.getOrDefault("nodes", "25"));
+        if (n < 2) {
+            System.err.println("ERROR: --nodes must be at least 2 (every message goes from one node to another)");
+            System.exit(1);
+        }
+        Topology topology = Topology.parse(opt.getOrDefault("topology", "grid"));
+        double radius = Double.parseDouble(opt.getOrDefault("radius", "0.25"));
+        LinkProfile profile = new LinkProfile(
+            Double.parseDouble(opt.getOrDefault("latency", "2")),
+            Double.parseDouble(opt.getOrDefault("jitter", "0")),
+            Double.parseDouble(opt.getOrDefault("loss", "0")),
+            Long.parseLong(opt.getOrDefault("bandwidth", "0")));
+        int messages = Integer.parseInt(opt.getOrDefault("messages", "200"));
+        double rate = Double.parseDouble(opt.getOrDefault("rate", "50"));
+        long drainMillis = Long.parseLong(opt.getOrDefault("drain", "3000"));
+        FlapScript flaps = FlapScript.parse(opt.get("flap"));
+        long seed = Long.parseLong(opt.getOrDefault("seed", "1"));
+
+        MeshSimulator sim = new MeshSimulator(seed);
+        sim.broadcast = Boolean.parseBoolean(opt.getOrDefault("broadcast", "false"));
+        sim.legacy = Integer.parseInt(opt.getOrDefault("legacy", "0"));
+        sim.paths = Integer.parseInt(opt.getOrDefault("paths", "0"));
+        sim.build(n, topology, radius, profile);
+        System.out.printf("Topology %s: %d nodes, %d links, %s%n", topology, n, sim.links.size(), profile);
+        int subscribers = Integer.parseInt(opt.getOrDefault("subscribers", "0"));
+        if (subscribers > 0) sim.subscribe(Math.min(subscribers, n), profile);
+        sim.run(messages, rate, flaps, drainMillis);
+        sim.shutdown();
+    }
+
+    public void build(int n, Topology topology, double radius, LinkProfile profile) throws InterruptedException {
+        Set<Integer> old = new HashSet<>();
+        if (legacy > 0) {
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < n; i++) order.add(i);
+            Collections.shuffle(order, new Random(random.nextLong()));
+            old.addAll(order.subList(0, Math.min(legacy, n)));
+        }
+        for (int i = 0; i < n; i++) {
+            DeviceIdentity id = new DeviceIdentity(new UUID(random.nextLong(), random.nextLong()).toString());
+            MeshNode node = new MeshNode(id);
+            if (old.contains(i)) node.setHandshakeVersion(1);
+            node.setMessageListener(new Listener(i));
+            node.startDetached();
+            identities.add(id);
+            nodes.add(node);
+        }
+        for (int[] e : topology.edges(n, random, radius)) {
+            SimLink link = new SimLink(e[0], nodes.get(e[0]), e[1], nodes.get(e[1]), profile, random.nextLong());
+            links.put(key(e[0], e[1]), link);
+            link.up();
+        }
+        // Let every HANDSHAKE cross its link, and presence spread, before traffic starts
+        Thread.sleep((long) (profile.latencyMillis() + profile.jitterMillis()) * 4 + 200);
+        long settleStart = System.nanoTime();
+        int known = -1;
+        for (int rounds = 0; rounds < 60; rounds++) {
+            Thread.sleep(1000);
+            int now = nodes.stream().mapToInt(nd -> nd.getDirectory().size()).sum();
+            if (now == known) break;
+            known = now;
+        }
+        directoryMillis = (System.nanoTime() - settleStart) / 1_000_000;
+    }
+
+    /** Has {@code k} random nodes join the {@code #sim} channel and waits for their digests to spread. */
+    public void subscribe(int k, LinkProfile profile) throws InterruptedException {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) order.add(i);
+        Collections.shuffle(order, random);
+        subscribers.addAll(order.subList(0, k));
+        for (int i : subscribers) nodes.get(i).joinChannel(CHANNEL);
+        Thread.sleep((long) ((profile.latencyMillis() + profile.jitterMillis() + 100) * (TopicDigest.LEVELS + 2)));
+    }
+
+    public void run(int messages, double ratePerSecond, FlapScript flaps, long drainMillis) throws InterruptedException {
+        long framesBefore = totalFrames(), bytesBefore = totalBytes(), dupBefore = totalDuplicates();
+        long copiesBefore = totalCopies();
+        long presenceBefore = totalPresenceEntries();
+        long start = System.nanoTime();
+        long intervalNanos = (long) (1_000_000_000L / ratePerSecond);
+        int nextFlap = 0;
+
+        for (int i = 0; i < messages; i++) {
+            long due = start + i * intervalNanos;
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            while (nextFlap < flaps.events().size() && flaps.events().get(nextFlap).atMillis() <= elapsedMillis) {
+                applyFlap(flaps.events().get(nextFlap++));
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+
+            int from = random.nextInt(nodes.size());
+            int to = random.nextInt(nodes.size() - 1);
+            if (to >= from) to++;
+            String target = broadcast ? Message.BROADCAST : identities.get(to).deviceId();
+            if (!subscribers.isEmpty()) {
+                from = subscribers.get(random.nextInt(subscribers.size()));
+                target = CHANNEL;
+            }
+            nodes.get(from).sendMessage(target, "sim message " + i, false, paths);
+        }
+        while (nextFlap < flaps.events().size()) {
+            FlapScript.Event ev = flaps.events().get(nextFlap++);
+            long wait = ev.atMillis() - (System.nanoTime() - start) / 1_000_000;
+            if (wait > 0) Thread.sleep(wait);
+            applyFlap(ev);
+        }
+        Thread.sleep(drainMillis);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long frames = totalFrames() - framesBefore;
+        long bytes = totalBytes() - bytesBefore;
+        long duplicates = totalDuplicates() - dupBefore;
+        long copies = totalCopies() - copiesBefore;
+        long lost = links.values().stream().mapToLong(SimLink::lost).sum();
+        long sentCount = sent.sum();
+        int deliveredCount = delivered.size();
+        long expected = sentCount * (!subscribers.isEmpty() ? subscribers.size() - 1 : broadcast ? nodes.size() - 1 : 1);
+
+        System.out.printf("Messages sent:            %d%s%n", sentCount,
+            !subscribers.isEmpty() ? " (channel, " + subscribers.size() + " subscribers)" : broadcast ? " (broadcast)" : "");
+        System.out.printf("Delivery ratio:           %.2f%% (%d delivered)%n", 100.0 * deliveredCount / Math.max(1, expected), deliveredCount);
+        System.out.printf("Latency:                  p50=%dms p99=%dms max=%dms%n",
+            latency.percentile(50), latency.percentile(99), latency.max());
+        System.out.printf("Transmissions / message:  %.1f%n", (double) frames / Math.max(1, sentCount));
+        System.out.printf("Copies sent / message:    %.1f%s%n", (double) copies / Math.max(1, sentCount),
+            paths > 0 ? " (" + paths + " paths, " + nodes.stream().mapToLong(nd -> nd.getMetrics().getMultipathFallbacks()).sum()
+                + " flooded for want of a route)" : "");
+        System.out.printf("Duplicate rx / message:   %.1f%n", (double) duplicates / Math.max(1, sentCount));
+        System.out.printf("Bytes / delivered msg:    %.0f%n", (double) bytes / Math.max(1, deliveredCount));
+        System.out.printf("Frames lost on links:     %d%n", lost);
+        System.out.printf("Measured diameter:        %d hops%n",
+            nodes.stream().mapToInt(MeshNode::getMeshDiameter).max().orElse(0));
+        System.out.printf("Directory coverage:       %.1f%% (settled in %.1fs), %.2f entries/node/s gossiped%n",
+            100.0 * nodes.stream().mapToInt(nd -> nd.getDirectory().size()).sum() / Math.max(1, (long) nodes.size() * (nodes.size() - 1)),
+            directoryMillis / 1000.0, (totalPresenceEntries() - presenceBefore) / seconds / nodes.size());
+        System.out.printf("Datagrams sent/resent:    %d/%d%n",
+            nodes.stream().flatMap(nd -> nd.getConnections().stream()).mapToLong(c -> c.getStats().getDatagramsOut()).sum(),
+            nodes.stream().flatMap(nd -> nd.getConnections().stream()).mapToLong(c -> c.getStats().getDatagramsResent()).sum());
+        System.out.printf("Link keys agreed/resumed: %d/%d%n",
+            nodes.stream().mapToLong(nd -> nd.getMetrics().getLinksKeyAgreed()).sum(),
+            nodes.stream().mapToLong(nd -> nd.getMetrics().getLinksResumed()).sum());
+        System.out.printf("Link sessions resumed:    %d (%d frames replayed)%n",
+            nodes.stream().mapToLong(nd -> nd.getMetrics().getSessionsResumed()).sum(),
+            nodes.stream().mapToLong(nd -> nd.getMetrics().getFramesReplayed()).sum());
+        Map<String, Long> modes = nodes.stream().flatMap(nd -> nd.getConnections().stream())
+            .collect(Collectors.groupingBy(c -> c.getStats().getParameters(), TreeMap::new, Collectors.counting()));
+        System.out.printf("Link ends by mode:        %s%n", modes.entrySet().stream()
+            .map(e -> e.getValue() + "x " + e.getKey()).collect(Collectors.joining(", ")));
+        if (broadcast) {
+            System.out.printf("Tree ihave/graft/prune:   %d/%d/%d%n",
+                nodes.stream().mapToLong(nd -> nd.getMetrics().getBroadcastIhaves()).sum(),
+                nodes.stream().mapToLong(nd -> nd.getMetrics().getBroadcastGrafts()).sum(),
+                nodes.stream().mapToLong(nd -> nd.getMetrics().getBroadcastPrunes()).sum());
+        }
+    }
+
+    private void applyFlap(FlapScript.Event ev) {
+        SimLink link = links.get(key(ev.a(), ev.b()));
+        if (link == null) {
+            LOG.warn("Flap for missing link " + ev.a() + "-" + ev.b());
+            return;
+        }
+        LOG.info(ev.action() + " " + ev.a() + "-" + ev.b());
+        switch (ev.action()) {
+            case UP -> link.up();
+            case DOWN -> link.down();
+            case STALL -> link.stall();
+        }
+    }
+
+    private long totalFrames() {
+        return links.values().stream().mapToLong(SimLink::frames).sum();
+    }
+
+    private long totalBytes() {
+        return links.values().stream().mapToLong(SimLink::bytes).sum();
+    }
+
+    private long totalPresenceEntries() {
+        return nodes.stream().mapToLong(nd -> nd.getMetrics().getPresenceEntriesSent()).sum();
+    }
+
+    private long totalCopies() {
+        return nodes.stream().mapToLong(nd -> nd.getMetrics().getCopiesSent()).sum();
+    }
+
+    private long totalDuplicates() {
+        return nodes.stream().mapToLong(nd -> nd.getMetrics().getDroppedDuplicate()).sum();
+    }
+
+    public void shutdown() {
+        links.values().forEach(SimLink::down);
+        nodes.forEach(MeshNode::stop);
+    }
+
+    private static String key(int a, int b) {
+        return Math.min(a, b) + "-" + Math.max(a, b);
+    }
+
+    private class Listener implements MessageListener {
+        private final int node;
+
+        Listener(int node) {
+            this.node = node;
+        }
+
+        @Override
+        public void onMessageReceived(Message msg) {
+            if (delivered.add(node + "/" + msg.id())) {
+                latency.record(System.currentTimeMillis() - msg.timestamp());
+            }
+        }
+
+        @Override public void onMessageSent(Message msg) { sent.increment(); }
+        @Override public void onMessageRelayed(Message msg) {}
+        @Override public boolean wantsRelayEvents() { return false; }
+        @Override public void onTraceReceived(Message msg, HopTrace trace) {}
+        @Override public void onPeerConnected(Peer peer) {}
+        @Override public void onPeerDisconnected(String deviceId) {}
+        @Override public void onStatusUpdate(String status) {}
+    }
+}
@@ -0,0 +1,91 @@
+package meshchat.sim;
+
+import meshchat.network.DatagramLink;
+import meshchat.network.PeerConnection;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One direction of a simulated link's datagram path. Each datagram is lost
+ * with the link's loss rate or arrives after latency + jitter on its own:
+ * nothing is resent, nothing waits for anything else, and jitter may reorder.
+ * Bandwidth is not modelled. A virtual thread hands arrivals to the receiving
+ * connection.
+ */
+final class SimDatagrams implements DatagramLink {
+    private record Datagram(byte[] data, long deliverAtNanos) implements Delayed {
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(deliverAtNanos, ((Datagram) o).deliverAtNanos);
+        }
+    }
+
+    private static final Datagram EOF = new Datagram(new byte[0], 0);
+
+    private final LinkProfile profile;
+    private final Random random;
+    private final DelayQueue<Datagram> queue = new DelayQueue<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private volatile boolean closed;
+    private volatile boolean stalled;
+
+    SimDatagrams(LinkProfile profile, long seed) {
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public synchronized void send(byte[] buf, int off, int len) {
+        if (closed) return;
+        sent.increment();
+        bytes.add(len);
+        if (stalled || profile.loss() > 0 && random.nextDouble() < profile.loss()) {
+            lost.increment();
+            return;
+        }
+        double delayMillis = profile.latencyMillis()
+            + (profile.jitterMillis() > 0 ? random.nextDouble() * profile.jitterMillis() : 0);
+        queue.put(new Datagram(Arrays.copyOfRange(buf, off, off + len), System.nanoTime() + (long) (delayMillis * 1_000_000)));
+    }
+
+    /** Starts handing datagrams to {@code receiver}. */
+    void deliverTo(PeerConnection receiver) {
+        Thread.ofVirtual().start(() -> {
+            try {
+                while (true) {
+                    Datagram d = queue.take();
+                    if (d == EOF) return;
+                    receiver.onDatagram(d.data(), 0, d.data().length);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    void stall() {
+        stalled = true;
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        queue.put(EOF);
+    }
+
+    long sent() { return sent.sum(); }
+    long bytes() { return bytes.sum(); }
+    long lost() { return lost.sum(); }
+}
@@ -0,0 +1,101 @@
+package meshchat.sim;
+
+import meshchat.network.MeshNode;
+import meshchat.network.PeerConnection;
+
+import java.io.Closeable;
+
+/**
+ * A bidirectional in-memory link between two simulated nodes. Taking the link
+ * down closes both connections; bringing it up again opens fresh ones and the
+ * nodes redo the HANDSHAKE, just like a real reconnect. Node a is the side
+ * that dials, so a reconnect can resume the link's keys and session. A
+ * stalled link drops everything until it is brought up, which replaces it
+ * with a fresh one as the nodes would after a roam. Besides the stream
+ * each direction has a datagram path ({@link SimDatagrams}) with the same
+ * profile; its datagrams count as frames too.
+ */
+final class SimLink {
+    final int a;
+    final int b;
+    private final MeshNode nodeA;
+    private final MeshNode nodeB;
+    private final LinkProfile profile;
+    private final long seed;
+
+    private SimPipe aToB;
+    private SimPipe bToA;
+    private SimDatagrams datagramsAToB;
+    private SimDatagrams datagramsBToA;
+    private PeerConnection connA;
+    private PeerConnection connB;
+    private long retiredFrames, retiredBytes, retiredLost;
+    private int incarnation;
+    private boolean stalled;
+
+    SimLink(int a, MeshNode nodeA, int b, MeshNode nodeB, LinkProfile profile, long seed) {
+        this.a = a;
+        this.b = b;
+        this.nodeA = nodeA;
+        this.nodeB = nodeB;
+        this.profile = profile;
+        this.seed = seed;
+    }
+
+    synchronized void up() {
+        if (stalled) down();
+        if (connA != null) return;
+        incarnation++;
+        aToB = new SimPipe(profile, seed * 31 + incarnation * 2L);
+        bToA = new SimPipe(profile, seed * 31 + incarnation * 2L + 1);
+        SimPipe ab = aToB, ba = bToA;
+        Closeable closeBoth = () -> { ab.close(); ba.close(); };
+        connA = new PeerConnection(ba.in, ab.out, "sim-" + b, closeBoth);
+        connB = new PeerConnection(ab.in, ba.out, "sim-" + a, closeBoth);
+        datagramsAToB = new SimDatagrams(profile, seed * 37 + incarnation * 2L);
+        datagramsBToA = new SimDatagrams(profile, seed * 37 + incarnation * 2L + 1);
+        connA.setDatagramLink(datagramsAToB);
+        connB.setDatagramLink(datagramsBToA);
+        datagramsAToB.deliverTo(connB);
+        datagramsBToA.deliverTo(connA);
+        nodeB.accept(connB);
+        nodeA.attach(connA, nodeB.getDeviceId());
+    }
+
+    synchronized void stall() {
+        if (connA == null || stalled) return;
+        stalled = true;
+        aToB.stall();
+        bToA.stall();
+        datagramsAToB.stall();
+        datagramsBToA.stall();
+    }
+
+    synchronized void down() {
+        stalled = false;
+        if (connA == null) return;
+        connA.close();
+        connB.close();
+        datagramsAToB.close();
+        datagramsBToA.close();
+        retiredFrames += aToB.frames() + bToA.frames() + datagramsAToB.sent() + datagramsBToA.sent();
+        retiredBytes += aToB.bytes() + bToA.bytes() + datagramsAToB.bytes() + datagramsBToA.bytes();
+        retiredLost += aToB.lost() + bToA.lost() + datagramsAToB.lost() + datagramsBToA.lost();
+        connA = connB = null;
+    }
+
+    synchronized long frames() {
+        return retiredFrames + (connA == null ? 0
+            : aToB.frames() + bToA.frames() + datagramsAToB.sent() + datagramsBToA.sent());
+    }
+
+    synchronized long bytes() {
+        return retiredBytes + (connA == null ? 0
+            : aToB.bytes() + bToA.bytes() + datagramsAToB.bytes() + datagramsBToA.bytes());
+    }
+
+    synchronized long lost() {
+        return retiredLost + (connA == null ? 0
+            : aToB.lost() + bToA.lost() + datagramsAToB.lost() + datagramsBToA.lost());
+    }
+}
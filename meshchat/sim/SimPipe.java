@@ -0,0 +1,171 @@
+package meshchat.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One direction of a simulated link.
+ *
+ * Bytes written to {@link #out} are cut into frames at each flush (connections
+ * flush after every message, compressed or not). Every frame
+ * occupies the transmitter for size/bandwidth, then arrives after latency + jitter.
+ * A lost frame is sent again after a retransmission timeout, as TCP would
+ * (at least {@link #RTO_MIN_MILLIS}, doubling each time), and since arrival
+ * order is kept FIFO, like a stream, everything behind it waits. The receiving
+ * connection's reader thread sleeps until a frame is due, so no timer threads
+ * are needed per link.
+ */
+final class SimPipe {
+    private record Frame(byte[] data, long deliverAtNanos) {}
+
+    private static final Frame EOF = new Frame(new byte[0], 0);
+    private static final long RTO_MIN_MILLIS = 200;
+
+    private final LinkProfile profile;
+    private final Random random;
+    private final BlockingQueue<Frame> queue = new LinkedBlockingQueue<>();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+
+    private byte[] pending = new byte[256];
+    private int pendingLen;
+    private long busyUntilNanos;
+    private long lastDeliverAtNanos;
+    private volatile boolean closed;
+    private volatile boolean stalled;
+
+    final OutputStream out = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("link down");
+            append(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            SimPipe.this.flush();
+        }
+
+        @Override
+        public void close() {
+            SimPipe.this.close();
+        }
+    };
+
+    final InputStream in = new InputStream() {
+        private byte[] current = new byte[0];
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos == current.length && !nextFrame()) return -1;
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private boolean nextFrame() throws IOException {
+            try {
+                Frame f = queue.take();
+                if (f == EOF) {
+                    queue.offer(EOF); // stay at EOF for any further reads
+                    return false;
+                }
+                long wait = f.deliverAtNanos() - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                current = f.data();
+                pos = 0;
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        @Override
+        public void close() {
+            SimPipe.this.close();
+        }
+    };
+
+    SimPipe(LinkProfile profile, long seed) {
+        this.profile = profile;
+        this.random = new Random(seed);
+    }
+
+    private synchronized void append(byte[] b, int off, int len) {
+        if (pendingLen + len > pending.length) pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLen + len));
+        System.arraycopy(b, off, pending, pendingLen, len);
+        pendingLen += len;
+    }
+
+    private synchronized void flush() {
+        if (pendingLen == 0) return;
+        if (stalled) {
+            frames.increment();
+            bytes.add(pendingLen);
+            lost.increment();
+        } else {
+            submit(Arrays.copyOf(pending, pendingLen));
+        }
+        pendingLen = 0;
+    }
+
+    private void submit(byte[] frame) {
+        long now = System.nanoTime();
+        long txNanos = profile.bytesPerSecond() > 0 ? frame.length * 1_000_000_000L / profile.bytesPerSecond() : 0;
+        busyUntilNanos = Math.max(now, busyUntilNanos) + txNanos;
+        frames.increment();
+        bytes.add(frame.length);
+
+        double rtoMillis = Math.max(RTO_MIN_MILLIS, 3 * profile.latencyMillis());
+        double resendMillis = 0;
+        while (profile.loss() > 0 && random.nextDouble() < profile.loss()) {
+            lost.increment();
+            frames.increment();
+            bytes.add(frame.length);
+            resendMillis += rtoMillis;
+            rtoMillis *= 2;
+        }
+        double delayMillis = resendMillis + profile.latencyMillis()
+            + (profile.jitterMillis() > 0 ? random.nextDouble() * profile.jitterMillis() : 0);
+        long deliverAt = Math.max(busyUntilNanos + (long) (delayMillis * 1_000_000), lastDeliverAtNanos);
+        lastDeliverAtNanos = deliverAt;
+        queue.offer(new Frame(frame, deliverAt));
+    }
+
+    /** Everything written from now on is lost, with the link still open at both ends. */
+    void stall() {
+        stalled = true;
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        queue.offer(EOF);
+    }
+
+    long frames() { return frames.sum(); }
+    long bytes() { return bytes.sum(); }
+    long lost() { return lost.sum(); }
+}
@@ -0,0 +1,60 @@
+package meshchat.sim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Graph shapes for the simulator. Edges are {a, b} node index pairs.
+ */
+public enum Topology {
+    LINE, RING, GRID, RANDOM_GEOMETRIC;
+
+    /**
+     * @param radius only used by RANDOM_GEOMETRIC: nodes are placed uniformly in
+     *               the unit square and linked when closer than this
+     */
+    public List<int[]> edges(int n, Random random, double radius) {
+        List<int[]> edges = new ArrayList<>();
+        switch (this) {
+            case LINE -> {
+                for (int i = 0; i + 1 < n; i++) edges.add(new int[]{i, i + 1});
+            }
+            case RING -> {
+                for (int i = 0; i + 1 < n; i++) edges.add(new int[]{i, i + 1});
+                if (n > 2) edges.add(new int[]{n - 1, 0});
+            }
+            case GRID -> {
+                int width = (int) Math.ceil(Math.sqrt(n));
+                for (int i = 0; i < n; i++) {
+                    if ((i + 1) % width != 0 && i + 1 < n) edges.add(new int[]{i, i + 1});
+                    if (i + width < n) edges.add(new int[]{i, i + width});
+                }
+            }
+            case RANDOM_GEOMETRIC -> {
+                double[] x = new double[n], y = new double[n];
+                for (int i = 0; i < n; i++) {
+                    x[i] = random.nextDouble();
+                    y[i] = random.nextDouble();
+                }
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        double dx = x[i] - x[j], dy = y[i] - y[j];
+                        if (dx * dx + dy * dy < radius * radius) edges.add(new int[]{i, j});
+                    }
+                }
+            }
+        }
+        return edges;
+    }
+
+    public static Topology parse(String name) {
+        return switch (name.toLowerCase()) {
+            case "line" -> LINE;
+            case "ring" -> RING;
+            case "grid" -> GRID;
+            case "random", "geometric", "random-geometric" -> RANDOM_GEOMETRIC;
+            default -> throw new IllegalArgumentException("Unknown topology: " + name);
+        };
+    }
+}
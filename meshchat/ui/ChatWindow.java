@@ -1,10 +1,17 @@
 package meshchat.ui;
 
+import meshchat.history.ChatHistory;
+import meshchat.jfr.UiDeliveryEvent;
+import meshchat.model.HopTrace;
 import meshchat.model.Message;
 import meshchat.model.Peer;
+import meshchat.model.Presence;
 import meshchat.network.DiscoveryService;
 import meshchat.network.MeshNode;
+import meshchat.routing.RoutingTable;
+import meshchat.search.SearchQuery;
 import meshchat.util.DeviceIdentity;
+import meshchat.util.Log;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -12,21 +19,32 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.net.Inet4Address;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ChatWindow extends JFrame implements MessageListener {
+    private static final Log LOG = Log.get("UI");
+
     private static final DateTimeFormatter TIME_FMT = DateTimeFormatter
         .ofPattern("HH:mm:ss")
         .withZone(ZoneId.systemDefault());
+    private static final int MAX_TRACES = 50;
 
     private final DeviceIdentity identity;
     private final MeshNode node;
+    private final ChatHistory history;
     private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Deque<HopTrace> recentTraces = new ArrayDeque<>(); // EDT only
 
     // UI Components
     private JTextPane chatArea;
@@ -34,15 +52,23 @@ public class ChatWindow extends JFrame implements MessageListener {
     private JTextField targetInput;
     private JTextField messageInput;
     private JButton sendButton;
+    private JCheckBox traceCheck;
     private JLabel statusLabel;
     private DefaultListModel<String> peerListModel;
+    private final List<String> peerListIds = new ArrayList<>(); // device ID of each row; EDT only
+    private volatile List<Presence> directory = List.of();
+    private DefaultListModel<String> channelListModel;
+    private JTextField searchInput;
+    private JComboBox<String> searchPeerFilter;
+    private JComboBox<String> searchTimeFilter;
 
     // Text styles
     private Style styleReceived, styleSent, styleRelayed, styleSystem;
 
-    public ChatWindow(DeviceIdentity identity, MeshNode node) {
+    public ChatWindow(DeviceIdentity identity, MeshNode node, ChatHistory history) {
         this.identity = identity;
         this.node = node;
+        this.history = history;
 
         setTitle("MeshChat - " + identity.deviceId().substring(0, 8) + "...");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -58,6 +84,7 @@ public class ChatWindow extends JFrame implements MessageListener {
             @Override
             public void windowClosing(WindowEvent e) {
                 node.stop();
+                history.close();
             }
         });
 
@@ -134,26 +161,27 @@ public class ChatWindow extends JFrame implements MessageListener {
 
         // Peers list
         JPanel peerPanel = new JPanel(new BorderLayout());
-        peerPanel.setBorder(BorderFactory.createTitledBorder("Connected Peers (click to select)"));
+        peerPanel.setBorder(BorderFactory.createTitledBorder("Reachable Devices (click to select)"));
         peerListModel = new DefaultListModel<>();
         JList<String> peerList = new JList<>(peerListModel);
         peerList.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 10));
         peerList.addListSelectionListener(e -> {
             if (!e.getValueIsAdjusting()) {
-                String selected = peerList.getSelectedValue();
-                if (selected != null) {
-                    for (Peer peer : peers.values()) {
-                        if (selected.contains(peer.deviceId().substring(0, 8))) {
-                            targetInput.setText(peer.deviceId());
-                            messageInput.requestFocus();
-                            break;
-                        }
-                    }
+                int selected = peerList.getSelectedIndex();
+                if (selected >= 0 && selected < peerListIds.size()) {
+                    targetInput.setText(peerListIds.get(selected));
+                    messageInput.requestFocus();
                 }
             }
         });
         peerPanel.add(new JScrollPane(peerList), BorderLayout.CENTER);
 
+        JButton diagnosticsBtn = new JButton("Route Diagnostics");
+        diagnosticsBtn.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+        diagnosticsBtn.setToolTipText("Recent hop traces and learned routes");
+        diagnosticsBtn.addActionListener(e -> showDiagnostics());
+        peerPanel.add(diagnosticsBtn, BorderLayout.SOUTH);
+
         // Assemble left panel top section
         JPanel leftTop = new JPanel();
         leftTop.setLayout(new BoxLayout(leftTop, BoxLayout.Y_AXIS));
@@ -161,8 +189,41 @@ public class ChatWindow extends JFrame implements MessageListener {
         leftTop.add(myIpPanel);
         leftTop.add(statusLabel);
 
+        // Channels: joined ones, click to send to the channel
+        JPanel channelPanel = new JPanel(new BorderLayout());
+        channelPanel.setBorder(BorderFactory.createTitledBorder("Channels"));
+        channelPanel.setPreferredSize(new Dimension(0, 150));
+        channelListModel = new DefaultListModel<>();
+        JList<String> channelList = new JList<>(channelListModel);
+        channelList.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        channelList.addListSelectionListener(e -> {
+            String selected = channelList.getSelectedValue();
+            if (!e.getValueIsAdjusting() && selected != null) {
+                targetInput.setText(selected);
+                messageInput.requestFocus();
+            }
+        });
+        channelPanel.add(new JScrollPane(channelList), BorderLayout.CENTER);
+        JPanel channelButtons = new JPanel(new GridLayout(1, 2, 4, 0));
+        JButton joinBtn = new JButton("Join...");
+        joinBtn.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+        joinBtn.addActionListener(e -> joinChannel());
+        JButton leaveBtn = new JButton("Leave");
+        leaveBtn.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 10));
+        leaveBtn.addActionListener(e -> {
+            String selected = channelList.getSelectedValue();
+            if (selected != null && node.leaveChannel(selected)) {
+                refreshChannels();
+                appendSystem("Left " + selected);
+            }
+        });
+        channelButtons.add(joinBtn);
+        channelButtons.add(leaveBtn);
+        channelPanel.add(channelButtons, BorderLayout.SOUTH);
+
         leftPanel.add(leftTop, BorderLayout.NORTH);
         leftPanel.add(peerPanel, BorderLayout.CENTER);
+        leftPanel.add(channelPanel, BorderLayout.SOUTH);
 
         // ── CENTER PANEL (Chat) ──────────────────────────────────────────────
         chatArea = new JTextPane();
@@ -173,6 +234,28 @@ public class ChatWindow extends JFrame implements MessageListener {
         JScrollPane chatScroll = new JScrollPane(chatArea);
         chatScroll.setBorder(BorderFactory.createTitledBorder("Messages"));
 
+        // ── TOP PANEL (Search) ───────────────────────────────────────────────
+        JPanel searchPanel = new JPanel(new BorderLayout(5, 0));
+        searchPanel.setBorder(BorderFactory.createTitledBorder("Search History"));
+        searchInput = new JTextField();
+        searchInput.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+        searchInput.setToolTipText("Words are ANDed. Use OR, -exclude and prefix* (e.g. lunch OR dinner -tomorrow)");
+        searchPeerFilter = new JComboBox<>(new String[]{"All peers"});
+        searchPeerFilter.setEditable(true);
+        searchPeerFilter.setPrototypeDisplayValue("xxxxxxxx-xxxx-xxxx");
+        searchPeerFilter.setToolTipText("Only messages to/from this Device ID");
+        searchTimeFilter = new JComboBox<>(new String[]{"Any time", "Last hour", "Last 24 hours", "Last 7 days"});
+        JButton searchButton = new JButton("Search");
+        searchButton.addActionListener(e -> runSearch());
+        searchInput.addActionListener(e -> runSearch());
+
+        JPanel searchFilters = new JPanel(new FlowLayout(FlowLayout.RIGHT, 4, 0));
+        searchFilters.add(searchPeerFilter);
+        searchFilters.add(searchTimeFilter);
+        searchFilters.add(searchButton);
+        searchPanel.add(searchInput, BorderLayout.CENTER);
+        searchPanel.add(searchFilters, BorderLayout.EAST);
+
         // ── BOTTOM PANEL (Input) ─────────────────────────────────────────────
         JPanel inputPanel = new JPanel(new BorderLayout(5, 5));
         inputPanel.setBorder(BorderFactory.createTitledBorder("Send Message"));
@@ -181,8 +264,12 @@ public class ChatWindow extends JFrame implements MessageListener {
         targetRow.add(new JLabel("To (Device ID):"), BorderLayout.WEST);
         targetInput = new JTextField();
         targetInput.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
-        targetInput.setToolTipText("Paste the full Device ID of the recipient, or click a peer above");
+        targetInput.setToolTipText("Paste the full Device ID of the recipient, click a peer or channel, * for everyone or #name for a channel");
         targetRow.add(targetInput, BorderLayout.CENTER);
+        JButton everyoneButton = new JButton("Everyone");
+        everyoneButton.setToolTipText("Send to every node in the mesh");
+        everyoneButton.addActionListener(e -> targetInput.setText(Message.BROADCAST));
+        targetRow.add(everyoneButton, BorderLayout.EAST);
 
         JPanel msgRow = new JPanel(new BorderLayout(5, 0));
         messageInput = new JTextField();
@@ -191,13 +278,19 @@ public class ChatWindow extends JFrame implements MessageListener {
         sendButton.setBackground(new Color(0, 140, 90));
         sendButton.setForeground(Color.WHITE);
         sendButton.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 13));
+        traceCheck = new JCheckBox("Trace route");
+        traceCheck.setToolTipText("Relays stamp the message so the recipient sees per-hop latency");
+        JPanel sendControls = new JPanel(new BorderLayout(4, 0));
+        sendControls.add(traceCheck, BorderLayout.WEST);
+        sendControls.add(sendButton, BorderLayout.EAST);
         msgRow.add(messageInput, BorderLayout.CENTER);
-        msgRow.add(sendButton, BorderLayout.EAST);
+        msgRow.add(sendControls, BorderLayout.EAST);
 
         inputPanel.add(targetRow, BorderLayout.NORTH);
         inputPanel.add(msgRow, BorderLayout.CENTER);
 
         // ── ASSEMBLE ─────────────────────────────────────────────────────────
+        add(searchPanel, BorderLayout.NORTH);
         add(leftPanel, BorderLayout.WEST);
         add(chatScroll, BorderLayout.CENTER);
         add(inputPanel, BorderLayout.SOUTH);
@@ -207,6 +300,7 @@ public class ChatWindow extends JFrame implements MessageListener {
         JPanel panel = new JPanel(new GridLayout(0, 1, 4, 4));
         panel.add(new JLabel("Enter the IP address of the other laptop:"));
         panel.add(new JLabel("(You can see their IP in the 'My IP Address' box on their screen)"));
+        panel.add(new JLabel("(Broadcasts blocked on this network? See 'Seeds' in the README)"));
         JTextField ipField = new JTextField("192.168.1.");
         ipField.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
         panel.add(ipField);
@@ -223,6 +317,87 @@ public class ChatWindow extends JFrame implements MessageListener {
         }
     }
 
+    private void joinChannel() {
+        String name = JOptionPane.showInputDialog(this,
+            "Channel to join (e.g. general):\nOnly nodes that joined it receive its messages.",
+            "Join Channel", JOptionPane.PLAIN_MESSAGE);
+        if (name == null || name.isBlank()) return;
+        if (node.joinChannel(name)) {
+            refreshChannels();
+            appendSystem("Joined channel " + name.trim());
+        }
+    }
+
+    private void refreshChannels() {
+        channelListModel.clear();
+        node.getChannels().stream().sorted().forEach(c -> channelListModel.addElement(Message.CHANNEL_PREFIX + c));
+    }
+
+    private void runSearch() {
+        String text = searchInput.getText().trim();
+        if (text.isEmpty()) return;
+
+        SearchQuery query = SearchQuery.parse(text);
+        Object peer = searchPeerFilter.getSelectedItem();
+        if (peer != null && !peer.toString().isBlank() && !"All peers".equals(peer)) {
+            query = query.withPeer(peer.toString().trim());
+        }
+        Duration window = switch (searchTimeFilter.getSelectedIndex()) {
+            case 1 -> Duration.ofHours(1);
+            case 2 -> Duration.ofDays(1);
+            case 3 -> Duration.ofDays(7);
+            default -> null;
+        };
+        if (window != null) {
+            query = query.between(System.currentTimeMillis() - window.toMillis(), Long.MAX_VALUE);
+        }
+
+        history.index().search(query).thenAccept(results ->
+            SwingUtilities.invokeLater(() -> showSearchResults(text, results)));
+    }
+
+    private void showSearchResults(String text, List<Message> results) {
+        DefaultListModel<String> model = new DefaultListModel<>();
+        for (Message m : results) {
+            String who = m.from().equals(identity.deviceId())
+                ? "TO " + recipient(m)
+                : "FROM " + m.from().substring(0, 8) + "...";
+            model.addElement("[" + formatTime(m.timestamp()) + "] " + who + ": " + m.text());
+        }
+        if (model.isEmpty()) model.addElement("No messages match.");
+
+        JList<String> list = new JList<>(model);
+        list.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        JScrollPane scroll = new JScrollPane(list);
+        scroll.setPreferredSize(new Dimension(600, 320));
+        JOptionPane.showMessageDialog(this, scroll,
+            results.size() + " result(s) for \"" + text + "\"", JOptionPane.PLAIN_MESSAGE);
+    }
+
+    private void showDiagnostics() {
+        StringBuilder sb = new StringBuilder("Recent traces (newest first):\n");
+        if (recentTraces.isEmpty()) sb.append("  none - send with 'Trace route' ticked on the other side\n");
+        for (HopTrace t : recentTraces) {
+            sb.append("  ").append(t).append("\n");
+        }
+        sb.append("\nLearned routes:\n");
+        List<RoutingTable.Route> routes = node.getRoutingTable().snapshot();
+        if (routes.isEmpty()) sb.append("  none yet\n");
+        for (RoutingTable.Route r : routes) {
+            sb.append("  ").append(r).append("\n");
+        }
+        int diameter = node.getMeshDiameter();
+        sb.append("\nFarthest device heard from: ")
+            .append(diameter > 0 ? diameter + " hop(s)" : "unknown").append("\n");
+
+        JTextArea text = new JTextArea(sb.toString());
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        text.setEditable(false);
+        JScrollPane scroll = new JScrollPane(text);
+        scroll.setPreferredSize(new Dimension(640, 360));
+        JOptionPane.showMessageDialog(this, scroll, "Route Diagnostics", JOptionPane.PLAIN_MESSAGE);
+    }
+
     private void setupStyles() {
         StyleContext sc = StyleContext.getDefaultStyleContext();
         Style def = sc.getStyle(StyleContext.DEFAULT_STYLE);
@@ -260,18 +435,26 @@ public class ChatWindow extends JFrame implements MessageListener {
         }
         if (text.isEmpty()) return;
 
-        node.sendMessage(to, text);
+        node.sendMessage(to, text, traceCheck.isSelected());
         messageInput.setText("");
         messageInput.requestFocus();
     }
 
     private void appendToChat(String text, Style style) {
+        appendToChat(text, style, null);
+    }
+
+    private void appendToChat(String text, Style style, UiDeliveryEvent delivery) {
         SwingUtilities.invokeLater(() -> {
             try {
                 chatDoc.insertString(chatDoc.getLength(), text + "\n", style);
                 chatArea.setCaretPosition(chatDoc.getLength());
             } catch (BadLocationException e) {
-                System.err.println("[UI] Append error: " + e.getMessage());
+                LOG.warn("Append error: " + e.getMessage());
+            }
+            if (delivery != null) {
+                delivery.end();
+                delivery.commit();
             }
         });
     }
@@ -280,6 +463,11 @@ public class ChatWindow extends JFrame implements MessageListener {
         appendToChat("[" + TIME_FMT.format(Instant.now()) + "] " + text, styleSystem);
     }
 
+    private static String recipient(Message msg) {
+        if (msg.isBroadcast()) return "EVERYONE";
+        return msg.isChannel() ? msg.to() : msg.to().substring(0, 8) + "...";
+    }
+
     private String formatTime(long epochMs) {
         return TIME_FMT.format(Instant.ofEpochMilli(epochMs));
     }
@@ -288,57 +476,94 @@ public class ChatWindow extends JFrame implements MessageListener {
 
     @Override
     public void onMessageReceived(Message msg) {
+        UiDeliveryEvent delivery = new UiDeliveryEvent();
+        delivery.begin();
+        if (delivery.isEnabled()) delivery.set(msg.id(), msg.ttl(), msg.toJson().getBytes(StandardCharsets.UTF_8).length);
         String time = formatTime(msg.timestamp());
         String fromShort = msg.from().substring(0, 8);
-        appendToChat("[" + time + "] FROM " + fromShort + "...: " + msg.text(), styleReceived);
+        String scope = msg.isBroadcast() ? " (to everyone)" : msg.isChannel() ? " in " + msg.to() : "";
+        appendToChat("[" + time + "] FROM " + fromShort + "..." + scope + ": " + msg.text(), styleReceived, delivery);
+        history.append(msg);
     }
 
     @Override
     public void onMessageSent(Message msg) {
-        String toShort = msg.to().substring(0, 8);
-        appendToChat("[" + formatTime(msg.timestamp()) + "] TO " + toShort + "...: " + msg.text(), styleSent);
+        appendToChat("[" + formatTime(msg.timestamp()) + "] TO " + recipient(msg) + ": " + msg.text(), styleSent);
+        history.append(msg);
     }
 
     @Override
     public void onMessageRelayed(Message msg) {
         String fromShort = msg.from().substring(0, 8);
-        String toShort = msg.to().substring(0, 8);
+        String toShort = msg.isBroadcast() || msg.isChannel() ? msg.to() : msg.to().substring(0, 8);
         String preview = msg.text().length() > 25 ? msg.text().substring(0, 25) + "..." : msg.text();
         appendToChat("[RELAY] " + fromShort + "->>" + toShort + " TTL:" + msg.ttl() + " | " + preview, styleRelayed);
     }
 
+    @Override
+    public void onTraceReceived(Message msg, HopTrace trace) {
+        SwingUtilities.invokeLater(() -> {
+            recentTraces.addFirst(trace);
+            if (recentTraces.size() > MAX_TRACES) recentTraces.removeLast();
+        });
+        appendSystem("Trace from " + msg.from().substring(0, 8) + "...: " + trace.pathLength()
+            + " hop(s), " + trace.totalMillis() + "ms");
+    }
+
     @Override
     public void onPeerConnected(Peer peer) {
         peers.put(peer.deviceId(), peer);
         SwingUtilities.invokeLater(() -> {
-            String display = peer.deviceId().substring(0, 8) + "... @ " + peer.host();
-            boolean exists = false;
-            for (int i = 0; i < peerListModel.size(); i++) {
-                if (peerListModel.get(i).equals(display)) { exists = true; break; }
+            refreshPeerList();
+            if (((DefaultComboBoxModel<String>) searchPeerFilter.getModel()).getIndexOf(peer.deviceId()) < 0) {
+                searchPeerFilter.addItem(peer.deviceId());
             }
-            if (!exists) peerListModel.addElement(display);
-            int count = peerListModel.size();
-            statusLabel.setText(count + " peer(s) connected");
-            statusLabel.setForeground(new Color(0, 140, 0));
         });
         appendSystem("Peer connected: " + peer.deviceId().substring(0, 8) + "... @ " + peer.host());
     }
 
     @Override
     public void onPeerDisconnected(String deviceId) {
-        Peer removed = peers.remove(deviceId);
-        SwingUtilities.invokeLater(() -> {
-            if (removed != null) {
-                String display = removed.deviceId().substring(0, 8) + "... @ " + removed.host();
-                peerListModel.removeElement(display);
-            }
-            int count = peerListModel.size();
-            statusLabel.setText(count > 0 ? count + " peer(s)" : "No peers connected");
-            statusLabel.setForeground(count > 0 ? Color.ORANGE : Color.RED);
-        });
+        peers.remove(deviceId);
+        SwingUtilities.invokeLater(this::refreshPeerList);
         appendSystem("Peer disconnected: " + deviceId.substring(0, 8) + "...");
     }
 
+    @Override
+    public void onDirectoryChanged(List<Presence> reachable) {
+        directory = reachable;
+        SwingUtilities.invokeLater(this::refreshPeerList);
+    }
+
+    /** Connected peers first, then the rest of the directory, nearest first. EDT only. */
+    private void refreshPeerList() {
+        Map<String, Presence> known = new HashMap<>();
+        for (Presence p : directory) known.put(p.deviceId(), p);
+        List<String> ids = new ArrayList<>();
+        List<String> rows = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            Presence p = known.get(peer.deviceId());
+            String label = peer.deviceId().substring(0, 8) + "...";
+            if (p != null && !p.name().isEmpty()) label = p.name() + " (" + label + ")";
+            ids.add(peer.deviceId());
+            rows.add(label + " @ " + peer.host());
+        }
+        for (Presence p : directory) {
+            if (peers.containsKey(p.deviceId())) continue;
+            ids.add(p.deviceId());
+            rows.add(p.toString());
+        }
+        peerListIds.clear();
+        peerListIds.addAll(ids);
+        peerListModel.clear();
+        peerListModel.addAll(rows);
+        int count = peers.size();
+        int further = ids.size() - count;
+        statusLabel.setText(count == 0 ? "No peers connected"
+            : count + " peer(s) connected" + (further > 0 ? ", " + further + " more reachable" : ""));
+        statusLabel.setForeground(count > 0 ? new Color(0, 140, 0) : Color.RED);
+    }
+
     @Override
     public void onStatusUpdate(String status) {
         SwingUtilities.invokeLater(() -> {
@@ -1,13 +1,33 @@
 package meshchat.ui;
 
+import meshchat.model.HopTrace;
 import meshchat.model.Message;
 import meshchat.model.Peer;
+import meshchat.model.Presence;
+
+import java.util.List;
 
 public interface MessageListener {
     void onMessageReceived(Message msg);
     void onMessageSent(Message msg);
     void onMessageRelayed(Message msg);
+    void onTraceReceived(Message msg, HopTrace trace);
     void onPeerConnected(Peer peer);
     void onPeerDisconnected(String deviceId);
     void onStatusUpdate(String status);
+
+    /**
+     * Whether {@link #onMessageRelayed} should be called. Relays otherwise
+     * forward without decoding the message, so headless listeners return false.
+     */
+    default boolean wantsRelayEvents() {
+        return true;
+    }
+
+    /**
+     * The presence directory changed: every device reachable through the
+     * mesh, nearest first. Called at most once a second.
+     */
+    default void onDirectoryChanged(List<Presence> reachable) {
+    }
 }
@@ -0,0 +1,64 @@
+package meshchat.util;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Parsing shared by the command-line tools and the places that take an address typed in. */
+public final class Args {
+    private Args() {
+    }
+
+    /**
+     * {@code --name value} pairs; a {@code --flag} with no value reads as {@code "true"}.
+     * @throws IllegalArgumentException on anything that does not start with {@code --}
+     */
+    public static Map<String, String> parse(String[] args) {
+        Map<String, String> opt = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            String key = args[i].substring(2);
+            opt.put(key, i + 1 < args.length && !args[i + 1].startsWith("--") ? args[++i] : "true");
+        }
+        return opt;
+    }
+
+    /**
+     * {@code host}, {@code host:port}, a bare IPv6 address or {@code [v6]:port},
+     * the port defaulting to {@code defaultPort}. Left unresolved, so a name
+     * is looked up whenever the address is used.
+     * @throws IllegalArgumentException if the address cannot be read
+     */
+    public static InetSocketAddress hostPort(String address, int defaultPort) {
+        String host = address.trim();
+        String port = null;
+        if (host.startsWith("[")) {
+            int close = host.indexOf(']');
+            if (close < 0) throw new IllegalArgumentException("Missing ']' in " + address);
+            if (close + 1 < host.length()) {
+                if (host.charAt(close + 1) != ':') {
+                    throw new IllegalArgumentException("Expected ':port' after ']' in " + address);
+                }
+                port = host.substring(close + 2);
+            }
+            host = host.substring(1, close);
+        } else {
+            int colon = host.indexOf(':');
+            if (colon >= 0 && colon == host.lastIndexOf(':')) { // more than one is an IPv6 address with no port
+                port = host.substring(colon + 1);
+                host = host.substring(0, colon);
+            }
+        }
+        if (host.isEmpty()) throw new IllegalArgumentException("No host in " + address);
+        int p = defaultPort;
+        if (port != null) {
+            try {
+                p = Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad port in " + address);
+            }
+        }
+        if (p < 1 || p > 65535) throw new IllegalArgumentException("Port out of range in " + address);
+        return InetSocketAddress.createUnresolved(host, p);
+    }
+}
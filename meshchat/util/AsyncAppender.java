@@ -0,0 +1,86 @@
+package meshchat.util;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded ring buffer between logging threads and the console.
+ * When the buffer is full records are dropped (and counted) rather than
+ * making the network threads wait on console I/O.
+ */
+final class AsyncAppender {
+    static final AsyncAppender INSTANCE = new AsyncAppender(Integer.getInteger("meshchat.log.buffer", 8192));
+
+    private static final int BATCH = 256;
+
+    private record Entry(Log.Level level, String tag, String text) {}
+
+    private final BlockingQueue<Entry> queue;
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private AsyncAppender(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        Thread writer = new Thread(this::drainLoop, "meshchat-log");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::drainRemaining, "meshchat-log-flush"));
+    }
+
+    void append(Log.Level level, String tag, String text) {
+        if (!queue.offer(new Entry(level, tag, text))) {
+            dropped.increment();
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    private void drainLoop() {
+        List<Entry> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH - 1);
+                    write(batch);
+                    batch.clear();
+                }
+                reportDrops();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void drainRemaining() {
+        List<Entry> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        write(rest);
+        reportDrops();
+    }
+
+    private synchronized void write(List<Entry> batch) {
+        for (Entry e : batch) {
+            PrintStream out = e.level().compareTo(Log.Level.WARN) >= 0 ? System.err : System.out;
+            out.println("[" + e.tag() + "] " + e.text());
+        }
+        System.out.flush();
+        System.err.flush();
+    }
+
+    private synchronized void reportDrops() {
+        long total = dropped.sum();
+        if (total > droppedReported) {
+            System.err.println("[LOG] Dropped " + (total - droppedReported) + " log record(s), buffer full");
+            droppedReported = total;
+        }
+    }
+}
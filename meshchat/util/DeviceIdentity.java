@@ -5,6 +5,8 @@ import java.nio.file.*;
 import java.util.UUID;
 
 public record DeviceIdentity(String deviceId) {
+    private static final Log LOG = Log.get("IDENTITY");
+
     private static final Path ID_FILE = Path.of(System.getProperty("user.home"), ".meshchat_id");
 
     public static DeviceIdentity load() {
@@ -12,21 +14,26 @@ public record DeviceIdentity(String deviceId) {
             try {
                 String id = Files.readString(ID_FILE).trim();
                 if (!id.isBlank()) {
-                    System.out.println("[IDENTITY] Loaded existing device ID: " + id);
+                    LOG.info("Loaded existing device ID: " + id);
                     return new DeviceIdentity(id);
                 }
             } catch (IOException e) {
-                System.err.println("[IDENTITY] Failed to read ID file: " + e.getMessage());
+                LOG.warn("Failed to read ID file: " + e.getMessage());
             }
         }
 
         String newId = UUID.randomUUID().toString();
         try {
             Files.writeString(ID_FILE, newId);
-            System.out.println("[IDENTITY] Generated new device ID: " + newId);
+            LOG.info("Generated new device ID: " + newId);
         } catch (IOException e) {
-            System.err.println("[IDENTITY] Failed to save ID file: " + e.getMessage());
+            LOG.warn("Failed to save ID file: " + e.getMessage());
         }
         return new DeviceIdentity(newId);
     }
+
+    /** A throwaway identity that is never written to disk (load generators, tests). */
+    public static DeviceIdentity ephemeral() {
+        return new DeviceIdentity(UUID.randomUUID().toString());
+    }
 }
@@ -0,0 +1,87 @@
+package meshchat.util;
+
+import java.util.function.Supplier;
+
+/**
+ * Tiny level-gated logging facade.
+ *
+ * Usage: {@code private static final Log LOG = Log.get("ROUTER");}
+ * then {@code LOG.debug(() -> "FORWARD " + msg.id())}. A disabled level costs one
+ * volatile read - the supplier is never called. An enabled one is called
+ * right away, on the caller's thread, so it sees the state it was logged
+ * about and nothing it captures has to be safe to read from elsewhere; the
+ * text is handed to {@link AsyncAppender}, which does the console I/O on its
+ * own thread, so callers never block on stdout.
+ *
+ * The level comes from {@code -Dmeshchat.log.level=DEBUG|INFO|WARN|ERROR|OFF} (default INFO).
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static volatile Level threshold = parseLevel(System.getProperty("meshchat.log.level"));
+
+    private final String tag;
+
+    private Log(String tag) {
+        this.tag = tag;
+    }
+
+    public static Log get(String tag) {
+        return new Log(tag);
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static Level level() {
+        return threshold;
+    }
+
+    /** Records discarded because the async buffer was full. */
+    public static long droppedCount() {
+        return AsyncAppender.INSTANCE.dropped();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold.ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(Supplier<String> msg) { log(Level.DEBUG, msg); }
+    public void debug(String msg)           { log(Level.DEBUG, msg); }
+    public void info(Supplier<String> msg)  { log(Level.INFO, msg); }
+    public void info(String msg)            { log(Level.INFO, msg); }
+    public void warn(Supplier<String> msg)  { log(Level.WARN, msg); }
+    public void warn(String msg)            { log(Level.WARN, msg); }
+    public void error(Supplier<String> msg) { log(Level.ERROR, msg); }
+    public void error(String msg)           { log(Level.ERROR, msg); }
+
+    private void log(Level level, Supplier<String> msg) {
+        if (!isEnabled(level)) return;
+        String text;
+        try {
+            text = msg.get();
+        } catch (RuntimeException e) {
+            text = "<log message failed: " + e + ">";
+        }
+        AsyncAppender.INSTANCE.append(level, tag, text);
+    }
+
+    private void log(Level level, String msg) {
+        if (isEnabled(level)) AsyncAppender.INSTANCE.append(level, tag, msg);
+    }
+
+    private static Level parseLevel(String value) {
+        if (value == null) return Level.INFO;
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("[LOG] Unknown level '" + value + "', using INFO");
+            return Level.INFO;
+        }
+    }
+}